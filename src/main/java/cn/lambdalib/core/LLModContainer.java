@@ -33,6 +33,7 @@ public class LLModContainer extends DummyModContainer {
     public static Logger log = LogManager.getLogger("LambdaLib|Core");
     public static final String MODID = "LambdaLib|Core";
     private static Set<String> removedClasses = new HashSet<>();
+    private static Set<String> listenerChannels = new HashSet<>();
 
     private static ModMetadata getModMetadata() {
         ModMetadata metadata = new ModMetadata();
@@ -100,6 +101,13 @@ public class LLModContainer extends DummyModContainer {
         Set<String> registryMods = mapToClass(data.getAll("cn.lambdalib.annoreg.core.RegistrationMod"));
         registryMods.removeAll(removedClasses);
         RegistrationManager.INSTANCE.addAnnotationMod(registryMods);
+
+        // Channels of network message listeners. Classes removed at this side are included to keep both sides same.
+        data.getAll("cn.lambdalib.s11n.network.NetworkMessage$Listener")
+                .stream()
+                .map(ad -> (String) ad.getAnnotationInfo().get("channel"))
+                .filter(c -> c != null)
+                .forEach(listenerChannels::add);
     }
 
     @Subscribe
@@ -120,4 +128,11 @@ public class LLModContainer extends DummyModContainer {
         return removedClasses.contains(className);
     }
 
+    /**
+     * @return The channels of all NetworkMessage listeners found in the annotation scan.
+     */
+    public static Set<String> getListenerChannels() {
+        return listenerChannels;
+    }
+
 }
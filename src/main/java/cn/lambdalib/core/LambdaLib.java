@@ -9,9 +9,13 @@ package cn.lambdalib.core;
 import cn.lambdalib.annoreg.core.RegistrationManager;
 import cn.lambdalib.annoreg.core.RegistrationMod;
 import cn.lambdalib.core.command.CmdMineStatistics;
+import cn.lambdalib.core.command.CmdNetProfile;
 import cn.lambdalib.multiblock.MsgBlockMulti;
+import cn.lambdalib.s11n.network.MessageBatcher;
 import cn.lambdalib.s11n.network.NetworkEvent;
 import cn.lambdalib.s11n.network.NetworkMessage;
+import cn.lambdalib.s11n.network.NetworkS11n;
+import cn.lambdalib.util.datapart.EntityData;
 import cn.lambdalib.util.deprecated.LIFMLGameEventDispatcher;
 import cpw.mods.fml.common.FMLLog;
 import cpw.mods.fml.common.Mod;
@@ -64,6 +68,10 @@ public class LambdaLib {
         channel.registerMessage(NetworkEvent.MessageHandler.class, NetworkEvent.Message.class, 3, Side.SERVER);
         channel.registerMessage(NetworkMessage.Handler.class, NetworkMessage.Message.class, 4, Side.CLIENT);
         channel.registerMessage(NetworkMessage.Handler.class, NetworkMessage.Message.class, 5, Side.SERVER);
+        channel.registerMessage(MessageBatcher.BatchHandler.class, MessageBatcher.Batch.class, 6, Side.CLIENT);
+        channel.registerMessage(MessageBatcher.BatchHandler.class, MessageBatcher.Batch.class, 7, Side.SERVER);
+        channel.registerMessage(NetworkMessage.ChannelTableHandler.class, NetworkMessage.ChannelTableMessage.class,
+                8, Side.CLIENT);
         //
 
         RegistrationManager.INSTANCE.registerAll(this, "PreInit");
@@ -79,6 +87,14 @@ public class LambdaLib {
         RegistrationManager.INSTANCE.registerAll(this, "PostInit");
     }
 
+    @EventHandler()
+    public void loadComplete(FMLLoadCompleteEvent event) {
+        // All mods have registered their network types by now
+        NetworkS11n.lockRegistration();
+        NetworkMessage.lockChannels();
+        EntityData.lockRegistration();
+    }
+
     @EventHandler
     public void serverStopping(FMLServerStoppingEvent event) {
         config.save();
@@ -90,6 +106,7 @@ public class LambdaLib {
         if (DEBUG) {
             cm.registerCommand(new CmdMineStatistics());
         }
+        cm.registerCommand(new CmdNetProfile());
         RegistrationManager.INSTANCE.registerAll(this, "StartServer");
     }
 
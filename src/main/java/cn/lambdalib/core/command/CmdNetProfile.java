@@ -0,0 +1,106 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.core.command;
+
+import cn.lambdalib.s11n.network.TrafficProfiler;
+import cn.lambdalib.s11n.network.TrafficProfiler.Direction;
+import cn.lambdalib.s11n.network.TrafficProfiler.Key;
+import cn.lambdalib.s11n.network.TrafficProfiler.PlayerStats;
+import cn.lambdalib.s11n.network.TrafficProfiler.Stats;
+import cn.lambdalib.template.command.LICommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controls the {@link TrafficProfiler} and shows its data.
+ */
+public class CmdNetProfile extends LICommandBase {
+
+    private static final String DUMP_FILE = "netprofile.csv";
+
+    @Override
+    public String getCommandName() {
+        return "netprof";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender ics) {
+        return "/netprof <start|stop|reset|top [count]|players|dump [intervalTicks]>";
+    }
+
+    @Override
+    public void processCommand(ICommandSender ics, String[] args) {
+        if (args.length == 0) {
+            throw new WrongUsageException(getCommandUsage(ics));
+        }
+
+        switch (args[0]) {
+        case "start":
+            TrafficProfiler.setEnabled(true);
+            sendChat(ics, "Network profiling started.");
+            break;
+        case "stop":
+            TrafficProfiler.setEnabled(false);
+            sendChat(ics, "Network profiling stopped.");
+            break;
+        case "reset":
+            TrafficProfiler.reset();
+            sendChat(ics, "Network profile cleared.");
+            break;
+        case "top": {
+            int count = args.length > 1 ? parseIntWithMin(ics, args[1], 1) : 10;
+            List<Map.Entry<Key, Stats>> stats = TrafficProfiler.getStats();
+            for (Map.Entry<Key, Stats> entry : stats.subList(0, Math.min(count, stats.size()))) {
+                Stats s = entry.getValue();
+                String receivers = entry.getKey().direction == Direction.OUT ?
+                        " to " + s.getReceivers() + " receivers" : "";
+                sendChat(ics, entry.getKey() + ": " + s.getBytes() + " bytes in " + s.getCount() + " messages" +
+                        receivers + ", p50 " + s.percentile(0.5) / 1000 + "us, p99 " +
+                        s.percentile(0.99) / 1000 + "us");
+            }
+            if (stats.isEmpty()) {
+                sendChat(ics, "Nothing recorded.");
+            }
+            break;
+        }
+        case "players":
+            for (Map.Entry<String, PlayerStats> entry : TrafficProfiler.getPlayerStats().entrySet()) {
+                PlayerStats s = entry.getValue();
+                sendChat(ics, entry.getKey() + ": out " + s.getBytes(Direction.OUT) + " bytes/" +
+                        s.getCount(Direction.OUT) + ", in " + s.getBytes(Direction.IN) + " bytes/" +
+                        s.getCount(Direction.IN));
+            }
+            break;
+        case "dump": {
+            File file = MinecraftServer.getServer().getFile(DUMP_FILE);
+            if (args.length > 1) {
+                int interval = parseIntWithMin(ics, args[1], 0);
+                TrafficProfiler.setPeriodicDump(interval == 0 ? null : file, interval);
+                sendChat(ics, interval == 0 ? "Periodic dump stopped." :
+                        "Dumping to " + file + " every " + interval + " ticks.");
+            } else {
+                try {
+                    TrafficProfiler.dump(file);
+                    sendChat(ics, "Dumped to " + file);
+                } catch (IOException e) {
+                    sendError(ics, "Failed to dump: " + e.getMessage());
+                }
+            }
+            break;
+        }
+        default:
+            throw new WrongUsageException(getCommandUsage(ics));
+        }
+    }
+
+}
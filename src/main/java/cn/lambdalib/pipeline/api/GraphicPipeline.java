@@ -2,16 +2,18 @@ package cn.lambdalib.pipeline.api;
 
 
 import cn.lambdalib.pipeline.api.state.StateContext;
+import cn.lambdalib.pipeline.api.state.StateTracker;
+import cn.lambdalib.pipeline.core.CommandBuffer;
 import cn.lambdalib.pipeline.core.GLBuffer;
+import cn.lambdalib.pipeline.core.StreamBuffer;
 import cn.lambdalib.pipeline.core.VAO;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import org.lwjgl.BufferUtils;
+import cn.lambdalib.util.generic.Lazy;
 
 import java.nio.FloatBuffer;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
@@ -22,18 +24,74 @@ import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
+/**
+ * Collects draws during a frame and renders them on {@link #flush()}. Draws are recorded into a {@link CommandBuffer}
+ *  and sorted by program, fixed-function state, texture, material, mesh and then depth, so that draws of the same
+ *  material and mesh are rendered as one instanced draw and state changes are minimized. Within such a draw,
+ *  instances are ordered nearest first, or farthest first if the material has blending enabled. <br>
+ *
+ * Instance values are copied when drawn, so an instance object can be modified and drawn again right after. <br>
+ *
+ * The pipeline creates a VAO for each material and mesh drawn together. Call {@link #disposeMesh},
+ *  {@link #disposeMaterial} or {@link #dispose()} when they are no longer used, so that the VAOs are deleted.
+ */
 public class GraphicPipeline {
 
-    private Map<Material, Multimap<SubGroup, Material.Instance>> drawCalls = new HashMap<>();
+    private static final long INITIAL_INSTANCE_BUFFER_SIZE = 64 * 1024;
+
+    private final CommandBuffer<Material, SubGroup> commands = new CommandBuffer<>();
 
     private final StateContext context = new StateContext();
 
+    private final StateTracker stateTracker = new StateTracker();
+
+    // Created lazily, as the pipeline might be constructed before GL context is available
+    private final Supplier<StreamBuffer> instanceBuffer_ =
+            Lazy.withInitializer(() -> new StreamBuffer(INITIAL_INSTANCE_BUFFER_SIZE));
+
+    // One VAO per (Material, Mesh), with the per-vertex pointers and instance attribute setup done once. Weak, so
+    //  that the VAOs of collected materials and meshes are finalized and then deleted in flush().
+    private final Map<Material, Map<Material.Mesh, VAO>> vaos = new WeakHashMap<>();
+
+    // Sort key ids. States and textures are renumbered once they run out of key bits.
+    private final Map<Material, MaterialEntry> materialEntries = new WeakHashMap<>();
+    private int materialCount = 0;
+    private final Map<Long, Integer> stateIDs = new HashMap<>();
+    private final Map<Integer, Integer> textureIDs = new HashMap<>();
+
+    // Ids of sub groups, which are stored on their meshes
+    private static int subGroupCount = 0;
+
+    private int frame = 0;
+    private float depthRange = 256;
+
+    private final GLBackend backend = new GLBackend();
+
+    private final FrameStats lastFrame = new FrameStats();
+
     public void draw(Material mat, Material.Mesh mesh, Material.Instance instance) {
-        put(mat, new SubGroup(mesh, true, -1), instance);
+        put(mat, subGroup(mesh, -1), instance, 0);
     }
 
     public void draw(Material mat, Material.Mesh mesh, Material.Instance instance, int subMeshIndex) {
-        put(mat, new SubGroup(mesh, false, subMeshIndex), instance);
+        put(mat, subGroup(mesh, subMeshIndex), instance, 0);
+    }
+
+    /**
+     * Draws with given depth (e.g. distance to camera). Draws of the same material and mesh are ordered by depth
+     *  within {@link #setDepthRange(float) depth range}: nearest first, or farthest first (back to front) if the
+     *  material has blending enabled.
+     * @param subMeshIndex The sub mesh to draw, or -1 to draw the whole mesh
+     */
+    public void draw(Material mat, Material.Mesh mesh, Material.Instance instance, int subMeshIndex, float depth) {
+        put(mat, subGroup(mesh, subMeshIndex), instance, depth);
+    }
+
+    /**
+     * Sets the depth mapped to the farthest sort key. Greater depths are sorted as if they were at the range.
+     */
+    public void setDepthRange(float range) {
+        depthRange = range;
     }
 
     /**
@@ -43,119 +101,317 @@ public class GraphicPipeline {
         return context;
     }
 
-    private void put(Material mat, SubGroup group, Material.Instance instance) {
-        if (!drawCalls.containsKey(mat)) {
-            drawCalls.put(mat, ArrayListMultimap.create());
+    private void put(Material mat, SubGroup group, Material.Instance instance, float depth) {
+        MaterialEntry entry = materialEntries.get(mat);
+        if (entry == null) {
+            entry = new MaterialEntry(materialCount++);
+            materialEntries.put(mat, entry);
+        }
+        if (entry.frame != frame) {
+            // States might have changed since last frame
+            entry.frame = frame;
+            StateContext state = mat.stateContext();
+            int stateID = stateIDs.computeIfAbsent(state.stateKey(), k -> stateIDs.size());
+            int textureID = textureIDs.computeIfAbsent(state.getTexBinding2D(0), k -> textureIDs.size());
+            entry.keyPrefix = CommandBuffer.key(mat.program.getProgramID(), stateID, textureID, entry.id, 0, 0);
+            entry.backToFront = state.isBlendEnabled();
+        }
+
+        float clamped = Math.max(0, Math.min(1, depth / depthRange));
+        if (entry.backToFront) {
+            clamped = 1 - clamped;
         }
+        int quantizedDepth = (int) (clamped * ((1 << CommandBuffer.DEPTH_BITS) - 1));
+        long key = entry.keyPrefix | CommandBuffer.key(0, 0, 0, 0, group.id, quantizedDepth);
 
-        drawCalls.get(mat).put(group, instance);
+        commands.add(key, mat, group, instance.values, 0, instance.values.length);
+    }
+
+    private SubGroup subGroup(Material.Mesh mesh, int subMeshIndex) {
+        SubGroup ret = mesh.drawGroups.get(subMeshIndex);
+        if (ret == null) {
+            ret = new SubGroup(mesh, subMeshIndex == -1, subMeshIndex, subGroupCount++);
+            mesh.drawGroups.put(subMeshIndex, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return Statistics of the last {@link #flush()}
+     */
+    public FrameStats getLastFrameStats() {
+        return lastFrame;
+    }
+
+    /**
+     * Deletes the VAOs of given mesh and forgets it. Must be called in the GL thread, outside of a frame.
+     */
+    public void disposeMesh(Material.Mesh mesh) {
+        for (Map<Material.Mesh, VAO> matVAOs : vaos.values()) {
+            VAO vao = matVAOs.remove(mesh);
+            if (vao != null) {
+                vao.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the VAOs of given material and forgets it. Must be called in the GL thread, outside of a frame.
+     */
+    public void disposeMaterial(Material mat) {
+        Map<Material.Mesh, VAO> matVAOs = vaos.remove(mat);
+        if (matVAOs != null) {
+            matVAOs.values().forEach(VAO::delete);
+        }
+        materialEntries.remove(mat);
+    }
+
+    /**
+     * Deletes all VAOs created by this pipeline. The pipeline can still be used afterwards, and creates them again
+     *  as needed. Must be called in the GL thread, outside of a frame.
+     */
+    public void dispose() {
+        for (Map<Material.Mesh, VAO> matVAOs : vaos.values()) {
+            matVAOs.values().forEach(VAO::delete);
+        }
+        vaos.clear();
+        materialEntries.clear();
+        stateIDs.clear();
+        textureIDs.clear();
+        VAO.deleteCollected();
     }
 
     public void flush() {
-        for (Material mat : drawCalls.keySet()) {
-            glUseProgram(mat.program.getProgramID());
+        ++frame;
+        VAO.deleteCollected();
+
+        // Sort keys are rebuilt every frame, so ids can be reassigned from the next frame on
+        if (stateIDs.size() > 1 << CommandBuffer.STATE_BITS) {
+            stateIDs.clear();
+        }
+        if (textureIDs.size() > 1 << CommandBuffer.TEXTURE_BITS) {
+            textureIDs.clear();
+        }
+
+        if (commands.size() == 0) {
+            lastFrame.reset();
+            return;
+        }
+
+        StreamBuffer instanceBuffer = instanceBuffer_.get();
+        long bytesBefore = instanceBuffer.getBytesUploaded();
+        int orphansBefore = instanceBuffer.getOrphanCount();
+        int buffersBefore = GLBuffer.getCreatedCount(), vaosBefore = VAO.getCreatedCount();
+
+        // GL state might have been changed by others since last flush
+        stateTracker.invalidate();
+        stateTracker.resetCounters();
+
+        backend.begin(instanceBuffer);
+        commands.execute(backend);
+        backend.end();
+
+        lastFrame.bytesUploaded = instanceBuffer.getBytesUploaded() - bytesBefore;
+        lastFrame.orphans = instanceBuffer.getOrphanCount() - orphansBefore;
+        lastFrame.buffersCreated = GLBuffer.getCreatedCount() - buffersBefore;
+        lastFrame.vaosCreated = VAO.getCreatedCount() - vaosBefore;
+        lastFrame.drawCalls = commands.getLastBatchCount();
+        lastFrame.materialBinds = commands.getLastBindCount();
+        lastFrame.stateCalls = stateTracker.getCallsIssued();
+        lastFrame.stateCallsSaved = stateTracker.getCallsSaved();
+    }
+
+    /**
+     * Executes sorted commands with GL.
+     */
+    private class GLBackend implements CommandBuffer.Backend<Material, SubGroup> {
+
+        StreamBuffer instanceBuffer;
+        int boundProgram;
+
+        void begin(StreamBuffer buffer) {
+            instanceBuffer = buffer;
+            boundProgram = -1;
+        }
+
+        @Override
+        public void bind(Material mat) {
+            int program = mat.program.getProgramID();
+            if (program != boundProgram) {
+                glUseProgram(program);
+                boundProgram = program;
+            }
             // --------- Update states and uniforms -----------
-            context.apply();
-            mat.stateContext().apply();
+            stateTracker.apply(context, mat.stateContext());
             mat.updateUniforms();
             // -------------------------------------------------
+        }
 
-            Multimap<SubGroup, Material.Instance> thisMatDraws = drawCalls.get(mat);
+        @Override
+        public void draw(Material mat, SubGroup group, float[] data, int floats, int instances) {
+            Material.Mesh mesh = group.mesh;
 
-            GLBuffer instanceVBO = GLBuffer.create();
-            VAO vao = VAO.create();
-            glBindVertexArray(vao.getID());
+            glBindVertexArray(getVAO(mat, mesh).getID());
 
-            // Per-instance data pointer
-            glBindBuffer(GL_ARRAY_BUFFER, instanceVBO.getID());
+            // Append instance data to the stream buffer
+            FloatBuffer buffer = instanceBuffer.stage(floats);
+            buffer.put(data, 0, floats);
+            long offset = instanceBuffer.upload();
 
+            // Per-instance data pointer, into this draw's range of the stream buffer
             for (Material.Layout layout : mat.instanceLayouts) {
-                glEnableVertexAttribArray(layout.location);
                 glVertexAttribPointer(layout.location, layout.attrType.dimension, GL_FLOAT, false,
                         mat.instanceFloats * 4,
-                        layout.floatPadding * 4);
-                glVertexAttribDivisor(layout.location, 1);
+                        offset + layout.floatPadding * 4);
             }
-
             glBindBuffer(GL_ARRAY_BUFFER, 0);
 
-            for (SubGroup group : thisMatDraws.keySet()) {
-                Material.Mesh mesh = group.mesh;
-                Collection<Material.Instance> instances = thisMatDraws.get(group);
-
-                // Per-vertex data pointer
-                glBindBuffer(GL_ARRAY_BUFFER, mesh.getVBO().getID());
-                for (Material.Layout layout : mat.vertexLayouts) {
-                    glEnableVertexAttribArray(layout.location);
-                    glVertexAttribPointer(layout.location, layout.attrType.dimension, GL_FLOAT, false,
-                            mat.vertexFloats * 4,
-                            layout.floatPadding * 4);
-                    glVertexAttribDivisor(layout.location, 0);
-                }
-                glBindBuffer(GL_ARRAY_BUFFER, 0);
-
-                // Update instance bufffer
-                FloatBuffer buffer = BufferUtils.createFloatBuffer(mat.instanceFloats * instances.size());
-                for (Material.Instance i : instances) {
-                    buffer.put(i.values);
-                }
-                buffer.flip();
-
-                glBindBuffer(GL_ARRAY_BUFFER, instanceVBO.getID());
-                glBufferData(GL_ARRAY_BUFFER, buffer, GL_DYNAMIC_DRAW);
-                glBindBuffer(GL_ARRAY_BUFFER, 0);
-
-                // Bind IBO
-                glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, group.getIBO().getID());
-
-                glDrawElementsInstanced(GL_TRIANGLES, mesh.getIndiceCount(), GL_UNSIGNED_INT, 0, instances.size());
-
-                glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
-            }
+            // Bind IBO
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, group.getIBO().getID());
+
+            glDrawElementsInstanced(GL_TRIANGLES, mesh.getIndiceCount(), GL_UNSIGNED_INT, 0, instances);
+        }
 
+        void end() {
             glBindVertexArray(0);
             glUseProgram(0);
+            instanceBuffer = null;
         }
+    }
 
-        drawCalls.clear();
+    private VAO getVAO(Material mat, Material.Mesh mesh) {
+        Map<Material.Mesh, VAO> matVAOs = vaos.computeIfAbsent(mat, m -> new WeakHashMap<>());
+        VAO ret = matVAOs.get(mesh);
+        if (ret == null) {
+            ret = VAO.create();
+            glBindVertexArray(ret.getID());
+
+            // Per-vertex data pointer. The mesh's VBO keeps its ID when vertices are re-uploaded.
+            glBindBuffer(GL_ARRAY_BUFFER, mesh.getVBO().getID());
+            for (Material.Layout layout : mat.vertexLayouts) {
+                glEnableVertexAttribArray(layout.location);
+                glVertexAttribPointer(layout.location, layout.attrType.dimension, GL_FLOAT, false,
+                        mat.vertexFloats * 4,
+                        layout.floatPadding * 4);
+                glVertexAttribDivisor(layout.location, 0);
+            }
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+            // Per-instance attributes, the pointers are set at each draw
+            for (Material.Layout layout : mat.instanceLayouts) {
+                glEnableVertexAttribArray(layout.location);
+                glVertexAttribDivisor(layout.location, 1);
+            }
+
+            matVAOs.put(mesh, ret);
+        }
+        return ret;
     }
 
-    private class SubGroup {
+    /**
+     * Per-frame counters of a pipeline, to make buffer churn and leaks visible.
+     */
+    public static class FrameStats {
+        long bytesUploaded;
+        int orphans, buffersCreated, vaosCreated, drawCalls, materialBinds, stateCalls, stateCallsSaved;
 
-        final Material.Mesh mesh;
-        final boolean all;
-        final int iboID;
+        void reset() {
+            bytesUploaded = 0;
+            orphans = buffersCreated = vaosCreated = drawCalls = materialBinds = stateCalls = stateCallsSaved = 0;
+        }
 
-        SubGroup(Material.Mesh mesh, boolean all, int iboID) {
-            this.mesh = mesh;
-            this.all = all;
-            this.iboID = iboID;
+        /**
+         * @return Bytes of instance data uploaded
+         */
+        public long getBytesUploaded() {
+            return bytesUploaded;
         }
 
-        GLBuffer getIBO() {
-            return all ? mesh.getIBOAll() : mesh.getIBOSub(iboID);
+        /**
+         * @return How many times the instance buffer's storage was orphaned
+         */
+        public int getOrphans() {
+            return orphans;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        /**
+         * @return GL buffers created during the frame, by any code. Should stay 0 in steady state.
+         */
+        public int getBuffersCreated() {
+            return buffersCreated;
+        }
+
+        /**
+         * @return VAOs created during the frame, by any code. Should stay 0 in steady state.
+         */
+        public int getVaosCreated() {
+            return vaosCreated;
+        }
+
+        public int getDrawCalls() {
+            return drawCalls;
+        }
 
-            SubGroup subGroup = (SubGroup) o;
+        /**
+         * @return How many times states and uniforms of a material were applied
+         */
+        public int getMaterialBinds() {
+            return materialBinds;
+        }
 
-            if (all != subGroup.all) return false;
-            if (iboID != subGroup.iboID) return false;
-            return mesh != null ? mesh.equals(subGroup.mesh) : subGroup.mesh == null;
+        /**
+         * @return Fixed-function state calls issued when binding materials
+         */
+        public int getStateCalls() {
+            return stateCalls;
+        }
+
+        /**
+         * @return Fixed-function state calls skipped because the state was already set
+         */
+        public int getStateCallsSaved() {
+            return stateCallsSaved;
         }
 
         @Override
-        public int hashCode() {
-            int result = mesh != null ? mesh.hashCode() : 0;
-            result = 31 * result + (all ? 1 : 0);
-            result = 31 * result + iboID;
-            return result;
+        public String toString() {
+            return "bytesUploaded=" + bytesUploaded + ", orphans=" + orphans + ", buffersCreated=" + buffersCreated +
+                    ", vaosCreated=" + vaosCreated + ", drawCalls=" + drawCalls + ", materialBinds=" + materialBinds +
+                    ", stateCalls=" + stateCalls + ", stateCallsSaved=" + stateCallsSaved;
         }
     }
 
+    private static class MaterialEntry {
+        final int id;
+        int frame = -1;
+        long keyPrefix;
+        boolean backToFront;
+
+        MaterialEntry(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A mesh or one of its sub meshes. Interned on the mesh, so compared by identity.
+     */
+    static class SubGroup {
+
+        final Material.Mesh mesh;
+        final boolean all;
+        final int iboID;
+        final int id;
+
+        SubGroup(Material.Mesh mesh, boolean all, int iboID, int id) {
+            this.mesh = mesh;
+            this.all = all;
+            this.iboID = iboID;
+            this.id = id;
+        }
+
+        GLBuffer getIBO() {
+            return all ? mesh.getIBOAll() : mesh.getIBOSub(iboID);
+        }
+    }
 
 }
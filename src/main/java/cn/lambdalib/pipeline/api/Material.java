@@ -15,12 +15,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.Supplier;
 
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_INT;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
 
 public class Material {
 
@@ -32,11 +35,18 @@ public class Material {
         return new Material(program, mapping);
     }
 
+    private static final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+
     final ShaderProgram program;
 
     final Map<String, Layout> layouts = new HashMap<>();
 
-    private final Map<String, Uniform> uniformLocations = new HashMap<>();
+    // Uniforms by slot. Values of a slot are stored at uniformOffsets[slot] in UniformBlock.values.
+    private final Map<String, Integer> uniformSlots = new HashMap<>();
+    private final int[] uniformLocations, uniformTypes, uniformOffsets, uniformFloats;
+    private final int uniformFloatCount;
+
+    private final List<UniformBuffer> uniformBuffers = new ArrayList<>();
 
     private final StateContext context = new StateContext();
 
@@ -47,7 +57,6 @@ public class Material {
     final int vertexFloats, instanceFloats;
 
     UniformBlock uniforms;
-    boolean uniformsChanged = false;
 
     private Material(ShaderProgram program, LayoutMapping mapping) {
         this.program = program;
@@ -62,6 +71,7 @@ public class Material {
             ByteBuffer nameBuffer = BufferUtils.createByteBuffer(glGetProgrami(program.getProgramID(),
                     GL_ACTIVE_UNIFORM_MAX_LENGTH));
 
+            List<Integer> locations = new ArrayList<>(), types = new ArrayList<>();
             for (int i = 0; i < uniformCount; ++i) {
                 nameBuffer.clear();
                 typeBuffer.clear();
@@ -71,9 +81,37 @@ public class Material {
                 glGetActiveUniform(program.getProgramID(), i, lenBuffer, sizeBuffer, typeBuffer, nameBuffer);
 
                 String name = toString(lenBuffer.get(), nameBuffer);
+                int location = glGetUniformLocation(program.getProgramID(), name);
+                // Members of uniform blocks have no location, they are set through UniformBuffer
+                if (location == -1) {
+                    continue;
+                }
+
+                // Arrays are reported as name[0], only their first element is supported
+                if (name.endsWith("[0]")) {
+                    name = name.substring(0, name.length() - 3);
+                }
 
-                uniformLocations.put(name, new Uniform(name, i));
+                uniformSlots.put(name, locations.size());
+                locations.add(location);
+                types.add(typeBuffer.get());
             }
+
+            int count = locations.size();
+            uniformLocations = new int[count];
+            uniformTypes = new int[count];
+            uniformOffsets = new int[count];
+            uniformFloats = new int[count];
+
+            int offset = 0;
+            for (int slot = 0; slot < count; ++slot) {
+                uniformLocations[slot] = locations.get(slot);
+                uniformTypes[slot] = types.get(slot);
+                uniformOffsets[slot] = offset;
+                uniformFloats[slot] = uniformFloats(uniformTypes[slot]);
+                offset += uniformFloats[slot];
+            }
+            uniformFloatCount = offset;
         }
 
 
@@ -130,6 +168,17 @@ public class Material {
         return sb.toString();
     }
 
+    private static int uniformFloats(int type) {
+        switch (type) {
+            case GL_FLOAT: case GL_INT: case GL_BOOL: case GL_SAMPLER_2D: return 1;
+            case GL_FLOAT_VEC2: return 2;
+            case GL_FLOAT_VEC3: return 3;
+            case GL_FLOAT_VEC4: return 4;
+            case GL_FLOAT_MAT4: return 16;
+            default: return 0; // Unsupported, can't be set
+        }
+    }
+
     private int calcFloats(List<Layout> list) {
         if (list.isEmpty()) {
             return 0;
@@ -159,21 +208,50 @@ public class Material {
         return Preconditions.checkNotNull(layouts.get(name), "Layout " + name + " doesn't exist");
     }
 
+    public boolean hasLayout(String name) {
+        return layouts.containsKey(name);
+    }
+
+    /**
+     * @return The slot of given uniform, to be used with the slot setters of {@link UniformBlock}
+     */
+    public int getUniformSlot(String name) {
+        return Preconditions.checkNotNull(uniformSlots.get(name), "Uniform " + name + " doesn't exist");
+    }
+
     /**
      * Update the uniforms in given {@link UniformBlock} into the material. The uploading process will take effect
-     *  just before the next time this material is used to render.
+     *  just before the next time this material is used to render. A block only needs to be set once, later changes
+     *  to its values are uploaded as well.
      */
     public void setUniforms(UniformBlock uniforms) {
+        Preconditions.checkArgument(uniforms.material() == this, "Uniform block of another material");
         this.uniforms = uniforms;
-        this.uniformsChanged = true;
+    }
+
+    /**
+     * Binds a shared uniform buffer to the uniform block of given name in this material's program. The buffer's
+     *  changes are uploaded before this material is used to render.
+     */
+    public void bindUniformBuffer(String blockName, UniformBuffer buffer) {
+        int index = glGetUniformBlockIndex(program.getProgramID(), blockName);
+        Preconditions.checkState(index != GL_INVALID_INDEX, "Uniform block " + blockName + " doesn't exist");
+
+        glUniformBlockBinding(program.getProgramID(), index, buffer.getBinding());
+        if (!uniformBuffers.contains(buffer)) {
+            uniformBuffers.add(buffer);
+        }
     }
 
     void updateUniforms() {
-        if (uniforms != null && uniformsChanged) {
-            for (Entry<Integer, UniformDispatcher> entry : uniforms.dispatcher.entrySet()) {
-                int index = entry.getKey();
-                entry.getValue().dispatch(index);
-            }
+        if (uniforms != null) {
+            // The program keeps the values of the last uploaded block, that might be another block of this material
+            //  or a block of another material using the same program.
+            uniforms.upload(program.lastUniforms != uniforms);
+            program.lastUniforms = uniforms;
+        }
+        for (int i = 0; i < uniformBuffers.size(); ++i) {
+            uniformBuffers.get(i).upload();
         }
     }
 
@@ -297,46 +375,154 @@ public class Material {
 
     }
 
-    private interface UniformDispatcher {
-
-        void dispatch(int idx);
-
-    }
-
     /**
-     * Stores uniform parameters to be uploaded to the material.
+     * Stores uniform parameters to be uploaded to the material. Values are kept in a preallocated float store, and
+     *  only the uniforms whose values changed since last upload are uploaded.
      */
     public class UniformBlock {
 
-        private final Map<Integer, UniformDispatcher> dispatcher = new HashMap<>();
+        private final float[] values = new float[uniformFloatCount];
+
+        // Bits by slot
+        private final long[] dirty = new long[(uniformLocations.length + 63) / 64],
+            set = new long[dirty.length];
 
         public UniformBlock setFloat(String id, float x) {
-            dispatcher.put(index(id), idx -> glUniform1f(idx, x));
-            return this;
+            return setFloat(getUniformSlot(id), x);
         }
 
         public UniformBlock setVec2(String id, float x, float y) {
-            dispatcher.put(index(id), idx -> glUniform2f(idx, x, y));
-            return this;
+            return setVec2(getUniformSlot(id), x, y);
         }
 
         public UniformBlock setVec3(String id, float x, float y, float z) {
-            dispatcher.put(index(id), idx -> glUniform3f(idx, x, y, z));
-            return this;
+            return setVec3(getUniformSlot(id), x, y, z);
+        }
+
+        public UniformBlock setVec4(String id, float x, float y, float z, float w) {
+            return setVec4(getUniformSlot(id), x, y, z, w);
         }
 
         public UniformBlock setMat4(String id, Matrix4f matrix) {
-            FloatBuffer buf = BufferUtils.createFloatBuffer(16);
-            matrix.store(buf);
-            buf.flip();
+            return setMat4(getUniformSlot(id), matrix);
+        }
 
-            dispatcher.put(index(id), idx -> glUniformMatrix4(idx, false, buf));
+        /**
+         * Sets an int, bool or sampler uniform.
+         */
+        public UniformBlock setInt(String id, int x) {
+            return setInt(getUniformSlot(id), x);
+        }
 
+        public UniformBlock setFloat(int slot, float x) {
+            Preconditions.checkArgument(uniformTypes[slot] == GL_FLOAT, "Uniform at slot " + slot + " is not a float");
+            int i = offset(slot, 1);
+            mark(slot, put(i, x));
             return this;
         }
 
-        private int index(String id) {
-            return Preconditions.checkNotNull(uniformLocations.get(id)).index;
+        public UniformBlock setVec2(int slot, float x, float y) {
+            int i = offset(slot, 2);
+            mark(slot, put(i, x) | put(i + 1, y));
+            return this;
+        }
+
+        public UniformBlock setVec3(int slot, float x, float y, float z) {
+            int i = offset(slot, 3);
+            mark(slot, put(i, x) | put(i + 1, y) | put(i + 2, z));
+            return this;
+        }
+
+        public UniformBlock setVec4(int slot, float x, float y, float z, float w) {
+            int i = offset(slot, 4);
+            mark(slot, put(i, x) | put(i + 1, y) | put(i + 2, z) | put(i + 3, w));
+            return this;
+        }
+
+        public UniformBlock setMat4(int slot, Matrix4f m) {
+            int i = offset(slot, 16);
+            boolean changed =
+                put(i,      m.m00) | put(i + 1,  m.m01) | put(i + 2,  m.m02) | put(i + 3,  m.m03) |
+                put(i + 4,  m.m10) | put(i + 5,  m.m11) | put(i + 6,  m.m12) | put(i + 7,  m.m13) |
+                put(i + 8,  m.m20) | put(i + 9,  m.m21) | put(i + 10, m.m22) | put(i + 11, m.m23) |
+                put(i + 12, m.m30) | put(i + 13, m.m31) | put(i + 14, m.m32) | put(i + 15, m.m33);
+            mark(slot, changed);
+            return this;
+        }
+
+        public UniformBlock setInt(int slot, int x) {
+            Preconditions.checkArgument(uniformTypes[slot] != GL_FLOAT, "Uniform at slot " + slot + " is a float");
+            int i = offset(slot, 1);
+            mark(slot, put(i, Float.intBitsToFloat(x)));
+            return this;
+        }
+
+        private int offset(int slot, int floats) {
+            Preconditions.checkArgument(uniformFloats[slot] == floats,
+                    "Uniform at slot " + slot + " is not of " + floats + " floats");
+            return uniformOffsets[slot];
+        }
+
+        private boolean put(int index, float value) {
+            if (Float.floatToRawIntBits(values[index]) != Float.floatToRawIntBits(value)) {
+                values[index] = value;
+                return true;
+            }
+            return false;
+        }
+
+        private void mark(int slot, boolean changed) {
+            int word = slot >>> 6;
+            long bit = 1L << slot;
+            if (changed || (set[word] & bit) == 0) {
+                dirty[word] |= bit;
+                set[word] |= bit;
+            }
+        }
+
+        private Material material() {
+            return Material.this;
+        }
+
+        /**
+         * @param all Whether to upload all uniforms that were set, instead of only the changed ones
+         */
+        private void upload(boolean all) {
+            long[] bits = all ? set : dirty;
+            for (int word = 0; word < bits.length; ++word) {
+                long remaining = bits[word];
+                while (remaining != 0) {
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                    remaining &= remaining - 1;
+                    uploadSlot(slot);
+                }
+                dirty[word] = 0;
+            }
+        }
+
+        private void uploadSlot(int slot) {
+            int location = uniformLocations[slot], i = uniformOffsets[slot];
+            switch (uniformTypes[slot]) {
+                case GL_FLOAT:
+                    glUniform1f(location, values[i]);
+                    break;
+                case GL_FLOAT_VEC2:
+                    glUniform2f(location, values[i], values[i + 1]);
+                    break;
+                case GL_FLOAT_VEC3:
+                    glUniform3f(location, values[i], values[i + 1], values[i + 2]);
+                    break;
+                case GL_FLOAT_VEC4:
+                    glUniform4f(location, values[i], values[i + 1], values[i + 2], values[i + 3]);
+                    break;
+                case GL_FLOAT_MAT4:
+                    matrixBuffer.clear();
+                    matrixBuffer.put(values, i, 16).flip();
+                    glUniformMatrix4(location, false, matrixBuffer);
+                    break;
+                default: // int, bool and samplers
+                    glUniform1i(location, Float.floatToRawIntBits(values[i]));
+            }
         }
 
     }
@@ -351,6 +537,9 @@ public class Material {
 
         private Map<Integer, SubMesh> subMeshes = new HashMap<>();
 
+        // Draw groups of the whole mesh (-1) and its sub meshes, see GraphicPipeline
+        final Map<Integer, GraphicPipeline.SubGroup> drawGroups = new HashMap<>();
+
         private boolean indicesChanged = true;
         private int indiceCount = 0;
 
@@ -459,14 +648,4 @@ public class Material {
 
     }
 
-    private class Uniform {
-        final String name;
-        final int index;
-
-        public Uniform(String name, int index) {
-            this.name = name;
-            this.index = index;
-        }
-    }
-
 }
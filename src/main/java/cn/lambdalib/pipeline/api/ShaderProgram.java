@@ -53,6 +53,9 @@ public class ShaderProgram {
 
     private final int programID;
 
+    // The uniform block whose values were last uploaded into this program
+    Material.UniformBlock lastUniforms;
+
     private ShaderProgram(int shaderID) {
         this.programID = shaderID;
     }
@@ -0,0 +1,244 @@
+package cn.lambdalib.pipeline.api;
+
+import cn.lambdalib.pipeline.core.GLBuffer;
+import cn.lambdalib.util.generic.Lazy;
+import com.google.common.base.Preconditions;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+/**
+ * A uniform buffer object laid out as a std140 uniform block, that can be shared by many materials, see
+ *  {@link Material#bindUniformBuffer(String, UniformBuffer)}. <br>
+ *
+ * Values are written into a float store, and only the changed range is uploaded before the next draw of a material
+ *  using this buffer. Each buffer owns a binding point for its lifetime.
+ */
+public class UniformBuffer {
+
+    private static int nextBinding = 0;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final Map<String, Integer> offsets;
+    private final Map<String, Integer> sizes;
+
+    private final float[] values;
+
+    // Changed range in floats, [dirtyMin, dirtyMax)
+    private int dirtyMin, dirtyMax;
+
+    private final int binding;
+
+    private final Supplier<GLBuffer> buffer_;
+    private FloatBuffer uploadBuffer;
+
+    private long bytesUploaded = 0;
+
+    private UniformBuffer(Builder builder) {
+        offsets = new HashMap<>(builder.offsets);
+        sizes = new HashMap<>(builder.sizes);
+        values = new float[(builder.size + 3) / 4];
+        dirtyMin = 0;
+        dirtyMax = values.length;
+        binding = nextBinding++;
+
+        // Created lazily, as the buffer might be constructed before GL context is available
+        buffer_ = Lazy.withInitializer(() -> {
+            GLBuffer ret = GLBuffer.create();
+            glBindBuffer(GL_UNIFORM_BUFFER, ret.getID());
+            glBufferData(GL_UNIFORM_BUFFER, values.length * 4, GL_DYNAMIC_DRAW);
+            glBindBuffer(GL_UNIFORM_BUFFER, 0);
+            glBindBufferBase(GL_UNIFORM_BUFFER, binding, ret.getID());
+            return ret;
+        });
+    }
+
+    /**
+     * @return The float offset of given member, to be used with the offset setters
+     */
+    public int getOffset(String name) {
+        return Preconditions.checkNotNull(offsets.get(name), "Member " + name + " doesn't exist");
+    }
+
+    /**
+     * @return The size of the block in bytes
+     */
+    public int getSize() {
+        return values.length * 4;
+    }
+
+    public int getBinding() {
+        return binding;
+    }
+
+    public UniformBuffer setFloat(String name, float x) {
+        return setFloat(offset(name, 1), x);
+    }
+
+    public UniformBuffer setVec2(String name, float x, float y) {
+        return setVec2(offset(name, 2), x, y);
+    }
+
+    public UniformBuffer setVec3(String name, float x, float y, float z) {
+        return setVec3(offset(name, 3), x, y, z);
+    }
+
+    public UniformBuffer setVec4(String name, float x, float y, float z, float w) {
+        return setVec4(offset(name, 4), x, y, z, w);
+    }
+
+    public UniformBuffer setMat4(String name, Matrix4f matrix) {
+        return setMat4(offset(name, 16), matrix);
+    }
+
+    public UniformBuffer setFloat(int offset, float x) {
+        put(offset, x);
+        return this;
+    }
+
+    public UniformBuffer setVec2(int offset, float x, float y) {
+        put(offset, x);
+        put(offset + 1, y);
+        return this;
+    }
+
+    public UniformBuffer setVec3(int offset, float x, float y, float z) {
+        put(offset, x);
+        put(offset + 1, y);
+        put(offset + 2, z);
+        return this;
+    }
+
+    public UniformBuffer setVec4(int offset, float x, float y, float z, float w) {
+        put(offset, x);
+        put(offset + 1, y);
+        put(offset + 2, z);
+        put(offset + 3, w);
+        return this;
+    }
+
+    public UniformBuffer setMat4(int offset, Matrix4f m) {
+        put(offset,      m.m00); put(offset + 1,  m.m01); put(offset + 2,  m.m02); put(offset + 3,  m.m03);
+        put(offset + 4,  m.m10); put(offset + 5,  m.m11); put(offset + 6,  m.m12); put(offset + 7,  m.m13);
+        put(offset + 8,  m.m20); put(offset + 9,  m.m21); put(offset + 10, m.m22); put(offset + 11, m.m23);
+        put(offset + 12, m.m30); put(offset + 13, m.m31); put(offset + 14, m.m32); put(offset + 15, m.m33);
+        return this;
+    }
+
+    private int offset(String name, int floats) {
+        int offset = getOffset(name);
+        Preconditions.checkArgument(sizes.get(name) == floats, "Member " + name + " is not of " + floats + " floats");
+        return offset;
+    }
+
+    private void put(int index, float value) {
+        if (Float.floatToRawIntBits(values[index]) != Float.floatToRawIntBits(value)) {
+            values[index] = value;
+            dirtyMin = Math.min(dirtyMin, index);
+            dirtyMax = Math.max(dirtyMax, index + 1);
+        }
+    }
+
+    /**
+     * @return Whether any value changed since last upload
+     */
+    public boolean isDirty() {
+        return dirtyMin < dirtyMax;
+    }
+
+    /**
+     * Uploads the changed range of values, if any.
+     */
+    public void upload() {
+        GLBuffer buffer = buffer_.get();
+        if (!isDirty()) {
+            return;
+        }
+
+        int count = dirtyMax - dirtyMin;
+        if (uploadBuffer == null) {
+            uploadBuffer = BufferUtils.createFloatBuffer(values.length);
+        }
+        uploadBuffer.clear();
+        uploadBuffer.put(values, dirtyMin, count).flip();
+
+        glBindBuffer(GL_UNIFORM_BUFFER, buffer.getID());
+        glBufferSubData(GL_UNIFORM_BUFFER, dirtyMin * 4L, uploadBuffer);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        bytesUploaded += count * 4L;
+        dirtyMin = Integer.MAX_VALUE;
+        dirtyMax = 0;
+    }
+
+    /**
+     * @return Total bytes uploaded so far
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * Declares the members of a uniform block, in the same order as in the shader. Offsets follow the std140 rules
+     *  for the supported types.
+     */
+    public static class Builder {
+
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private final Map<String, Integer> sizes = new HashMap<>();
+
+        // In bytes
+        private int size = 0;
+
+        private Builder() {}
+
+        public Builder addFloat(String name) {
+            return add(name, 4, 1);
+        }
+
+        public Builder addVec2(String name) {
+            return add(name, 8, 2);
+        }
+
+        public Builder addVec3(String name) {
+            return add(name, 16, 3);
+        }
+
+        public Builder addVec4(String name) {
+            return add(name, 16, 4);
+        }
+
+        public Builder addMat4(String name) {
+            return add(name, 16, 16);
+        }
+
+        private Builder add(String name, int alignment, int floats) {
+            Preconditions.checkState(!offsets.containsKey(name), "Duplicate member " + name);
+
+            size = (size + alignment - 1) / alignment * alignment;
+            offsets.put(name, size / 4);
+            sizes.put(name, floats);
+            size += floats * 4;
+            return this;
+        }
+
+        public UniformBuffer build() {
+            // The size of a block is rounded up to vec4
+            size = (size + 15) / 16 * 16;
+            return new UniformBuffer(this);
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package cn.lambdalib.pipeline.api.mc;
 
+import cn.lambdalib.pipeline.api.UniformBuffer;
 import cn.lambdalib.pipeline.core.RenderEventDispatch;
 import org.lwjgl.util.vector.Matrix4f;
 import org.lwjgl.util.vector.Vector3f;
@@ -55,4 +56,24 @@ public class EntityRenderUtils {
         return RenderEventDispatch.pvpMatrix;
     }
 
+    /**
+     * <summary>
+     *     Returns a uniform buffer holding the matrices of current frame, to be bound with
+     *     {@link cn.lambdalib.pipeline.api.Material#bindUniformBuffer}. It matches the block
+     * </summary>
+     * <pre>
+     * layout (std140) uniform Matrices {
+     *     mat4 projection;
+     *     mat4 player_view;
+     *     mat4 pvp;
+     * };
+     * </pre>
+     * <p>
+     *     The block can be named freely in the shader.
+     * </p>
+     */
+    public static UniformBuffer getMatrixBuffer() {
+        return RenderEventDispatch.matrices;
+    }
+
 }
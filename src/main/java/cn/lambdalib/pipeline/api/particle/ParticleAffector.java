@@ -1,20 +1,26 @@
 package cn.lambdalib.pipeline.api.particle;
 
+/**
+ * Modifies the particles of a {@link ParticleStore} every update. Works on ranges of the store's arrays, so that
+ *  large systems can be updated in parallel chunks.
+ */
 public interface ParticleAffector {
 
     /**
      * Called when a particle is added into given {@link ParticleSystem}.
+     * @param index The index of the new particle in the system's store
      */
-    default void init(ParticleSystem system, Particle particle) {
+    default void init(ParticleStore store, int index) {
 
     }
 
     /**
-     * Run the tick update for the affector.
-     * @param system the particle system updated on.
+     * Run the update for the particles in [from, to). Called after the particles' life and position have been
+     *  advanced. If the store updates in parallel, this is called concurrently for disjoint ranges, and must only
+     *  touch the particles in its range.
      * @param deltaTime time passed in second last frame.
      */
-    void update(ParticleSystem system, float deltaTime);
+    void update(ParticleStore store, int from, int to, float deltaTime);
 
     /**
      * @return Whether this affector is still valid. Invalid affector will be removed on frame update.
@@ -3,38 +3,45 @@ package cn.lambdalib.pipeline.api.particle;
 import cn.lambdalib.util.helper.Color;
 import org.lwjgl.util.vector.Vector3f;
 
+/**
+ * Describes a particle to be added with {@link ParticleSystem#add(ParticleBuilder)}. The values are copied into the
+ *  system's arrays, so a builder can be reused for any number of particles.
+ */
 public class ParticleBuilder {
 
     public static ParticleBuilder create() {
         return new ParticleBuilder();
     }
 
-    private final Vector3f
-            pos = new Vector3f(),
-            velocity = new Vector3f();
+    float x, y, z;
+    float vx, vy, vz;
 
-    private float size;
+    float size;
 
-    private final Color color = new Color();
+    float r = 1, g = 1, b = 1, a = 1;
+
+    float lifetime = Float.POSITIVE_INFINITY;
 
     public ParticleBuilder pos(float x, float y, float z) {
-        pos.set(x, y, z);
+        this.x = x;
+        this.y = y;
+        this.z = z;
         return this;
     }
 
     public ParticleBuilder pos(Vector3f v) {
-        pos.set(v);
-        return this;
+        return pos(v.x, v.y, v.z);
     }
 
     public ParticleBuilder velocity(float x, float y, float z) {
-        velocity.set(x, y, z);
+        vx = x;
+        vy = y;
+        vz = z;
         return this;
     }
 
     public ParticleBuilder velocity(Vector3f v) {
-        velocity.set(v);
-        return this;
+        return velocity(v.x, v.y, v.z);
     }
 
     public ParticleBuilder size(float sz) {
@@ -43,16 +50,37 @@ public class ParticleBuilder {
     }
 
     public ParticleBuilder color(Color c) {
-        color.from(c);
+        return color((float) c.r, (float) c.g, (float) c.b, (float) c.a);
+    }
+
+    public ParticleBuilder color(float r, float g, float b, float a) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.a = a;
+        return this;
+    }
+
+    /**
+     * @param seconds Time after which the particle is removed, infinite by default
+     */
+    public ParticleBuilder lifetime(float seconds) {
+        lifetime = seconds;
         return this;
     }
 
-    public Particle build() {
-        return new Particle(
-                new Vector3f(pos),
-                new Vector3f(velocity),
-                new Color().from(color),
-                size);
+    /**
+     * Appends a particle with this builder's values.
+     * @return The index of the particle
+     */
+    int addTo(ParticleStore store) {
+        int i = store.add(x, y, z, vx, vy, vz, size);
+        store.r[i] = r;
+        store.g[i] = g;
+        store.b[i] = b;
+        store.a[i] = a;
+        store.lifetime[i] = lifetime;
+        return i;
     }
 
     private ParticleBuilder() {}
@@ -0,0 +1,186 @@
+package cn.lambdalib.pipeline.api.particle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Structure-of-arrays storage and simulation of particles. Particle i's attributes are at index i of each array,
+ *  for i in [0, {@link #size()}). Dead particles are removed by moving the last particle into their place, so
+ *  indices are only stable between updates. <br>
+ *
+ * Doesn't depend on GL, so it can be updated and benchmarked headlessly.
+ */
+public class ParticleStore {
+
+    /**
+     * Particles per task of a parallel update.
+     */
+    private static final int PARALLEL_CHUNK = 4096;
+
+    // Position and velocity
+    public float[] x, y, z, vx, vy, vz;
+
+    // Color, each in [0, 1]
+    public float[] r, g, b, a;
+
+    public float[] size;
+
+    // Seconds since spawn, and seconds to live. A particle dies when life >= lifetime.
+    public float[] life, lifetime;
+
+    private int count = 0;
+
+    private int parallelThreshold = Integer.MAX_VALUE;
+
+    public ParticleStore() {
+        this(256);
+    }
+
+    public ParticleStore(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return x.length;
+    }
+
+    /**
+     * Updates with the fork/join common pool when at least given number of particles are alive. The affectors must
+     *  then be safe to run concurrently on disjoint ranges.
+     * @param threshold The particle count, or {@link Integer#MAX_VALUE} to always update serially (the default)
+     */
+    public void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Appends a particle with given attributes. Color is white, life is 0 and lifetime is infinite.
+     * @return The index of the particle
+     */
+    public int add(float px, float py, float pz, float pvx, float pvy, float pvz, float psize) {
+        if (count == x.length) {
+            grow(count * 2);
+        }
+
+        int i = count++;
+        x[i] = px; y[i] = py; z[i] = pz;
+        vx[i] = pvx; vy[i] = pvy; vz[i] = pvz;
+        r[i] = g[i] = b[i] = a[i] = 1;
+        size[i] = psize;
+        life[i] = 0;
+        lifetime[i] = Float.POSITIVE_INFINITY;
+        return i;
+    }
+
+    /**
+     * Marks the particle to be removed on next compaction.
+     */
+    public void kill(int i) {
+        lifetime[i] = 0;
+    }
+
+    public boolean isDead(int i) {
+        return life[i] >= lifetime[i];
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Integrates age and position of all particles, then runs the affectors over them and removes dead ones.
+     */
+    public void update(float deltaTime, List<ParticleAffector> affectors) {
+        if (count >= parallelThreshold) {
+            ForkJoinPool.commonPool().invoke(new UpdateTask(0, count, deltaTime, affectors));
+        } else {
+            updateRange(0, count, deltaTime, affectors);
+        }
+        compact();
+    }
+
+    private void updateRange(int from, int to, float dt, List<ParticleAffector> affectors) {
+        for (int i = from; i < to; ++i) {
+            life[i] += dt;
+            x[i] += vx[i] * dt;
+            y[i] += vy[i] * dt;
+            z[i] += vz[i] * dt;
+        }
+        for (int i = 0; i < affectors.size(); ++i) {
+            affectors.get(i).update(this, from, to, dt);
+        }
+    }
+
+    /**
+     * Removes dead particles by swapping the last alive particle into their place.
+     */
+    public void compact() {
+        int i = 0;
+        while (i < count) {
+            if (life[i] >= lifetime[i]) {
+                move(--count, i);
+            } else {
+                ++i;
+            }
+        }
+    }
+
+    private void move(int src, int dst) {
+        x[dst] = x[src]; y[dst] = y[src]; z[dst] = z[src];
+        vx[dst] = vx[src]; vy[dst] = vy[src]; vz[dst] = vz[src];
+        r[dst] = r[src]; g[dst] = g[src]; b[dst] = b[src]; a[dst] = a[src];
+        size[dst] = size[src];
+        life[dst] = life[src];
+        lifetime[dst] = lifetime[src];
+    }
+
+    private void allocate(int capacity) {
+        x = new float[capacity]; y = new float[capacity]; z = new float[capacity];
+        vx = new float[capacity]; vy = new float[capacity]; vz = new float[capacity];
+        r = new float[capacity]; g = new float[capacity]; b = new float[capacity]; a = new float[capacity];
+        size = new float[capacity];
+        life = new float[capacity];
+        lifetime = new float[capacity];
+    }
+
+    private void grow(int capacity) {
+        x = Arrays.copyOf(x, capacity); y = Arrays.copyOf(y, capacity); z = Arrays.copyOf(z, capacity);
+        vx = Arrays.copyOf(vx, capacity); vy = Arrays.copyOf(vy, capacity); vz = Arrays.copyOf(vz, capacity);
+        r = Arrays.copyOf(r, capacity); g = Arrays.copyOf(g, capacity);
+        b = Arrays.copyOf(b, capacity); a = Arrays.copyOf(a, capacity);
+        size = Arrays.copyOf(size, capacity);
+        life = Arrays.copyOf(life, capacity);
+        lifetime = Arrays.copyOf(lifetime, capacity);
+    }
+
+    private class UpdateTask extends RecursiveAction {
+
+        final int from, to;
+        final float dt;
+        final List<ParticleAffector> affectors;
+
+        UpdateTask(int from, int to, float dt, List<ParticleAffector> affectors) {
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+            this.affectors = affectors;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                updateRange(from, to, dt, affectors);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new UpdateTask(from, mid, dt, affectors), new UpdateTask(mid, to, dt, affectors));
+            }
+        }
+    }
+
+}
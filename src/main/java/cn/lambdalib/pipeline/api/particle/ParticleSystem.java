@@ -2,18 +2,22 @@ package cn.lambdalib.pipeline.api.particle;
 
 import cn.lambdalib.pipeline.api.GraphicPipeline;
 import cn.lambdalib.pipeline.api.Material;
+import cn.lambdalib.pipeline.api.Material.Instance;
 import cn.lambdalib.pipeline.api.Material.Layout;
 import cn.lambdalib.pipeline.api.Material.Mesh;
 import cn.lambdalib.pipeline.api.Material.MeshType;
 import cn.lambdalib.pipeline.api.Material.Vertex;
 
 import javax.vecmath.Matrix4f;
-import javax.vecmath.Vector3f;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * A set of particles sharing a material and affectors. Particles are kept in a {@link ParticleStore}. <br>
+ *
+ * When rendering, each particle is drawn as an instance, with the instance layouts "offset" (vec3), "size"
+ *  (float), "color" (vec3) and "alpha" (float) filled from the particle if the material has them.
+ */
 public class ParticleSystem {
 
     public static Builder builder(Material material) {
@@ -29,22 +33,31 @@ public class ParticleSystem {
     private final Material material;
     private final RenderMode mode;
     private final List<ParticleAffector> affectors;
-    private final List<Particle> particles = new ArrayList<>();
+    private final ParticleStore store = new ParticleStore();
 
     private final Mesh mesh;
 
     private final Matrix4f viewMatrix = new Matrix4f();
 
     private final Layout l_viewMatrix;
+    private final Layout l_offset, l_size, l_color, l_alpha;
+
+    private final Instance instance;
 
     public ParticleSystem(Material material, RenderMode mode, List<ParticleAffector> affectors) {
         this.material = material;
         this.mode = mode;
-        this.affectors = affectors;
+        this.affectors = new ArrayList<>(affectors); // Invalid affectors are removed in update
 
         mesh = material.newMesh(MeshType.STATIC);
 
         l_viewMatrix = material.getLayout("viewMatrix");
+        l_offset = optLayout("offset");
+        l_size = optLayout("size");
+        l_color = optLayout("color");
+        l_alpha = optLayout("alpha");
+
+        instance = material.newInstance();
 
         float s = 0.5f;
         mesh.setVertices(
@@ -55,6 +68,10 @@ public class ParticleSystem {
         );
     }
 
+    private Layout optLayout(String name) {
+        return material.hasLayout(name) ? material.getLayout(name) : null;
+    }
+
     private Vertex vert(float x, float y) {
         Layout l_position = material.getLayout("position"), l_uv = material.getLayout("uv");
 
@@ -69,45 +86,60 @@ public class ParticleSystem {
 
     /**
      * Adds a particle.
+     * @return The index of the particle in the store, valid until next update
      */
-    public void add(Particle particle) {
-        affectors.forEach(a -> a.init(this, particle));
-
-        particles.add(particle);
+    public int add(ParticleBuilder builder) {
+        int index = builder.addTo(store);
+        for (int i = 0; i < affectors.size(); ++i) {
+            affectors.get(i).init(store, index);
+        }
+        return index;
     }
 
     /**
-     * @return A view of current particles. The removal of list elements is prohibited and leads to undefined result.
+     * @return The storage of current particles. Particles can be modified or killed, but not removed directly.
      */
-    public List<Particle> getParticles() {
-        return particles;
+    public ParticleStore getStore() {
+        return store;
     }
 
+    /**
+     * Sets the particle count from which updates run in parallel, see {@link ParticleStore#setParallelThreshold}.
+     */
+    public void setParallelThreshold(int threshold) {
+        store.setParallelThreshold(threshold);
+    }
 
     /**
-     * Runs the update for this ParticleSystem. All {@link ParticleAffector}s will be updated and removed if invalid.
+     * Runs the update for this ParticleSystem. All {@link ParticleAffector}s will be updated and removed if invalid,
+     *  and dead particles are removed.
      * @param deltaTime deltaTime of last frame
      */
     public void update(float deltaTime) {
-        particles.forEach(p -> p.update(deltaTime));
-
-        affectors.forEach(affector -> affector.update(this, deltaTime));
+        affectors.removeIf(affector -> !affector.isValid());
 
-        Iterator<Particle> iter = particles.iterator();
-        while (iter.hasNext()) {
-            Particle p = iter.next();
-            if (p.dead) {
-                iter.remove();
-            }
-        }
+        store.update(deltaTime, affectors);
     }
 
     /**
      * Forwards the rendering data of this particle system to given {@link GraphicPipeline}.
      */
     public void render(GraphicPipeline target) {
-        for (Particle p : particles) {
-            target.draw(material, mesh, material.newInstance());
+        for (int i = 0; i < store.size(); ++i) {
+            if (l_offset != null) {
+                instance.setVec3(l_offset, store.x[i], store.y[i], store.z[i]);
+            }
+            if (l_size != null) {
+                instance.setFloat(l_size, store.size[i]);
+            }
+            if (l_color != null) {
+                instance.setVec3(l_color, store.r[i], store.g[i], store.b[i]);
+            }
+            if (l_alpha != null) {
+                instance.setFloat(l_alpha, store.a[i]);
+            }
+            // Values are copied by the pipeline, so the instance is reused
+            target.draw(material, mesh, instance);
         }
     }
 
@@ -116,7 +148,7 @@ public class ParticleSystem {
 
         private final Material material;
         private RenderMode mode = RenderMode.Billboard;
-        private final List<ParticleAffector> affectors = new LinkedList<>();
+        private final List<ParticleAffector> affectors = new ArrayList<>();
 
         public Builder(Material material) {
             this.material = material;
@@ -0,0 +1,32 @@
+package cn.lambdalib.pipeline.api.particle.affector;
+
+import cn.lambdalib.pipeline.api.particle.ParticleAffector;
+import cn.lambdalib.pipeline.api.particle.ParticleStore;
+
+/**
+ * Fades particles out linearly over the last part of their lifetime. Particles with infinite lifetime are not
+ *  affected.
+ */
+public class AffectorFade implements ParticleAffector {
+
+    private final float duration;
+
+    /**
+     * @param duration Seconds before death at which fading starts
+     */
+    public AffectorFade(float duration) {
+        this.duration = duration;
+    }
+
+    @Override
+    public void update(ParticleStore store, int from, int to, float deltaTime) {
+        float[] life = store.life, lifetime = store.lifetime, a = store.a;
+        for (int i = from; i < to; ++i) {
+            float remaining = lifetime[i] - life[i];
+            if (remaining < duration) {
+                a[i] = Math.max(0, remaining / duration);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package cn.lambdalib.pipeline.api.particle.affector;
+
+import cn.lambdalib.pipeline.api.particle.ParticleAffector;
+import cn.lambdalib.pipeline.api.particle.ParticleStore;
+
+/**
+ * Accelerates particles downwards.
+ */
+public class AffectorGravity implements ParticleAffector {
+
+    private final float acceleration;
+
+    /**
+     * @param acceleration Downward acceleration in blocks per second squared
+     */
+    public AffectorGravity(float acceleration) {
+        this.acceleration = acceleration;
+    }
+
+    @Override
+    public void update(ParticleStore store, int from, int to, float deltaTime) {
+        float dv = acceleration * deltaTime;
+        float[] vy = store.vy;
+        for (int i = from; i < to; ++i) {
+            vy[i] -= dv;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package cn.lambdalib.pipeline.api.state;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+
+/**
+ * The fixed-function GL calls issued by {@link StateTracker}. Replaceable so that state changes can be recorded
+ *  and tested without a GL context.
+ */
+public interface GLCallSink {
+
+    /**
+     * Issues the calls to GL directly.
+     */
+    GLCallSink DIRECT = new GLCallSink() {
+        @Override
+        public void enable(int cap) {
+            glEnable(cap);
+        }
+
+        @Override
+        public void disable(int cap) {
+            glDisable(cap);
+        }
+
+        @Override
+        public void alphaFunc(int func, float ref) {
+            glAlphaFunc(func, ref);
+        }
+
+        @Override
+        public void cullFace(int mode) {
+            glCullFace(mode);
+        }
+
+        @Override
+        public void blendFunc(int src, int dst) {
+            glBlendFunc(src, dst);
+        }
+
+        @Override
+        public void activeTexture(int texture) {
+            glActiveTexture(texture);
+        }
+
+        @Override
+        public void bindTexture(int target, int texture) {
+            glBindTexture(target, texture);
+        }
+    };
+
+    void enable(int cap);
+
+    void disable(int cap);
+
+    void alphaFunc(int func, float ref);
+
+    void cullFace(int mode);
+
+    void blendFunc(int src, int dst);
+
+    void activeTexture(int texture);
+
+    void bindTexture(int target, int texture);
+
+}
@@ -7,16 +7,21 @@ import net.minecraft.client.renderer.texture.SimpleTexture;
 import net.minecraft.client.renderer.texture.TextureManager;
 import net.minecraft.util.ResourceLocation;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
 
+/**
+ * Fixed-function GL states of a material or pipeline. Applied through a {@link StateTracker}, which only issues the
+ *  calls for states that changed.
+ */
 public class StateContext {
 
+    static final int UNBOUND = -1;
+    static final int[] NO_TEXTURES = new int[0];
+
     public enum AlphaTestMode {
         Less(GL_LESS), LessEqual(GL_LEQUAL), Equal(GL_EQUAL),
         Greater(GL_GREATER), GreaterEqual(GL_GEQUAL);
@@ -52,17 +57,19 @@ public class StateContext {
         }
     }
 
-    private boolean a_enabled = true;
-    private AlphaTestMode a_mode = AlphaTestMode.GreaterEqual;
-    private float a_ref = 0.1f;
+    boolean a_enabled = true;
+    AlphaTestMode a_mode = AlphaTestMode.GreaterEqual;
+    float a_ref = 0.1f;
 
-    private boolean cf_enabled = true;
-    private CullFaceMode cf_mode = CullFaceMode.Back;
+    boolean cf_enabled = true;
+    CullFaceMode cf_mode = CullFaceMode.Back;
 
-    private boolean blend_enabled = true;
-    private BlendFunction blend_src_func = BlendFunction.SrcAlpha, blend_dst_func = BlendFunction.OneMinusSrcAlpha;
+    boolean blend_enabled = true;
+    BlendFunction blend_src_func = BlendFunction.SrcAlpha, blend_dst_func = BlendFunction.OneMinusSrcAlpha;
 
-    private Map<Integer, Integer> texBind2D = new HashMap<>();
+    // Texture by unit, UNBOUND for units that are left untouched
+    int[] texBind2D = NO_TEXTURES;
+    private int boundUnits = 0;
 
     public void setAlphaTestEnabled(boolean enabled) {
         a_enabled = enabled;
@@ -82,7 +89,15 @@ public class StateContext {
     }
 
     public void setTexBinding2D(int binding, int textureID) {
-        texBind2D.put(binding, textureID);
+        if (binding >= texBind2D.length) {
+            int oldLength = texBind2D.length;
+            texBind2D = Arrays.copyOf(texBind2D, binding + 1);
+            Arrays.fill(texBind2D, oldLength, texBind2D.length, UNBOUND);
+        }
+        if (texBind2D[binding] == UNBOUND) {
+            ++boundUnits;
+        }
+        texBind2D[binding] = textureID;
     }
 
     public void setTexBinding2D(int binding, ResourceLocation texture) {
@@ -105,6 +120,37 @@ public class StateContext {
         blend_dst_func = dstFunc;
     }
 
+    public boolean isBlendEnabled() {
+        return blend_enabled;
+    }
+
+    /**
+     * @return The texture bound to given unit, or 0 if none
+     */
+    public int getTexBinding2D(int binding) {
+        return binding < texBind2D.length && texBind2D[binding] != UNBOUND ? texBind2D[binding] : 0;
+    }
+
+    /**
+     * @return A value that is equal for two contexts iff their alpha test, cull face and blend states are equal.
+     *  Texture bindings are not included.
+     */
+    public long stateKey() {
+        long ret = a_enabled ? 1 : 0;
+        ret = (ret << 3) | a_mode.ordinal();
+        ret = (ret << 32) | (Float.floatToIntBits(a_ref) & 0xFFFFFFFFL);
+        ret = (ret << 1) | (cf_enabled ? 1 : 0);
+        ret = (ret << 1) | cf_mode.ordinal();
+        ret = (ret << 1) | (blend_enabled ? 1 : 0);
+        ret = (ret << 4) | blend_src_func.ordinal();
+        ret = (ret << 4) | blend_dst_func.ordinal();
+        return ret;
+    }
+
+    /**
+     * Sets all states unconditionally. Prefer {@link StateTracker#apply(StateContext)} when applying many contexts
+     *  in a row.
+     */
     public void apply() {
         if (a_enabled) {
             glEnable(GL_ALPHA_TEST);
@@ -127,15 +173,26 @@ public class StateContext {
             glDisable(GL_BLEND);
         }
 
-        if (!texBind2D.isEmpty()) {
-            for (Entry<Integer, Integer> entry : texBind2D.entrySet()) {
-                int binding = entry.getKey();
-                int texture = entry.getValue();
-                glActiveTexture(GL_TEXTURE0 + binding);
-                glBindTexture(GL_TEXTURE_2D, texture);
+        if (boundUnits > 0) {
+            for (int binding = 0; binding < texBind2D.length; ++binding) {
+                if (texBind2D[binding] != UNBOUND) {
+                    glActiveTexture(GL_TEXTURE0 + binding);
+                    glBindTexture(GL_TEXTURE_2D, texBind2D[binding]);
+                }
             }
             glActiveTexture(GL_TEXTURE0);
         }
     }
 
+    /**
+     * @return The number of GL calls {@link #apply()} issues
+     */
+    int callCount() {
+        int ret = (a_enabled ? 2 : 1) + (cf_enabled ? 2 : 1) + (blend_enabled ? 2 : 1);
+        if (boundUnits > 0) {
+            ret += boundUnits * 2 + 1;
+        }
+        return ret;
+    }
+
 }
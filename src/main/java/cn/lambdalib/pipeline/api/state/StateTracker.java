@@ -0,0 +1,163 @@
+package cn.lambdalib.pipeline.api.state;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+
+/**
+ * Shadows the GL state set by {@link StateContext}s, so that applying a context only issues the calls for states
+ *  that differ from what is currently set. <br>
+ *
+ * The tracker assumes that no one else changes these states between its calls. Code outside of its control (e.g.
+ *  vanilla rendering) does, so {@link #invalidate()} it before use in each frame.
+ */
+public class StateTracker {
+
+    private static final int UNKNOWN = -1;
+
+    private final GLCallSink gl;
+
+    private int alphaTest, alphaFunc;
+    private float alphaRef;
+
+    private int cullFace, cullMode;
+
+    private int blend, blendSrc, blendDst;
+
+    private int activeUnit;
+    private int[] boundTex2D = new int[0];
+
+    private int callsIssued, callsSaved;
+
+    public StateTracker() {
+        this(GLCallSink.DIRECT);
+    }
+
+    public StateTracker(GLCallSink sink) {
+        gl = sink;
+        invalidate();
+    }
+
+    /**
+     * Forgets all known state, so that next apply sets everything.
+     */
+    public void invalidate() {
+        alphaTest = alphaFunc = UNKNOWN;
+        alphaRef = Float.NaN;
+        cullFace = cullMode = UNKNOWN;
+        blend = blendSrc = blendDst = UNKNOWN;
+        activeUnit = UNKNOWN;
+        Arrays.fill(boundTex2D, UNKNOWN);
+    }
+
+    public void apply(StateContext context) {
+        apply(null, context);
+    }
+
+    /**
+     * Applies a context on top of a default context. States of the context override the default, texture units
+     *  that are not bound in the context are bound as in the default.
+     * @param base The default context, can be null
+     */
+    public void apply(StateContext base, StateContext context) {
+        int issuedBefore = callsIssued;
+
+        setCap(GL_ALPHA_TEST, context.a_enabled, alphaTest);
+        alphaTest = context.a_enabled ? 1 : 0;
+        if (context.a_enabled && (alphaFunc != context.a_mode.func || alphaRef != context.a_ref)) {
+            gl.alphaFunc(context.a_mode.func, context.a_ref);
+            alphaFunc = context.a_mode.func;
+            alphaRef = context.a_ref;
+            ++callsIssued;
+        }
+
+        setCap(GL_CULL_FACE, context.cf_enabled, cullFace);
+        cullFace = context.cf_enabled ? 1 : 0;
+        if (context.cf_enabled && cullMode != context.cf_mode.func) {
+            gl.cullFace(context.cf_mode.func);
+            cullMode = context.cf_mode.func;
+            ++callsIssued;
+        }
+
+        setCap(GL_BLEND, context.blend_enabled, blend);
+        blend = context.blend_enabled ? 1 : 0;
+        if (context.blend_enabled &&
+                (blendSrc != context.blend_src_func.func || blendDst != context.blend_dst_func.func)) {
+            gl.blendFunc(context.blend_src_func.func, context.blend_dst_func.func);
+            blendSrc = context.blend_src_func.func;
+            blendDst = context.blend_dst_func.func;
+            ++callsIssued;
+        }
+
+        int[] baseTex = base == null ? StateContext.NO_TEXTURES : base.texBind2D;
+        int[] tex = context.texBind2D;
+        int units = Math.max(baseTex.length, tex.length);
+        if (boundTex2D.length < units) {
+            int oldLength = boundTex2D.length;
+            boundTex2D = Arrays.copyOf(boundTex2D, units);
+            Arrays.fill(boundTex2D, oldLength, units, UNKNOWN);
+        }
+
+        boolean bound = false;
+        for (int unit = 0; unit < units; ++unit) {
+            int texture = unit < tex.length ? tex[unit] : StateContext.UNBOUND;
+            if (texture == StateContext.UNBOUND && unit < baseTex.length) {
+                texture = baseTex[unit];
+            }
+            if (texture != StateContext.UNBOUND && boundTex2D[unit] != texture) {
+                setActiveUnit(unit);
+                gl.bindTexture(GL_TEXTURE_2D, texture);
+                boundTex2D[unit] = texture;
+                ++callsIssued;
+                bound = true;
+            }
+        }
+        if (bound) {
+            // Leave unit 0 active, as the rest of rendering expects
+            setActiveUnit(0);
+        }
+
+        int naive = context.callCount() + (base == null ? 0 : base.callCount());
+        callsSaved += naive - (callsIssued - issuedBefore);
+    }
+
+    private void setCap(int cap, boolean enabled, int current) {
+        if (current != (enabled ? 1 : 0)) {
+            if (enabled) {
+                gl.enable(cap);
+            } else {
+                gl.disable(cap);
+            }
+            ++callsIssued;
+        }
+    }
+
+    private void setActiveUnit(int unit) {
+        if (activeUnit != unit) {
+            gl.activeTexture(GL_TEXTURE0 + unit);
+            activeUnit = unit;
+            ++callsIssued;
+        }
+    }
+
+    /**
+     * @return GL calls issued since last {@link #resetCounters()}
+     */
+    public int getCallsIssued() {
+        return callsIssued;
+    }
+
+    /**
+     * @return GL calls that applying the contexts unconditionally would have issued in addition, since last
+     *  {@link #resetCounters()}
+     */
+    public int getCallsSaved() {
+        return callsSaved;
+    }
+
+    public void resetCounters() {
+        callsIssued = callsSaved = 0;
+    }
+
+}
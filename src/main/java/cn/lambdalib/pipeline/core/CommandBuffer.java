@@ -0,0 +1,226 @@
+package cn.lambdalib.pipeline.core;
+
+import java.util.Arrays;
+
+/**
+ * Records draw commands as 64-bit sort keys plus instance payload in primitive arrays, and executes them in key
+ *  order, merging consecutive commands of the same material and mesh into one instanced draw. <br>
+ *
+ * The key is laid out from most to least significant as
+ * <pre>
+ *  program(8) | state(8) | texture(10) | material(10) | mesh(14) | depth(14)
+ * </pre>
+ * so that sorting groups draws by the most expensive state change first. The fields are opaque ids assigned by the
+ *  caller; ids that overflow their bits only make sorting less effective, as batches are split by identity of
+ *  material and mesh anyway. <br>
+ *
+ * This class doesn't touch GL, all calls go through {@link Backend}, so it can be tested headlessly.
+ */
+public final class CommandBuffer<M, G> {
+
+    public interface Backend<M, G> {
+
+        /**
+         * Called before the draws of a material, whenever the material differs from the previous batch.
+         */
+        void bind(M material);
+
+        /**
+         * Draws instances of a mesh.
+         * @param data The instance data of all instances, tightly packed
+         * @param floats Number of floats in data
+         */
+        void draw(M material, G mesh, float[] data, int floats, int instances);
+
+    }
+
+    public static final int
+        PROGRAM_BITS = 8, STATE_BITS = 8, TEXTURE_BITS = 10, MATERIAL_BITS = 10, MESH_BITS = 14, DEPTH_BITS = 14;
+
+    private static final long DEPTH_MASK = (1L << DEPTH_BITS) - 1;
+
+    public static long key(int program, int state, int texture, int material, int mesh, int depth) {
+        long ret = program & ((1L << PROGRAM_BITS) - 1);
+        ret = (ret << STATE_BITS) | (state & ((1L << STATE_BITS) - 1));
+        ret = (ret << TEXTURE_BITS) | (texture & ((1L << TEXTURE_BITS) - 1));
+        ret = (ret << MATERIAL_BITS) | (material & ((1L << MATERIAL_BITS) - 1));
+        ret = (ret << MESH_BITS) | (mesh & ((1L << MESH_BITS) - 1));
+        ret = (ret << DEPTH_BITS) | (depth & DEPTH_MASK);
+        return ret;
+    }
+
+    private int count = 0;
+
+    private long[] keys = new long[64];
+    private int[] offsets = new int[64], lengths = new int[64];
+    private Object[] materials = new Object[64], meshes = new Object[64];
+
+    private float[] payload = new float[1024];
+    private int payloadSize = 0;
+
+    // Sort scratch
+    private long[] sortKeys = new long[0], sortKeysTmp = new long[0];
+    private int[] order = new int[0], orderTmp = new int[0];
+    private final int[] histogram = new int[256];
+
+    private float[] batchData = new float[1024];
+
+    private int lastBatches, lastBinds;
+
+    /**
+     * Appends a command. The instance values are copied, so the array can be reused right after.
+     */
+    public void add(long key, M material, G mesh, float[] values, int offset, int length) {
+        if (count == keys.length) {
+            int cap = count * 2;
+            keys = Arrays.copyOf(keys, cap);
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            materials = Arrays.copyOf(materials, cap);
+            meshes = Arrays.copyOf(meshes, cap);
+        }
+        if (payloadSize + length > payload.length) {
+            payload = Arrays.copyOf(payload, Math.max(payloadSize + length, payload.length * 2));
+        }
+
+        System.arraycopy(values, offset, payload, payloadSize, length);
+
+        keys[count] = key;
+        offsets[count] = payloadSize;
+        lengths[count] = length;
+        materials[count] = material;
+        meshes[count] = mesh;
+
+        payloadSize += length;
+        ++count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sorts, executes and then clears all recorded commands.
+     */
+    @SuppressWarnings("unchecked")
+    public void execute(Backend<M, G> backend) {
+        int batches = 0, binds = 0;
+        try {
+            if (count == 0) {
+                return;
+            }
+
+            int[] sorted = sort();
+
+            Object boundMaterial = null;
+            int i = 0;
+            while (i < count) {
+                int first = sorted[i];
+                Object material = materials[first], mesh = meshes[first];
+
+                // Extend the batch over following commands of same material and mesh
+                int floats = 0, j = i;
+                while (j < count && materials[sorted[j]] == material && meshes[sorted[j]] == mesh) {
+                    floats += lengths[sorted[j]];
+                    ++j;
+                }
+
+                if (batchData.length < floats) {
+                    batchData = new float[Math.max(floats, batchData.length * 2)];
+                }
+                int pos = 0;
+                for (int k = i; k < j; ++k) {
+                    int idx = sorted[k];
+                    System.arraycopy(payload, offsets[idx], batchData, pos, lengths[idx]);
+                    pos += lengths[idx];
+                }
+
+                if (material != boundMaterial) {
+                    backend.bind((M) material);
+                    boundMaterial = material;
+                    ++binds;
+                }
+                backend.draw((M) material, (G) mesh, batchData, floats, j - i);
+                ++batches;
+
+                i = j;
+            }
+        } finally {
+            lastBatches = batches;
+            lastBinds = binds;
+            clear();
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(materials, 0, count, null);
+        Arrays.fill(meshes, 0, count, null);
+        count = 0;
+        payloadSize = 0;
+    }
+
+    /**
+     * @return Draw calls issued by last {@link #execute}
+     */
+    public int getLastBatchCount() {
+        return lastBatches;
+    }
+
+    /**
+     * @return Material binds issued by last {@link #execute}
+     */
+    public int getLastBindCount() {
+        return lastBinds;
+    }
+
+    /**
+     * Stable LSD radix sort of the command indices by key, one byte per pass. Passes in which all keys have the same
+     *  byte are skipped.
+     * @return The command indices in key order. Valid until next sort.
+     */
+    int[] sort() {
+        if (order.length < count) {
+            int cap = keys.length;
+            sortKeys = new long[cap];
+            sortKeysTmp = new long[cap];
+            order = new int[cap];
+            orderTmp = new int[cap];
+        }
+
+        long[] srcKeys = sortKeys, dstKeys = sortKeysTmp;
+        int[] src = order, dst = orderTmp;
+        System.arraycopy(keys, 0, srcKeys, 0, count);
+        for (int i = 0; i < count; ++i) {
+            src[i] = i;
+        }
+
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(histogram, 0);
+            for (int i = 0; i < count; ++i) {
+                ++histogram[(int) ((srcKeys[i] >>> shift) & 0xFF)];
+            }
+            if (histogram[(int) ((srcKeys[0] >>> shift) & 0xFF)] == count) {
+                continue;
+            }
+
+            int sum = 0;
+            for (int b = 0; b < 256; ++b) {
+                int c = histogram[b];
+                histogram[b] = sum;
+                sum += c;
+            }
+
+            for (int i = 0; i < count; ++i) {
+                int pos = histogram[(int) ((srcKeys[i] >>> shift) & 0xFF)]++;
+                dstKeys[pos] = srcKeys[i];
+                dst[pos] = src[i];
+            }
+
+            long[] tk = srcKeys; srcKeys = dstKeys; dstKeys = tk;
+            int[] t = src; src = dst; dst = t;
+        }
+
+        return src;
+    }
+
+}
@@ -8,10 +8,20 @@ import static org.lwjgl.opengl.GL15.glGenBuffers;
  */
 public class GLBuffer {
 
+    private static int createdCount = 0;
+
     public static GLBuffer create() {
+        ++createdCount;
         return new GLBuffer(glGenBuffers());
     }
 
+    /**
+     * @return The number of buffers created so far
+     */
+    public static int getCreatedCount() {
+        return createdCount;
+    }
+
     private final int bufferID;
 
     private GLBuffer(int bufferID) {
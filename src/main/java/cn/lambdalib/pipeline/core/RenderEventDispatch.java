@@ -1,6 +1,7 @@
 package cn.lambdalib.pipeline.core;
 
 import cn.lambdalib.pipeline.api.GraphicPipeline;
+import cn.lambdalib.pipeline.api.UniformBuffer;
 import cn.lambdalib.pipeline.api.mc.event.RenderAllEntityEvent;
 import cn.lambdalib.util.helper.GameTimer;
 import net.minecraftforge.client.MinecraftForgeClient;
@@ -38,6 +39,17 @@ public class RenderEventDispatch {
         playerViewMatrix = new Matrix4f(),
         pvpMatrix = new Matrix4f();
 
+    public static final UniformBuffer matrices = UniformBuffer.builder()
+            .addMat4("projection")
+            .addMat4("player_view")
+            .addMat4("pvp")
+            .build();
+
+    private static final int
+        projOffset = matrices.getOffset("projection"),
+        playerViewOffset = matrices.getOffset("player_view"),
+        pvpOffset = matrices.getOffset("pvp");
+
     public static final GraphicPipeline entityPipeline = new GraphicPipeline();
 
     // Following method signatures used by ASM
@@ -54,6 +66,11 @@ public class RenderEventDispatch {
             acquireMatrix(GL_PROJECTION_MATRIX, projMatrix);
             Matrix4f.mul(projMatrix, playerViewMatrix, pvpMatrix);
 
+            // Uploaded by materials using the buffer, only if changed
+            matrices.setMat4(projOffset, projMatrix)
+                    .setMat4(playerViewOffset, playerViewMatrix)
+                    .setMat4(pvpOffset, pvpMatrix);
+
             // Find camera up vector and camera position
             {
                 Matrix4f inv = tmpResult;
@@ -0,0 +1,96 @@
+package cn.lambdalib.pipeline.core;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+
+/**
+ * A vertex buffer for data that is rewritten every frame, used as a ring. Each upload is appended after the previous
+ *  one, and when the buffer is full its storage is orphaned (re-specified with glBufferData) and writing restarts from
+ *  the beginning, so that the driver never has to wait for draws still reading the old data. <br>
+ *
+ * Data is written into a grow-only staging buffer first, see {@link #stage(int)}.
+ */
+public class StreamBuffer {
+
+    private static final int ALIGNMENT = 16;
+
+    private final GLBuffer buffer = GLBuffer.create();
+
+    private long capacity = 0;
+    private long offset = 0;
+
+    private FloatBuffer staging = BufferUtils.createFloatBuffer(256);
+
+    private long bytesUploaded = 0;
+    private int orphanCount = 0;
+
+    public StreamBuffer(long initialCapacity) {
+        capacity = initialCapacity;
+        glBindBuffer(GL_ARRAY_BUFFER, buffer.getID());
+        glBufferData(GL_ARRAY_BUFFER, capacity, GL_STREAM_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    public GLBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The cleared staging buffer, that can hold at least given floats. Fill it, then call {@link #upload()}.
+     */
+    public FloatBuffer stage(int floats) {
+        if (staging.capacity() < floats) {
+            staging = BufferUtils.createFloatBuffer(Math.max(floats, staging.capacity() * 2));
+        }
+        staging.clear();
+        return staging;
+    }
+
+    /**
+     * Uploads the content of the staging buffer. Leaves GL_ARRAY_BUFFER bound to this buffer.
+     * @return The byte offset of the uploaded data in this buffer
+     */
+    public long upload() {
+        staging.flip();
+        long size = staging.remaining() * 4L;
+
+        glBindBuffer(GL_ARRAY_BUFFER, buffer.getID());
+        if (offset + size > capacity) {
+            if (size > capacity) {
+                capacity = Long.highestOneBit(size) * 2;
+            }
+            glBufferData(GL_ARRAY_BUFFER, capacity, GL_STREAM_DRAW);
+            offset = 0;
+            ++orphanCount;
+        }
+
+        long ret = offset;
+        glBufferSubData(GL_ARRAY_BUFFER, ret, staging);
+        offset = (offset + size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        bytesUploaded += size;
+
+        return ret;
+    }
+
+    /**
+     * @return Total bytes uploaded so far
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * @return How many times the storage was orphaned so far
+     */
+    public int getOrphanCount() {
+        return orphanCount;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+}
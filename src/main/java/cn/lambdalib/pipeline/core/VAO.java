@@ -1,28 +1,69 @@
 package cn.lambdalib.pipeline.core;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
 
 /**
- * RAII OpenGL Vertex Array Object.
+ * RAII OpenGL Vertex Array Object. Delete it with {@link #delete()} once done. A VAO that is garbage collected
+ *  without being deleted is deleted on next {@link #deleteCollected()}, as the finalizer thread has no GL context.
  */
 public class VAO {
 
+    private static int createdCount = 0;
+
+    // Ids of VAOs collected without delete(), filled by the finalizer thread
+    private static final Queue<Integer> collected = new ConcurrentLinkedQueue<>();
+
     public static VAO create() {
+        ++createdCount;
         return new VAO(glGenVertexArrays());
     }
 
+    /**
+     * @return The number of VAOs created so far
+     */
+    public static int getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * Deletes the VAOs that were garbage collected without {@link #delete()}. Must be called in the GL thread.
+     */
+    public static void deleteCollected() {
+        Integer id;
+        while ((id = collected.poll()) != null) {
+            glDeleteVertexArrays(id);
+        }
+    }
+
     private final int id;
 
+    private volatile boolean deleted = false;
+
     private VAO(int id) {
         this.id = id;
     }
 
+    /**
+     * Deletes the VAO. Must be called in the GL thread. Does nothing if already deleted.
+     */
+    public void delete() {
+        if (!deleted) {
+            deleted = true;
+            glDeleteVertexArrays(id);
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
 
-        glDeleteVertexArrays(id);
+        if (!deleted) {
+            collected.add(id);
+        }
     }
 
     public int getID() {
@@ -220,6 +220,19 @@ public class NBTS11n {
         }
     }
 
+    /**
+     * @return A hash of the field layout that recursive s11n of given type uses (names and types of exposed
+     *  fields). It changes whenever an exposed field is added, removed or changes type.
+     */
+    public static int schemaHash(Class<?> type) {
+        List<String> names = new ArrayList<>();
+        for (Field f : helper.getExposedFields(type)) {
+            names.add(f.getName() + ":" + f.getType().getName());
+        }
+        Collections.sort(names);
+        return names.hashCode();
+    }
+
     /**
      * Make given type to be exposed in recursive s11n. Subtypes not included.
      */
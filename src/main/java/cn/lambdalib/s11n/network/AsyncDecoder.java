@@ -0,0 +1,154 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.s11n.network;
+
+import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
+import cn.lambdalib.core.LambdaLib;
+import cn.lambdalib.s11n.network.NetworkS11n.ContextAdaptor;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
+import cpw.mods.fml.relauncher.Side;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes received {@link NetworkMessage}s off the main thread. When enabled, the raw bytes of a message are decoded
+ *  on a worker pool into their context-free form. Resolving context-dependent objects (entities, worlds, tile
+ *  entities, see {@link ContextAdaptor}) and dispatching to listeners happens on the main thread at the start of
+ *  each tick, in arrival order and within a per-tick budget. <br>
+ *
+ * Messages whose context-dependent objects are nested inside other objects are decoded entirely on the main
+ *  thread. Custom adaptors that access the world must implement {@link ContextAdaptor} before enabling this. <br>
+ *
+ * Note that {@link NetworkEvent}s are still dispatched on arrival, so they might overtake messages queued here.
+ */
+@Registrant
+public class AsyncDecoder {
+
+    private static boolean enabled = false;
+    private static int workerCount = 2;
+    private static int maxMessagesPerTick = 512;
+    private static long maxNanosPerTick = 5000000L;
+
+    private static ExecutorService workers;
+
+    private static final Queue<Pending> serverQueue = new ConcurrentLinkedQueue<>();
+    private static final Queue<Pending> clientQueue = new ConcurrentLinkedQueue<>();
+
+    private AsyncDecoder() {}
+
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the number of decoding threads. Only effective before the first message is decoded.
+     */
+    public static void setWorkerCount(int count) {
+        workerCount = count;
+    }
+
+    /**
+     * Sets how many messages at most are dispatched per tick and side, and the time after which dispatching stops
+     *  for this tick. Remaining messages are dispatched in following ticks.
+     */
+    public static void setTickBudget(int maxMessages, long maxNanos) {
+        maxMessagesPerTick = maxMessages;
+        maxNanosPerTick = maxNanos;
+    }
+
+    static void submit(NetworkMessage.Message message, Side side) {
+        Pending pending = new Pending(message);
+        (side == Side.CLIENT ? clientQueue : serverQueue).add(pending);
+
+        _workers().execute(() -> {
+            try {
+                message.decodeDeferred();
+            } finally {
+                pending.decoded = true;
+            }
+        });
+    }
+
+    private static synchronized ExecutorService _workers() {
+        if (workers == null) {
+            AtomicInteger counter = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerCount, r -> {
+                Thread ret = new Thread(r, "LambdaLib Message Decoder #" + counter.incrementAndGet());
+                ret.setDaemon(true);
+                return ret;
+            });
+        }
+        return workers;
+    }
+
+    private static void dispatch(Queue<Pending> queue) {
+        long deadline = System.nanoTime() + maxNanosPerTick;
+        for (int i = 0; i < maxMessagesPerTick; ++i) {
+            Pending pending = queue.peek();
+            // Stop at a message still being decoded, to keep arrival order
+            if (pending == null || !pending.decoded) {
+                break;
+            }
+            queue.poll();
+
+            NetworkMessage.Message message = pending.message;
+            try {
+                message.resolve();
+                NetworkMessage.Handler.dispatch(message);
+            } catch (RuntimeException e) {
+                LambdaLib.log.error("Error handling network message " + message.channel, e);
+            }
+
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+    }
+
+    private static class Pending {
+        final NetworkMessage.Message message;
+        volatile boolean decoded;
+
+        Pending(NetworkMessage.Message _message) {
+            message = _message;
+        }
+    }
+
+    @Registrant
+    public enum EventListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.START) {
+                dispatch(serverQueue);
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientTick(ClientTickEvent evt) {
+            if (evt.phase == Phase.START) {
+                dispatch(clientQueue);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.s11n.network;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.function.Consumer;
+
+/**
+ * Holds the encoded form of a message that is sent to each of a list of players. The message is serialized only on
+ *  the first write, and later writes copy the cached bytes, so s11n isn't re-run per receiver. <br>
+ *
+ * Not used for FML broadcasts (sendToAll etc.), which encode the message once by themselves.
+ */
+final class EncodeCache {
+
+    private ByteBuf encoded;
+    private boolean released;
+
+    /**
+     * Writes the encoded message into buf, encoding it with given encoder if this is the first write.
+     */
+    synchronized void write(ByteBuf buf, Consumer<ByteBuf> encoder) {
+        if (released) { // Shouldn't happen normally. Encode without caching to not leak pooled buffers
+            encoder.accept(buf);
+            return;
+        }
+
+        if (encoded == null) {
+            ByteBuf tmp = NetworkS11n.allocBuffer();
+            try {
+                encoder.accept(tmp);
+            } catch (RuntimeException e) {
+                tmp.release();
+                throw e;
+            }
+            encoded = tmp;
+        }
+        buf.writeBytes(encoded, encoded.readerIndex(), encoded.readableBytes());
+    }
+
+    /**
+     * Releases the cached payload. Called once the message has been written to all of its receivers.
+     */
+    synchronized void release() {
+        if (encoded != null) {
+            encoded.release();
+            encoded = null;
+        }
+        released = true;
+    }
+
+}
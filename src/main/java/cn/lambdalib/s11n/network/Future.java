@@ -1,24 +1,30 @@
 package cn.lambdalib.s11n.network;
 
 import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
 import cn.lambdalib.annoreg.mc.RegInitCallback;
+import cn.lambdalib.core.LambdaLib;
 import cn.lambdalib.s11n.network.NetworkMessage.Listener;
-import cn.lambdalib.s11n.network.NetworkMessage.NullablePar;
-import cn.lambdalib.s11n.network.NetworkS11n.ContextException;
-import cn.lambdalib.s11n.network.NetworkS11n.NetS11nAdaptor;
+import cn.lambdalib.s11n.network.NetworkRpc.Failure;
+import cn.lambdalib.s11n.network.NetworkS11n.ContextAdaptor;
+import cn.lambdalib.s11n.network.NetworkS11n.Deferred;
 import cn.lambdalib.s11n.network.NetworkS11n.NetworkS11nType;
 import cn.lambdalib.util.mc.SideHelper;
 import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
 import cpw.mods.fml.common.network.FMLNetworkEvent.ClientDisconnectionFromServerEvent;
 import cpw.mods.fml.common.network.FMLNetworkEvent.ServerDisconnectionFromClientEvent;
 import cpw.mods.fml.relauncher.Side;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraftforge.common.MinecraftForge;
+import net.minecraft.network.NetHandlerPlayServer;
 import scala.Function1;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Consumer;
 
 /**
@@ -31,6 +37,13 @@ import java.util.function.Consumer;
  *      If you call the method at creation side, the behaviour is undefined.</li>
  *     <li>Once a callback is received, the Future is rendered useless and will receive no further results.</li>
  * </ul>
+ *
+ * Pending futures are dropped after a timeout (see {@link #setDefaultTimeout(int)}), or when the connection to the
+ *  peer is lost. Results sent within a tick are batched into one message per receiver at the end of the tick.
+ *  Callbacks are invoked in the network thread, unless messages are dispatched in main thread by
+ *  {@link AsyncDecoder}. <br>
+ *
+ * For typed requests with failure reporting, see {@link NetworkRpc}.
  */
 @Registrant
 public class Future<T> {
@@ -38,7 +51,14 @@ public class Future<T> {
     @RegInitCallback
     private static void init() {
         NetworkS11n.addDirect(Future.class, new S11nHandler());
-        FutureManager.instance.init();
+    }
+
+    /**
+     * Sets the ticks after which a Future created by {@link #create(Consumer)} stops waiting for its result. 0 means
+     *  to wait until disconnection. Default is 6000 ticks (5 minutes).
+     */
+    public static void setDefaultTimeout(int ticks) {
+        FutureManager.defaultTimeout = ticks;
     }
 
     public static <T> Future<T> create(Consumer<T> callback) {
@@ -56,19 +76,42 @@ public class Future<T> {
 
     int increm;
     Consumer<T> callback; // Valid only on creation side
-    EntityPlayer creator; // Valid only if created in client
+    EntityPlayer creator; // Valid only if created in client. At server, the connection the future was received from
+
+    // Valid only on creation side
+    EntityPlayer peer; // The player expected to send the result, null if unknown or created in client
+    long deadline = Long.MAX_VALUE;
+    Consumer<Failure> failureCallback;
+    boolean done;
 
     public void sendResult(T value) {
         FutureManager.instance.sendResult(this, value);
     }
 
+    /**
+     * Stops waiting for the result. Should be called at creation side.
+     * @return Whether the future was still pending
+     */
+    public boolean cancel() {
+        return FutureManager.instance.cancel(this);
+    }
+
+    /**
+     * @return Whether the future received its result, failed or was cancelled. Valid only on creation side.
+     */
+    public boolean isDone() {
+        synchronized (FutureManager.instance.context(getSide())) {
+            return done;
+        }
+    }
+
     Side getSide() {
         return creator == null ? Side.SERVER : Side.CLIENT;
     }
 
 }
 
-class S11nHandler implements NetS11nAdaptor<Future> {
+class S11nHandler implements ContextAdaptor<Future> {
 
     @Override
     public void write(ByteBuf buf, Future obj) {
@@ -77,86 +120,390 @@ class S11nHandler implements NetS11nAdaptor<Future> {
     }
 
     @Override
-    public Future read(ByteBuf buf) throws ContextException {
+    public Deferred<Future> readDeferred(ByteBuf buf) {
         int increm = buf.readInt();
-        EntityPlayer player = NetworkS11n.deserialize(buf);
+        Deferred<EntityPlayer> player = NetworkS11n.deserializeDeferred(buf);
 
-        Future ret = new Future();
-        ret.increm = increm;
-        ret.creator = player;
+        return () -> {
+            Future ret = new Future();
+            ret.increm = increm;
+            ret.creator = player.resolve();
 
-        return ret;
+            return ret;
+        };
     }
 
 }
 
-class Context {
-    int increm;
-    Map<Integer, Future> waitingFutures = new HashMap<>();
-}
-
 @Registrant
 @NetworkS11nType
 enum FutureManager {
     instance;
 
-    private static final String MSG_RESULT = "result";
+    private static final String MSG_RESULTS = "results";
+
+    private static final byte STATUS_OK = 0, STATUS_FAILED = 1;
+
+    static int defaultTimeout = 6000;
+    static int maxPendingPerPeer = 256;
 
-    ThreadLocal<Context> threadContext = ThreadLocal.withInitial(Context::new);
+    private final Context server = new Context(), client = new Context();
 
-    void init() {
-        MinecraftForge.EVENT_BUS.register(this);
+    Context context(Side side) {
+        return side == Side.CLIENT ? client : server;
     }
 
     <T> Future<T> create(Consumer<T> callback) {
-        Context ctx = threadContext.get();
-
-        ++ctx.increm;
+        Future<T> ret = create(callback, null, defaultTimeout, null);
+        context(SideHelper.getRuntimeSide()).add(ret, false);
+        return ret;
+    }
 
+    /**
+     * Creates a future, which is not yet waiting.
+     */
+    <T> Future<T> create(Consumer<T> callback, EntityPlayer peer, int timeout, Consumer<Failure> failureCallback) {
         Future<T> fut = new Future<>();
-        fut.increm = ctx.increm;
         fut.callback = callback;
         fut.creator = SideHelper.getThePlayer(); // null if in server, thePlayer if in client
-
-        ctx.waitingFutures.put(ctx.increm, fut);
+        fut.peer = peer;
+        fut.failureCallback = failureCallback;
+
+        Context ctx = context(SideHelper.getRuntimeSide());
+        synchronized (ctx) {
+            fut.increm = ++ctx.increm;
+            if (timeout > 0) {
+                fut.deadline = ctx.tick + timeout;
+            }
+        }
 
         return fut;
     }
 
     <T> void sendResult(Future<T> fut, T value) {
+        _checkRemote(fut);
+
+        ByteBuf buf = Unpooled.buffer();
+        NetworkS11n.serialize(buf, value, true);
+        _queue(fut, STATUS_OK, buf);
+    }
+
+    /**
+     * Reports to the creation side that no result will be sent.
+     */
+    void sendFailure(Future<?> fut) {
+        _checkRemote(fut);
+        _queue(fut, STATUS_FAILED, Unpooled.EMPTY_BUFFER);
+    }
+
+    boolean cancel(Future<?> fut) {
+        Context ctx = context(fut.getSide());
+        synchronized (ctx) {
+            if (ctx.remove(fut)) {
+                ++ctx.cancelled;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void _checkRemote(Future<?> fut) {
         if (fut.getSide() == SideHelper.getRuntimeSide()) {
             throw new IllegalStateException("Trying to sendResult in creation side of Future");
         }
+    }
+
+    private void _queue(Future<?> fut, byte status, ByteBuf value) {
+        Context ctx = context(SideHelper.getRuntimeSide());
+        synchronized (ctx) {
+            // At client all results go to server, keyed by null
+            Outbox outbox = ctx.outbox.computeIfAbsent(fut.creator, p -> new Outbox());
+            ++outbox.count;
+            NetworkS11n.writeVarInt(outbox.buf, fut.increm);
+            outbox.buf.writeByte(status);
+            outbox.buf.writeInt(value.readableBytes());
+            outbox.buf.writeBytes(value);
+        }
+    }
 
-        if (SideHelper.isClient()) {
-            NetworkMessage.sendToServer(instance, MSG_RESULT, fut.increm, value);
-        } else {
-            NetworkMessage.sendTo(fut.creator, instance, MSG_RESULT, fut.increm, value);
+    /**
+     * At server, makes futures received as message parameters send their results to the player whose connection
+     *  delivered them, instead of the player the client claims to be.
+     */
+    void bindReceived(Object[] params, EntityPlayer sender) {
+        for (Object param : params) {
+            if (param instanceof Future && ((Future) param).creator != null) {
+                ((Future) param).creator = sender;
+            }
         }
     }
 
-    @Listener(channel=MSG_RESULT, side={Side.CLIENT, Side.SERVER})
-    private <T> void hReceiveResult(int increm, @NullablePar T value) {
-        Context ctx = threadContext.get();
+    @Listener(channel=MSG_RESULTS, side={Side.CLIENT, Side.SERVER})
+    @SuppressWarnings("unchecked")
+    private void hReceiveResults(ByteBuf payload) {
+        Side side = SideHelper.getRuntimeSide();
+        Context ctx = context(side);
+        // Results are only accepted from the connection of the expected peer (or for futures with unknown peer)
+        EntityPlayer peer = side == Side.CLIENT ? null : NetworkMessage.getSender();
+        if (side == Side.SERVER && peer == null) {
+            payload.release();
+            return;
+        }
 
-        Future future = ctx.waitingFutures.get(increm);
-        if (future != null) {
-            future.callback.accept(value);
-            ctx.waitingFutures.remove(future.increm);
+        try {
+            int count = NetworkS11n.readVarInt(payload);
+            for (int i = 0; i < count; ++i) {
+                int increm = NetworkS11n.readVarInt(payload);
+                byte status = payload.readByte();
+                ByteBuf value = payload.readSlice(payload.readInt());
+
+                Future future;
+                synchronized (ctx) {
+                    future = ctx.take(peer, increm);
+                    if (future != null) {
+                        if (status == STATUS_OK) {
+                            ++ctx.completed;
+                        } else {
+                            ++ctx.failed;
+                        }
+                    }
+                }
+
+                if (future != null) {
+                    if (status == STATUS_OK) {
+                        Object result;
+                        try {
+                            result = NetworkS11n.deserialize(value);
+                        } catch (RuntimeException e) {
+                            LambdaLib.log.error("Error deserializing result of Future", e);
+                            synchronized (ctx) {
+                                --ctx.completed;
+                                ++ctx.failed;
+                            }
+                            _fail(future, Failure.REMOTE_ERROR);
+                            continue;
+                        }
+
+                        try {
+                            future.callback.accept(result);
+                        } catch (RuntimeException e) {
+                            LambdaLib.log.error("Error handling result of Future", e);
+                        }
+                    } else {
+                        _fail(future, Failure.REMOTE_ERROR);
+                    }
+                }
+            }
+        } finally {
+            payload.release();
         }
     }
 
-    @SubscribeEvent
-    public void __onClientDisconnect(ClientDisconnectionFromServerEvent evt) {
-        disconnect();
+    private void tick(Side side) {
+        Context ctx = context(side);
+        List<Future> expired = new ArrayList<>();
+        Map<EntityPlayer, Outbox> outbox;
+        synchronized (ctx) {
+            ++ctx.tick;
+            while (!ctx.timeouts.isEmpty() && ctx.timeouts.peek().deadline <= ctx.tick) {
+                Future fut = ctx.timeouts.poll();
+                if (ctx.remove(fut)) {
+                    ++ctx.timedOut;
+                    expired.add(fut);
+                }
+                --ctx.doneInTimeouts; // Done either way, and no longer in timeouts
+            }
+            ctx.purgeTimeouts();
+
+            outbox = ctx.outbox;
+            ctx.outbox = new HashMap<>();
+            ctx.batchesSent += outbox.size();
+            for (Outbox o : outbox.values()) {
+                ctx.resultsSent += o.count;
+            }
+        }
+
+        for (Map.Entry<EntityPlayer, Outbox> entry : outbox.entrySet()) {
+            Outbox o = entry.getValue();
+            ByteBuf buf = Unpooled.buffer(5 + o.buf.readableBytes());
+            NetworkS11n.writeVarInt(buf, o.count);
+            buf.writeBytes(o.buf);
+
+            if (side == Side.CLIENT) {
+                NetworkMessage.sendToServer(this, MSG_RESULTS, buf);
+            } else {
+                NetworkMessage.sendTo(entry.getKey(), this, MSG_RESULTS, buf);
+            }
+        }
+
+        expired.forEach(fut -> _fail(fut, Failure.TIMEOUT));
     }
 
-    @SubscribeEvent
-    public void __onServerDisconnect(ServerDisconnectionFromClientEvent evt) {
-        disconnect();
+    /**
+     * Drops all futures waiting for given peer. At client, peer is null.
+     */
+    private void disconnect(Side side, EntityPlayer peer) {
+        Context ctx = context(side);
+        List<Future> dropped = new ArrayList<>();
+        synchronized (ctx) {
+            if (side == Side.CLIENT) {
+                for (Map<Integer, Future> table : ctx.tables.values()) {
+                    dropped.addAll(table.values());
+                }
+                ctx.outbox.clear();
+            } else {
+                Map<Integer, Future> table = ctx.tables.get(peer);
+                if (table != null) {
+                    dropped.addAll(table.values());
+                }
+                ctx.outbox.remove(peer);
+            }
+            for (Future fut : dropped) {
+                ctx.remove(fut);
+            }
+            ctx.disconnected += dropped.size();
+        }
+        dropped.forEach(fut -> _fail(fut, Failure.DISCONNECTED));
     }
 
-    private void disconnect() {
-        threadContext.get().waitingFutures.clear();
+    @SuppressWarnings("unchecked")
+    private void _fail(Future<?> fut, Failure failure) {
+        if (fut.failureCallback != null) {
+            try {
+                fut.failureCallback.accept(failure);
+            } catch (RuntimeException e) {
+                LambdaLib.log.error("Error handling failure of Future", e);
+            }
+        }
+    }
+
+    /**
+     * Pending futures of one side. All access is synchronized on the context itself, as results are received in
+     *  the network thread.
+     */
+    static class Context {
+        int increm;
+        long tick;
+
+        // Pending futures by the peer expected to send the result
+        final Map<EntityPlayer, Map<Integer, Future>> tables = new HashMap<>();
+        final PriorityQueue<Future> timeouts = new PriorityQueue<>(Comparator.comparingLong(f -> f.deadline));
+        int doneInTimeouts; // Futures in timeouts that completed before their deadline
+        Map<EntityPlayer, Outbox> outbox = new HashMap<>();
+
+        int outstanding;
+        long completed, failed, timedOut, cancelled, rejected, disconnected, resultsSent, batchesSent;
+
+        /**
+         * Starts waiting for the future's result.
+         * @param capped Whether to reject the future if its peer has too many pending futures
+         * @return false if the future is rejected
+         */
+        synchronized boolean add(Future fut, boolean capped) {
+            Map<Integer, Future> table = tables.computeIfAbsent(fut.peer, p -> new HashMap<>());
+            if (capped && table.size() >= maxPendingPerPeer) {
+                fut.done = true;
+                ++rejected;
+                return false;
+            }
+
+            table.put(fut.increm, fut);
+            if (fut.deadline != Long.MAX_VALUE) {
+                timeouts.add(fut);
+            }
+            ++outstanding;
+            return true;
+        }
+
+        /**
+         * Takes the pending future with given id, also looking in futures with unknown peer.
+         */
+        Future take(EntityPlayer peer, int increm) {
+            Future ret = _get(peer, increm);
+            if (ret == null && peer != null) {
+                ret = _get(null, increm);
+            }
+            if (ret != null) {
+                remove(ret);
+            }
+            return ret;
+        }
+
+        private Future _get(EntityPlayer peer, int increm) {
+            Map<Integer, Future> table = tables.get(peer);
+            return table == null ? null : table.get(increm);
+        }
+
+        /**
+         * @return Whether the future was pending. Its entry in timeouts is left to {@link #purgeTimeouts()}.
+         */
+        boolean remove(Future fut) {
+            if (fut.done) {
+                return false;
+            }
+            fut.done = true;
+            --outstanding;
+            if (fut.deadline != Long.MAX_VALUE) {
+                ++doneInTimeouts;
+            }
+
+            Map<Integer, Future> table = tables.get(fut.peer);
+            table.remove(fut.increm);
+            if (table.isEmpty()) {
+                tables.remove(fut.peer);
+            }
+            return true;
+        }
+
+        /**
+         * Drops completed futures from timeouts once they make up half of it, so that they aren't retained until
+         *  their deadline.
+         */
+        void purgeTimeouts() {
+            if (doneInTimeouts > 16 && doneInTimeouts * 2 > timeouts.size()) {
+                timeouts.removeIf(fut -> fut.done);
+                doneInTimeouts = 0;
+            }
+        }
+
+        synchronized int pendingOf(EntityPlayer peer) {
+            Map<Integer, Future> table = tables.get(peer);
+            return table == null ? 0 : table.size();
+        }
+    }
+
+    static class Outbox {
+        final ByteBuf buf = Unpooled.buffer();
+        int count;
+    }
+
+    @Registrant
+    public enum EventListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                FutureManager.instance.tick(Side.SERVER);
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientTick(ClientTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                FutureManager.instance.tick(Side.CLIENT);
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientDisconnect(ClientDisconnectionFromServerEvent evt) {
+            FutureManager.instance.disconnect(Side.CLIENT, null);
+        }
+
+        @SubscribeEvent
+        public void onServerDisconnect(ServerDisconnectionFromClientEvent evt) {
+            FutureManager.instance.disconnect(Side.SERVER, ((NetHandlerPlayServer) evt.handler).playerEntity);
+        }
     }
 }
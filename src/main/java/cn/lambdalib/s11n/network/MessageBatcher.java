@@ -0,0 +1,439 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.s11n.network;
+
+import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
+import cn.lambdalib.core.LambdaLib;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
+import cpw.mods.fml.common.network.NetworkRegistry.TargetPoint;
+import cpw.mods.fml.common.network.simpleimpl.IMessage;
+import cpw.mods.fml.common.network.simpleimpl.IMessageHandler;
+import cpw.mods.fml.common.network.simpleimpl.MessageContext;
+import cpw.mods.fml.common.network.simpleimpl.SimpleNetworkWrapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.server.MinecraftServer;
+
+import java.util.*;
+
+/**
+ * Batches outbound {@link NetworkMessage} and {@link NetworkEvent} messages. When enabled, messages are encoded
+ *  when sent and queued per receiver, then flushed at the end of the tick, with all messages for the same player
+ *  packed into framed payloads no larger than a custom payload packet allows. <br>
+ *
+ * Channels marked with {@link #setLatestWins(String)} are coalesced: if a message to the same instance and channel
+ *  is queued again before flush, only the latest one is sent. <br>
+ *
+ * Batching is only decided on the sending side; the receiving side always understands batches.
+ */
+@Registrant
+public class MessageBatcher {
+
+    private static final SimpleNetworkWrapper channel = LambdaLib.channel;
+
+    private static boolean enabled = false;
+    private static Set<String> latestWinsChannels = new HashSet<>();
+
+    /**
+     * Maximum bytes of a batch sent by the client, below the 32767 bytes limit of a custom payload packet.
+     */
+    private static final int CLIENT_BATCH_BYTES = 32000;
+
+    /**
+     * Maximum bytes of a batch sent by the server, below the ~1MB limit of a custom payload packet.
+     */
+    private static final int SERVER_BATCH_BYTES = 1000000;
+
+    private static final Map<EntityPlayerMP, Queue> serverQueues = new HashMap<>();
+    private static final Queue clientQueue = new Queue();
+
+    private MessageBatcher() {}
+
+    /**
+     * Enables or disables batching. Queued messages are still flushed at the end of tick after disabling.
+     */
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Marks a {@link NetworkMessage} channel as "latest value wins", so that only the last message to the same
+     *  instance and channel within a tick is sent.
+     */
+    public static void setLatestWins(String channel) {
+        latestWinsChannels.add(channel);
+    }
+
+    // The send methods return false if the message isn't batched, and should be sent directly by caller.
+    // Messages are encoded when queued, so that later changes to the instance or params don't affect them.
+
+    static boolean sendTo(IMessage msg, EntityPlayerMP player) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (serverQueues) {
+                _queue(player).add(frame);
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    static boolean sendToPlayers(IMessage msg, EntityPlayerMP[] players) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (serverQueues) {
+                for (EntityPlayerMP player : players) {
+                    _queue(player).add(frame);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    static boolean sendToAll(IMessage msg) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (serverQueues) {
+                for (EntityPlayerMP player : _players()) {
+                    _queue(player).add(frame);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    static boolean sendToAllAround(IMessage msg, TargetPoint trg) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (serverQueues) {
+                for (EntityPlayerMP player : _players()) {
+                    if (player.dimension == trg.dimension) {
+                        double dx = trg.x - player.posX, dy = trg.y - player.posY, dz = trg.z - player.posZ;
+                        if (dx * dx + dy * dy + dz * dz < trg.range * trg.range) {
+                            _queue(player).add(frame);
+                        }
+                    }
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    static boolean sendToDimension(IMessage msg, int dimensionId) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (serverQueues) {
+                for (EntityPlayerMP player : _players()) {
+                    if (player.dimension == dimensionId) {
+                        _queue(player).add(frame);
+                    }
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    static boolean sendToServer(IMessage msg) {
+        if (!enabled) {
+            return false;
+        }
+
+        Frame frame = Frame.encode(msg);
+        try {
+            synchronized (clientQueue) {
+                clientQueue.add(frame);
+            }
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<EntityPlayerMP> _players() {
+        return MinecraftServer.getServer().getConfigurationManager().playerEntityList;
+    }
+
+    private static Queue _queue(EntityPlayerMP player) {
+        Queue ret = serverQueues.get(player);
+        if (ret == null) {
+            ret = new Queue();
+            serverQueues.put(player, ret);
+        }
+        return ret;
+    }
+
+    private static void flushServer() {
+        synchronized (serverQueues) {
+            Set<EntityPlayerMP> online = new HashSet<>(_players());
+            for (Map.Entry<EntityPlayerMP, Queue> entry : serverQueues.entrySet()) {
+                EntityPlayerMP player = entry.getKey();
+                List<Batch> batches = entry.getValue().drain(SERVER_BATCH_BYTES);
+                if (online.contains(player)) {
+                    for (Batch batch : batches) {
+                        channel.sendTo(batch, player);
+                        TrafficProfiler.recordSent(batch, player);
+                    }
+                }
+            }
+            serverQueues.clear();
+        }
+    }
+
+    private static void flushClient() {
+        synchronized (clientQueue) {
+            for (Batch batch : clientQueue.drain(CLIENT_BATCH_BYTES)) {
+                channel.sendToServer(batch);
+            }
+        }
+    }
+
+    private static class CoalesceKey {
+        final Object instance;
+        final String channel;
+
+        CoalesceKey(Object _instance, String _channel) {
+            instance = _instance;
+            channel = _channel;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(instance) ^ channel.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof CoalesceKey) {
+                CoalesceKey key = (CoalesceKey) other;
+                return key.instance == instance && key.channel.equals(channel);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A message encoded as a batch frame: kind byte, int length, then the message bytes.
+     */
+    private static class Frame {
+        final ByteBuf bytes;
+        final CoalesceKey key; // Null if not coalesced
+
+        Frame(ByteBuf _bytes, CoalesceKey _key) {
+            bytes = _bytes;
+            key = _key;
+        }
+
+        static Frame encode(IMessage msg) {
+            ByteBuf buf = NetworkS11n.allocBuffer();
+            try {
+                buf.writeByte(msg instanceof NetworkEvent.Message ? Batch.KIND_EVENT : Batch.KIND_MESSAGE);
+                buf.writeInt(0);
+                msg.toBytes(buf);
+                buf.setInt(1, buf.writerIndex() - 5);
+            } catch (RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+
+            CoalesceKey key = null;
+            if (msg instanceof NetworkMessage.Message) {
+                NetworkMessage.Message nmsg = (NetworkMessage.Message) msg;
+                if (latestWinsChannels.contains(nmsg.channel)) {
+                    key = new CoalesceKey(nmsg.instance, nmsg.channel);
+                }
+            }
+            return new Frame(buf, key);
+        }
+
+        void release() {
+            bytes.release();
+        }
+    }
+
+    /**
+     * Encoded messages queued for one receiver, stored back to back in one buffer.
+     */
+    private static class Queue {
+        final ByteBuf data = Unpooled.buffer();
+        final List<int[]> frames = new ArrayList<>(); // {offset, length}, length -1 if replaced by a later frame
+        final Map<CoalesceKey, Integer> coalesced = new HashMap<>();
+
+        void add(Frame frame) {
+            if (frame.key != null) {
+                Integer prev = coalesced.put(frame.key, frames.size());
+                if (prev != null) {
+                    frames.get(prev)[1] = -1;
+                }
+            }
+            frames.add(new int[] { data.writerIndex(), frame.bytes.readableBytes() });
+            data.writeBytes(frame.bytes, frame.bytes.readerIndex(), frame.bytes.readableBytes());
+        }
+
+        /**
+         * @param maxBytes Maximum size of each batch. A single frame larger than that is sent in a batch by itself.
+         * @return The batches to send for all queued messages. Clears the queue.
+         */
+        List<Batch> drain(int maxBytes) {
+            List<Batch> ret = new ArrayList<>();
+            Batch current = null;
+            for (int[] frame : frames) {
+                int length = frame[1];
+                if (length == -1) {
+                    continue;
+                }
+                if (current == null || current.payload.readableBytes() + length > maxBytes - Batch.HEADER_BYTES) {
+                    current = new Batch(Unpooled.buffer(Math.min(maxBytes, data.writerIndex())));
+                    ret.add(current);
+                }
+                current.payload.writeBytes(data, frame[0], length);
+                ++current.count;
+            }
+            for (Batch batch : ret) {
+                batch.wireBytes = batch.payload.readableBytes() + 5; // Count varint at most 5 bytes
+            }
+
+            data.clear();
+            frames.clear();
+            coalesced.clear();
+            return ret;
+        }
+    }
+
+    /**
+     * Several messages sent as one. Each sub-message is framed by its length, so that one message failing to
+     *  deserialize (e.g. because of ContextException) doesn't affect the others.
+     */
+    public static final class Batch implements IMessage {
+
+        private static final byte KIND_MESSAGE = 0, KIND_EVENT = 1;
+
+        // Upper bound of the count varint plus FML's discriminator and channel framing
+        private static final int HEADER_BYTES = 64;
+
+        // Received messages
+        final List<IMessage> messages = new ArrayList<>();
+
+        // Frames to send, already encoded when queued
+        ByteBuf payload;
+        int count;
+
+        int wireBytes; // See TrafficProfiler
+
+        public Batch() {}
+
+        Batch(ByteBuf _payload) {
+            payload = _payload;
+        }
+
+        @Override
+        public void toBytes(ByteBuf buf) {
+            int begin = buf.writerIndex();
+            NetworkS11n.writeVarInt(buf, count);
+            buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+            wireBytes = buf.writerIndex() - begin;
+        }
+
+        @Override
+        public void fromBytes(ByteBuf buf) {
+            int count = NetworkS11n.readVarInt(buf);
+            for (int i = 0; i < count; ++i) {
+                byte kind = buf.readByte();
+                int length = buf.readInt();
+                ByteBuf frame = buf.readSlice(length);
+
+                IMessage msg = kind == KIND_EVENT ? new NetworkEvent.Message() : new NetworkMessage.Message();
+                try {
+                    msg.fromBytes(frame);
+                    messages.add(msg);
+                } catch (RuntimeException e) {
+                    LambdaLib.log.error("Error deserializing batched message", e);
+                }
+            }
+        }
+
+    }
+
+    public static final class BatchHandler implements IMessageHandler<Batch, IMessage> {
+
+        private final NetworkMessage.Handler messageHandler = new NetworkMessage.Handler();
+        private final NetworkEvent.MessageHandler eventHandler = new NetworkEvent.MessageHandler();
+
+        @Override
+        public IMessage onMessage(Batch batch, MessageContext ctx) {
+            for (IMessage msg : batch.messages) {
+                if (msg instanceof NetworkEvent.Message) {
+                    eventHandler.onMessage((NetworkEvent.Message) msg, ctx);
+                } else {
+                    messageHandler.onMessage((NetworkMessage.Message) msg, ctx);
+                }
+            }
+            return null;
+        }
+
+    }
+
+    @Registrant
+    public enum EventListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                flushServer();
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientTick(ClientTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                flushClient();
+            }
+        }
+    }
+
+}
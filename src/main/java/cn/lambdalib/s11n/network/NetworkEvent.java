@@ -23,10 +23,16 @@ import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class implements a simple event bus based on network s11n. You can send out network-serializable objects
- *  as events. each event class is associated with a series of event handlers on each side.
+ *  as events. each event class is associated with a series of event handlers on each side. <br>
+ *
+ * An event is handled by the handlers of its class and of all its superclasses and interfaces, most specific class
+ *  first. Handlers run in the network thread, unless an executor is set for the event type by
+ *  {@link #setExecutor(Class, Side, Executor)}.
  */
 @Registrant
 public class NetworkEvent {
@@ -46,24 +52,57 @@ public class NetworkEvent {
         handlerClient = new HashMap<>(),
         handlerServer = new HashMap<>();
 
+    private static Map<Class<?>, Executor>
+        executorClient = new HashMap<>(),
+        executorServer = new HashMap<>();
+
+    // Rebuilt whenever handlers or executors change
+    private static volatile DispatchTable
+        dispatchClient = new DispatchTable(Side.CLIENT),
+        dispatchServer = new DispatchTable(Side.SERVER);
+
     public static void sendToServer(Object msg) {
-        channel.sendToServer(new Message(msg));
+        Message message = new Message(msg);
+        if (!MessageBatcher.sendToServer(message)) {
+            channel.sendToServer(message);
+        }
+        TrafficProfiler.recordReceivers(message, 1);
     }
 
     public static void sendTo(Object msg, EntityPlayerMP player) {
-        channel.sendTo(new Message(msg), player);
+        Message message = new Message(msg);
+        if (!MessageBatcher.sendTo(message, player)) {
+            channel.sendTo(message, player);
+            TrafficProfiler.recordSent(message, player);
+        }
+        TrafficProfiler.recordReceivers(message, 1);
     }
 
     public static void sendToAll(Object msg) {
-        channel.sendToAll(new Message(msg));
+        Message message = new Message(msg);
+        if (!MessageBatcher.sendToAll(message)) {
+            channel.sendToAll(message);
+            TrafficProfiler.recordSent(message, null);
+        }
+        TrafficProfiler.recordReceivers(message, 1);
     }
 
     public static void sendToAllAround(Object msg, TargetPoint trg) {
-        channel.sendToAllAround(new Message(msg), trg);
+        Message message = new Message(msg);
+        if (!MessageBatcher.sendToAllAround(message, trg)) {
+            channel.sendToAllAround(message, trg);
+            TrafficProfiler.recordSent(message, null);
+        }
+        TrafficProfiler.recordReceivers(message, 1);
     }
 
     public static void sendToDimension(Object msg, int dimensionId) {
-        channel.sendToDimension(new Message(msg), dimensionId);
+        Message message = new Message(msg);
+        if (!MessageBatcher.sendToDimension(message, dimensionId)) {
+            channel.sendToDimension(message, dimensionId);
+            TrafficProfiler.recordSent(message, null);
+        }
+        TrafficProfiler.recordReceivers(message, 1);
     }
 
     /**
@@ -78,7 +117,34 @@ public class NetworkEvent {
      * Adds a network event handler on given side.
      */
     public static <T> void listen(Class<T> type, Side side, INetEventHandler<T> handler) {
-        _handlerList(type, side, true).add(handler);
+        synchronized (NetworkEvent.class) {
+            _handlerList(type, side, true).add(handler);
+            _invalidate(side);
+        }
+    }
+
+    /**
+     * Makes handlers of events of given type (or its subtypes) run on the executor instead of the network thread.
+     *  If executors are set for several types in an event's hierarchy, the most specific one is used.
+     * @param executor The executor, or null to run in network thread again
+     */
+    public static void setExecutor(Class<?> type, Side side, Executor executor) {
+        synchronized (NetworkEvent.class) {
+            Map<Class<?>, Executor> map = side == Side.CLIENT ? executorClient : executorServer;
+            if (executor == null) {
+                map.remove(type);
+            } else {
+                map.put(type, executor);
+            }
+            _invalidate(side);
+        }
+    }
+
+    /**
+     * @return Counters of events received at given side, by event class
+     */
+    public static Map<Class<?>, EventStats> getStats(Side side) {
+        return Collections.unmodifiableMap(side == Side.CLIENT ? statsClient : statsServer);
     }
 
     @SuppressWarnings("unchecked")
@@ -95,10 +161,114 @@ public class NetworkEvent {
         return ret == null ? Collections.emptyList() : ret;
     }
 
+    private static void _invalidate(Side side) {
+        if (side == Side.CLIENT) {
+            dispatchClient = new DispatchTable(side);
+        } else {
+            dispatchServer = new DispatchTable(side);
+        }
+    }
+
+    private static final Map<Class<?>, EventStats>
+        statsClient = Collections.synchronizedMap(new HashMap<>()),
+        statsServer = Collections.synchronizedMap(new HashMap<>());
+
+    /**
+     * Counters of one event class at one side.
+     */
+    public static final class EventStats {
+        final AtomicLong count = new AtomicLong(), handlerNanos = new AtomicLong();
+
+        /**
+         * @return The number of events received
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return The total time spent in handlers of the events, in nanoseconds
+         */
+        public long getHandlerNanos() {
+            return handlerNanos.get();
+        }
+    }
+
+    /**
+     * How events of one concrete class are dispatched.
+     */
+    private static final class Dispatch {
+        final INetEventHandler[] handlers;
+        final Executor executor; // null to run in place
+        final EventStats stats;
+
+        Dispatch(INetEventHandler[] _handlers, Executor _executor, EventStats _stats) {
+            handlers = _handlers;
+            executor = _executor;
+            stats = _stats;
+        }
+    }
+
+    private static final class DispatchTable extends ClassValue<Dispatch> {
+        final Side side;
+
+        DispatchTable(Side _side) {
+            side = _side;
+        }
+
+        @Override
+        protected Dispatch computeValue(Class<?> type) {
+            List<Class<?>> hierarchy = _hierarchy(type);
+
+            synchronized (NetworkEvent.class) {
+                List<INetEventHandler> handlers = new ArrayList<>();
+                Executor executor = null;
+                Map<Class<?>, Executor> executors = side == Side.CLIENT ? executorClient : executorServer;
+                for (Class<?> c : hierarchy) {
+                    handlers.addAll(_handlerList(c, side, false));
+                    if (executor == null) {
+                        executor = executors.get(c);
+                    }
+                }
+
+                Map<Class<?>, EventStats> statsMap = side == Side.CLIENT ? statsClient : statsServer;
+                EventStats stats = statsMap.computeIfAbsent(type, c -> new EventStats());
+
+                return new Dispatch(handlers.toArray(new INetEventHandler[handlers.size()]), executor, stats);
+            }
+        }
+
+        /**
+         * @return The class, its superclasses and then all interfaces, breadth first and without duplicates
+         */
+        private static List<Class<?>> _hierarchy(Class<?> type) {
+            List<Class<?>> ret = new ArrayList<>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                ret.add(c);
+            }
+
+            Set<Class<?>> visited = new HashSet<>();
+            Deque<Class<?>> queue = new ArrayDeque<>(ret);
+            while (!queue.isEmpty()) {
+                for (Class<?> itf : queue.poll().getInterfaces()) {
+                    if (visited.add(itf)) {
+                        ret.add(itf);
+                        queue.add(itf);
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
     public static final class Message implements IMessage {
 
         public Object object = null;
 
+        // Profiling state, see TrafficProfiler
+        int wireBytes;
+        long codecNanos;
+
         public Message(Object _obj) {
             object = _obj;
         }
@@ -106,31 +276,87 @@ public class NetworkEvent {
         public Message() {}
 
         public void fromBytes(ByteBuf buf) {
+            wireBytes = buf.readableBytes();
+            long beginTime = System.nanoTime();
+            NetworkS11n.beginScope();
             try {
                 object = NetworkS11n.deserialize(buf);
             } catch (ContextException exc) {
                 // omit
+            } finally {
+                NetworkS11n.endScope();
+                codecNanos = System.nanoTime() - beginTime;
             }
         }
 
         public void toBytes(ByteBuf buf) {
-            NetworkS11n.serialize(buf, object, false);
+            boolean profile = TrafficProfiler.isEnabled();
+            int begin = buf.writerIndex();
+            long beginTime = profile ? System.nanoTime() : 0;
+
+            encode(buf);
+
+            wireBytes = buf.writerIndex() - begin;
+            if (profile) {
+                TrafficProfiler.record(TrafficProfiler.Kind.EVENT, TrafficProfiler.Direction.OUT,
+                        object, null, wireBytes, System.nanoTime() - beginTime);
+            }
+        }
+
+        private void encode(ByteBuf buf) {
+            NetworkS11n.beginScope();
+            try {
+                NetworkS11n.serialize(buf, object, false);
+            } finally {
+                NetworkS11n.endScope();
+            }
         }
 
     }
 
     public static final class MessageHandler implements IMessageHandler<Message, IMessage> {
 
-        @SuppressWarnings("unchecked")
         public IMessage onMessage(Message msg, MessageContext ctx) {
+            if (TrafficProfiler.isEnabled()) {
+                TrafficProfiler.record(TrafficProfiler.Kind.EVENT, TrafficProfiler.Direction.IN,
+                        msg.object, null, msg.wireBytes, msg.codecNanos);
+                if (ctx.side == Side.SERVER) {
+                    TrafficProfiler.recordPlayer(TrafficProfiler.Direction.IN, ctx.getServerHandler().playerEntity,
+                            msg.wireBytes);
+                }
+            }
             if (msg.object != null) {
-                _handlerList(msg.object.getClass(), ctx.side, false)
-                        .forEach(handler -> ((INetEventHandler) handler).onEvent(msg.object, ctx));
+                Object event = msg.object;
+                Dispatch dispatch = (ctx.side == Side.CLIENT ? dispatchClient : dispatchServer).get(event.getClass());
+                dispatch.stats.count.incrementAndGet();
+
+                if (dispatch.executor == null) {
+                    _handle(dispatch, event, ctx);
+                } else {
+                    dispatch.executor.execute(() -> _handle(dispatch, event, ctx));
+                }
             } // else { silently omit the message }
 
             return null;
         }
 
+        @SuppressWarnings("unchecked")
+        private static void _handle(Dispatch dispatch, Object event, MessageContext ctx) {
+            INetEventHandler[] handlers = dispatch.handlers;
+            if (handlers.length == 0) {
+                return;
+            }
+
+            long begin = System.nanoTime();
+            try {
+                for (INetEventHandler handler : handlers) {
+                    handler.onEvent(event, ctx);
+                }
+            } finally {
+                dispatch.stats.handlerNanos.addAndGet(System.nanoTime() - begin);
+            }
+        }
+
     }
 
 
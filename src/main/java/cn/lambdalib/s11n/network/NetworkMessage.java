@@ -7,18 +7,24 @@
 package cn.lambdalib.s11n.network;
 
 import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
 import cn.lambdalib.annoreg.mc.RegMessageHandler;
+import cn.lambdalib.core.LLModContainer;
 import cn.lambdalib.core.LambdaLib;
 import cn.lambdalib.s11n.network.NetworkS11n.ContextException;
+import cn.lambdalib.s11n.network.NetworkS11n.Deferred;
 import cn.lambdalib.s11n.network.NetworkS11n.NetS11nAdaptor;
 import cn.lambdalib.s11n.network.NetworkS11n.NetworkS11nType;
 import cn.lambdalib.util.generic.ReflectionUtils;
 import cn.lambdalib.util.mc.SideHelper;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Primitives;
 import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent.PlayerLoggedInEvent;
 import cpw.mods.fml.common.network.ByteBufUtils;
+import cpw.mods.fml.common.network.FMLNetworkEvent.ClientDisconnectionFromServerEvent;
 import cpw.mods.fml.common.network.NetworkRegistry.TargetPoint;
 import cpw.mods.fml.common.network.simpleimpl.IMessage;
 import cpw.mods.fml.common.network.simpleimpl.IMessageHandler;
@@ -26,6 +32,8 @@ import cpw.mods.fml.common.network.simpleimpl.MessageContext;
 import cpw.mods.fml.common.network.simpleimpl.SimpleNetworkWrapper;
 import cpw.mods.fml.relauncher.Side;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 
@@ -33,12 +41,19 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * {@link NetworkMessage} is used for fast messaging of objects (that are usually) across network. <br>
@@ -118,34 +133,64 @@ public class NetworkMessage {
      * Send the message to the object itself on the fly.
      */
     public static void sendToSelf(Object instance, String channel, Object ...params) {
-        processMessage(instance, channel, params);
+        processMessage(instance, channelID(channel), channel, params);
     }
 
     public static void sendToServer(Object instance, String channel, Object ...params) {
-        network.sendToServer(new Message(instance, channel, params));
+        Message msg = new Message(instance, channel, params);
+        msg.channelID = serverChannelID(channel);
+        if (!MessageBatcher.sendToServer(msg)) {
+            network.sendToServer(msg);
+        }
+        TrafficProfiler.recordReceivers(msg, 1);
     }
 
     public static void sendTo(EntityPlayer player, Object instance, String channel, Object ...params) {
-        network.sendTo(new Message(instance, channel, params), (EntityPlayerMP) player);
+        Message msg = new Message(instance, channel, params);
+        if (!MessageBatcher.sendTo(msg, (EntityPlayerMP) player)) {
+            network.sendTo(msg, (EntityPlayerMP) player);
+            TrafficProfiler.recordSent(msg, player);
+        }
+        TrafficProfiler.recordReceivers(msg, 1);
     }
 
     public static void sendToPlayers(EntityPlayerMP[] players, Object instance, String channel, Object ...params) {
-        Message msg = new Message(instance, channel, params);
-        for (EntityPlayerMP player : players) {
-            network.sendTo(msg, player);
+        Message msg = new Message(instance, channel, params).encodeOnce();
+        if (!MessageBatcher.sendToPlayers(msg, players)) {
+            for (EntityPlayerMP player : players) {
+                network.sendTo(msg, player);
+                TrafficProfiler.recordSent(msg, player);
+            }
         }
+        TrafficProfiler.recordReceivers(msg, players.length);
+        msg.releaseCache();
     }
 
     public static void sendToAll(Object instance, String channel, Object ...params) {
-        network.sendToAll(new Message(instance, channel, params));
+        Message msg = new Message(instance, channel, params);
+        if (!MessageBatcher.sendToAll(msg)) {
+            network.sendToAll(msg);
+            TrafficProfiler.recordSent(msg, null);
+        }
+        TrafficProfiler.recordReceivers(msg, 1);
     }
 
     public static void sendToAllAround(TargetPoint trg, Object instance, String channel, Object ...params) {
-        network.sendToAllAround(new Message(instance, channel, params), trg);
+        Message msg = new Message(instance, channel, params);
+        if (!MessageBatcher.sendToAllAround(msg, trg)) {
+            network.sendToAllAround(msg, trg);
+            TrafficProfiler.recordSent(msg, null);
+        }
+        TrafficProfiler.recordReceivers(msg, 1);
     }
 
     public static void sendToDimension(int dimensionId, Object instance, String channel, Object ...params) {
-        network.sendToDimension(new Message(instance, channel, params), dimensionId);
+        Message msg = new Message(instance, channel, params);
+        if (!MessageBatcher.sendToDimension(msg, dimensionId)) {
+            network.sendToDimension(msg, dimensionId);
+            TrafficProfiler.recordSent(msg, null);
+        }
+        TrafficProfiler.recordReceivers(msg, 1);
     }
 
     // ---
@@ -180,21 +225,168 @@ public class NetworkMessage {
         return new ChannelID(c, channel, side);
     }
 
+    /**
+     * Listeners of one class, indexed by side and channel id. Channels that aren't in the channel table are
+     *  looked up by name instead. Filled lazily from both the client and the integrated server threads, and
+     *  rebuilt if the channel table changed since.
+     */
+    private static class ListenerTable {
+        final Class type;
+        final Function<ChannelID, List<INetworkListener>> builder;
+
+        volatile IDTable byID;
+        final Map<ChannelID, List<INetworkListener>> byName = new ConcurrentHashMap<>();
+
+        ListenerTable(Class _type, Function<ChannelID, List<INetworkListener>> _builder) {
+            type = _type;
+            builder = _builder;
+            byID = new IDTable(channelTable);
+        }
+
+        List<INetworkListener> get(int channelID, String channel, Side side) {
+            IDTable table = byID;
+            ChannelTable current = channelTable;
+            if (table.channels != current) {
+                // Ids were renumbered, the cached mapping is stale
+                table = byID = new IDTable(current);
+            }
+
+            AtomicReferenceArray<List<INetworkListener>> arr = table.bySide[side.ordinal()];
+            if (channelID >= 0 && channelID < arr.length()) {
+                List<INetworkListener> ret = arr.get(channelID);
+                if (ret == null) {
+                    ret = builder.apply(id(type, channel, side));
+                    arr.set(channelID, ret);
+                }
+                return ret;
+            } else {
+                return byName.computeIfAbsent(id(type, channel, side), builder);
+            }
+        }
+    }
+
+    private static class IDTable {
+        final ChannelTable channels;
+        final AtomicReferenceArray<List<INetworkListener>>[] bySide;
+
+        @SuppressWarnings("unchecked")
+        IDTable(ChannelTable _channels) {
+            channels = _channels;
+            bySide = new AtomicReferenceArray[Side.values().length];
+            for (int i = 0; i < bySide.length; ++i) {
+                bySide[i] = new AtomicReferenceArray<>(channels.names.length);
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of the channel table, replaced as a whole on registration.
+     */
+    private static class ChannelTable {
+        final String[] names;
+        final Map<String, Integer> ids = new HashMap<>();
+        final int hash;
+
+        ChannelTable(String[] _names) {
+            names = _names;
+            for (int i = 0; i < names.length; ++i) {
+                ids.put(names[i], i);
+            }
+            hash = Arrays.hashCode(names);
+        }
+
+        boolean sameAs(ChannelTable other) {
+            return other.hash == hash && Arrays.equals(other.names, names);
+        }
+    }
+
     static final SimpleNetworkWrapper network = LambdaLib.channel;
 
-    private static Map<ChannelID, List<INetworkListener>> cachedListeners = new HashMap<>();
-    private static Map<Class, ClassDelegate> classDelegates = new HashMap<>();
+    private static final ClassValue<ListenerTable> listenerTables = new ClassValue<ListenerTable>() {
+        @Override
+        protected ListenerTable computeValue(Class<?> type) {
+            return new ListenerTable(type, NetworkMessage::buildCache);
+        }
+    };
+    private static Map<Class, ClassDelegate> classDelegates = new ConcurrentHashMap<>();
+
+    private static boolean compiledListeners = true;
+
+    // Channel table. Channels in it travel as a varint instead of the full string.
+    private static volatile ChannelTable channelTable = new ChannelTable(new String[0]);
+    private static volatile boolean channelsLocked = false;
+
+    // At client, the channel table of the connected server, sent at login. Null until received.
+    private static volatile ChannelTable serverChannels = null;
+
+    private static final ThreadLocal<EntityPlayer> currentSender = new ThreadLocal<>();
+
+    /**
+     * @return At server, the player whose connection delivered the message being dispatched. Null at client, or
+     *  outside of a listener. Unlike players sent within the message, it can't be forged by the client.
+     */
+    public static EntityPlayer getSender() {
+        return currentSender.get();
+    }
+
+    /**
+     * Adds the given channel names to the channel table. The table is initialized with the channels of all
+     *  {@link Listener}s found by the FML annotation scan. Channels not in the table still work, but are sent by
+     *  name. Must be called before the table is locked when loading completes. <br>
+     *
+     * The server sends its table to each client at login. The client reads channel ids of the server with that table,
+     *  and sends channels by name if the two tables differ (e.g. an addon installed on one side only).
+     * @throws IllegalStateException if the channel table is locked
+     */
+    public static synchronized void registerChannels(Collection<String> channels) {
+        Preconditions.checkState(!channelsLocked, "Channel table is locked, register channels before load complete");
+
+        TreeSet<String> sorted = new TreeSet<>(channels);
+        sorted.addAll(Arrays.asList(channelTable.names));
+
+        channelTable = new ChannelTable(sorted.toArray(new String[sorted.size()]));
+    }
+
+    /**
+     * Fixes the channel ids. Invoked by LambdaLib once all mods have been loaded.
+     */
+    public static void lockChannels() {
+        channelsLocked = true;
+    }
+
+    /**
+     * @return The id of given channel in the channel table, or -1 if it isn't present.
+     */
+    private static int channelID(String channel) {
+        Integer ret = channelTable.ids.get(channel);
+        return ret == null ? -1 : ret;
+    }
+
+    /**
+     * @return The id to send given channel to the server with, or -1 to send it by name if the server's table isn't
+     *  known yet or differs from ours
+     */
+    private static int serverChannelID(String channel) {
+        ChannelTable server = serverChannels;
+        return server != null && server.sameAs(channelTable) ? channelID(channel) : -1;
+    }
 
     /**
      * Invoked at callee side. Send the message to the instance.
      */
-    private static void processMessage(Object instance, String channel, Object... params) {
+    private static void processMessage(Object instance, int channelID, String channel, Object... params) {
+        Side side = FMLCommonHandler.instance().getEffectiveSide();
+
+        if (instance instanceof ClassDelegate) {
+            ((ClassDelegate) instance).dispatch(channelID, channel, side, params);
+            return;
+        }
+
         if (instance instanceof IMessageDelegate) {
             ((IMessageDelegate) instance).onMessage(channel, params);
         }
 
-        Side side = FMLCommonHandler.instance().getEffectiveSide();
-        List<INetworkListener> listeners = getListeners(instance, channel, side);
+        List<INetworkListener> listeners = listenerTables.get(instance.getClass()).get(channelID, channel, side);
         for (INetworkListener m : listeners) {
             invokeListener(m, channel, instance, params);
         }
@@ -216,7 +408,7 @@ public class NetworkMessage {
 
             try {
                 m.invoke(instance, paramsArg);
-            } catch (IllegalArgumentException e) {
+            } catch (IllegalArgumentException|ClassCastException e) {
                 LambdaLib.log.error("Illegal argument for event listener " + m, e);
             } catch (Exception e) {
                 LambdaLib.log.fatal("Error during network message.", e);
@@ -228,20 +420,6 @@ public class NetworkMessage {
         return instance.getClass().getName() + "#" + channel;
     }
 
-    private static List<INetworkListener> getListeners(Object instance, String channel, Side side) {
-        final Class type = instance.getClass();
-        final ChannelID cid = id(type, channel, side);
-
-        List<INetworkListener> result = cachedListeners.get(cid);
-        if (result == null) {
-            result = new ArrayList<>();
-            buildCache(cid, result);
-
-            cachedListeners.put(cid, result);
-        }
-        return result;
-    }
-
     private static boolean matches(ChannelID cid, Method m) {
         Listener anno = m.getAnnotation(Listener.class);
 
@@ -257,42 +435,51 @@ public class NetworkMessage {
         }
     }
 
-    private static void buildCache(ChannelID cid, List<INetworkListener> out) {
-        out.addAll(ReflectionUtils.getAllAccessibleMethods(cid.c)
+    private static List<INetworkListener> buildCache(ChannelID cid) {
+        return ReflectionUtils.getAllAccessibleMethods(cid.c)
                 .stream()
                 .filter(m -> matches(cid, m))
                 .map(NetworkMessage::methodListener)
-                .collect(Collectors.toList()));
+                .collect(Collectors.toList());
     }
 
-    private static INetworkListener methodListener(Method m) {
-        return new INetworkListener() {
+    /**
+     * Sets whether {@link Listener} methods are invoked through precompiled {@link MethodHandle}s (the default) or
+     *  through {@link Method#invoke}. Only affects listeners created afterwards.
+     */
+    public static void setCompiledListeners(boolean state) {
+        compiledListeners = state;
+    }
 
-            BitSet nullUnchecked = new BitSet();
-            {
-                for (int i = 0; i < m.getParameterCount(); ++i) {
-                    Parameter[] pars = m.getParameters();
-                    if (pars[i].isAnnotationPresent(NullablePar.class)) {
-                        nullUnchecked.set(i);
-                    }
-                }
+    /**
+     * Creates the {@link INetworkListener} that invokes given listener method. Arguments that are null are
+     *  checked against {@link NullablePar} before invocation, and the invocation is skipped if the check fails.
+     */
+    public static INetworkListener methodListener(Method m) {
+        final Parameter[] pars = m.getParameters();
+        final int[] nullChecked = IntStream.range(0, pars.length)
+                .filter(i -> !pars[i].isAnnotationPresent(NullablePar.class))
+                .toArray();
+
+        if (compiledListeners) {
+            try {
+                return new CompiledListener(m, nullChecked);
+            } catch (IllegalAccessException e) {
+                LambdaLib.log.warn("Can't compile listener " + m + ", falling back to reflection", e);
             }
+        }
 
+        return new INetworkListener() {
             @Override
             public void invoke(Object instance, Object... args) throws Exception {
-                for (int i = 0; i < args.length; ++i) { // Null check
-                    if (!nullUnchecked.get(i)) {
-                        if (args[i] == null) {
-                            return;
-                        }
-                    }
+                if (passesNullCheck(nullChecked, args)) {
+                    m.invoke(instance, args);
                 }
-                m.invoke(instance, args);
             }
 
             @Override
             public int getParameterCount() {
-                return m.getParameterCount();
+                return pars.length;
             }
 
             @Override
@@ -302,35 +489,307 @@ public class NetworkMessage {
         };
     }
 
+    private static boolean passesNullCheck(int[] nullChecked, Object[] args) {
+        for (int i : nullChecked) {
+            if (i < args.length && args[i] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A listener that invokes the method through a {@link MethodHandle} of type (Object, Object[])void. Static
+     *  methods ignore the instance argument.
+     */
+    private static final class CompiledListener implements INetworkListener {
+
+        final Method method;
+        final MethodHandle handle;
+        final int[] nullChecked;
+        final int paramCount;
+
+        // Null for static methods
+        final Class<?> owner;
+        final Class<?>[] paramTypes;
+        final Class<?>[] argTypes;
+
+        CompiledListener(Method m, int[] _nullChecked) throws IllegalAccessException {
+            m.setAccessible(true);
+
+            method = m;
+            nullChecked = _nullChecked;
+            paramCount = m.getParameterCount();
+            owner = Modifier.isStatic(m.getModifiers()) ? null : m.getDeclaringClass();
+            paramTypes = m.getParameterTypes();
+            argTypes = Arrays.stream(paramTypes).map(Primitives::wrap).toArray(Class<?>[]::new);
+
+            MethodHandle h = MethodHandles.lookup().unreflect(m);
+            if (Modifier.isStatic(m.getModifiers())) {
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            }
+            handle = h.asType(MethodType.genericMethodType(paramCount + 1).changeReturnType(void.class))
+                    .asSpreader(Object[].class, paramCount);
+        }
+
+        @Override
+        public void invoke(Object instance, Object... args) throws Exception {
+            if (!passesNullCheck(nullChecked, args)) {
+                return;
+            }
+            checkArguments(instance, args);
+
+            // Wrapped like Method#invoke does, so that exceptions of the body aren't taken for argument mismatches
+            try {
+                handle.invokeExact(instance, args);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        /**
+         * Checks the arguments in the same way as {@link Method#invoke}, since a failed adaptation of the handle
+         *  can't be told apart from a ClassCastException thrown by the body.
+         * @throws IllegalArgumentException if an argument doesn't fit the method
+         */
+        private void checkArguments(Object instance, Object[] args) {
+            if (owner != null && !owner.isInstance(instance)) {
+                throw new IllegalArgumentException("object is not an instance of declaring class");
+            }
+            if (args.length != paramCount) {
+                throw new IllegalArgumentException("wrong number of arguments");
+            }
+            for (int i = 0; i < paramCount; ++i) {
+                Object arg = args[i];
+                if (arg == null ? paramTypes[i].isPrimitive() : !argTypes[i].isInstance(arg)) {
+                    throw new IllegalArgumentException("argument type mismatch");
+                }
+            }
+        }
+
+        @Override
+        public int getParameterCount() {
+            return paramCount;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+
+    }
+
     public static class Message implements IMessage {
 
         boolean valid;
         Object instance;
+        int channelID;
         String channel;
         Object[] params;
 
+        EncodeCache encodeCache;
+
+        // Asynchronous decoding state, see AsyncDecoder
+        ByteBuf raw;
+        Deferred<?> deferredInstance;
+        Deferred<?>[] deferredParams;
+
+        // Profiling state, see TrafficProfiler
+        int wireBytes;
+        long codecNanos;
+        EntityPlayer sender;
+
+        // The side that received the message
+        Side side;
+
         Message(Object _instance, String _channel, Object ..._params) {
             instance = _instance;
             channel = _channel;
+            channelID = channelID(_channel);
             params = _params;
         }
 
         public Message() {}
 
+        /**
+         * Makes this message be serialized only once, no matter how many receivers it is sent to. Only worth it for
+         *  {@link NetworkMessage#sendToPlayers}, as FML already encodes broadcasts once.
+         */
+        Message encodeOnce() {
+            encodeCache = new EncodeCache();
+            return this;
+        }
+
+        /**
+         * Releases the payload cached by {@link #encodeOnce()}, once the message has been sent to all receivers.
+         */
+        void releaseCache() {
+            if (encodeCache != null) {
+                encodeCache.release();
+            }
+        }
+
         @Override
         public void toBytes(ByteBuf buf) {
-            ByteBufUtils.writeUTF8String(buf, channel);
-            NetworkS11n.serialize(buf, instance, false);
-            buf.writeByte(params.length);
-            for (Object o : params) {
-                NetworkS11n.serialize(buf, o, true);
+            int begin = buf.writerIndex();
+            if (encodeCache != null) {
+                encodeCache.write(buf, this::encodeRecorded);
+            } else {
+                encodeRecorded(buf);
+            }
+            wireBytes = buf.writerIndex() - begin;
+        }
+
+        /**
+         * Encodes the message, recording it to {@link TrafficProfiler}. With {@link #encodeOnce()} this only happens
+         *  for the first receiver, later writes are copies of the cached payload.
+         */
+        private void encodeRecorded(ByteBuf buf) {
+            boolean profile = TrafficProfiler.isEnabled();
+            int begin = buf.writerIndex();
+            long beginTime = profile ? System.nanoTime() : 0;
+
+            encode(buf);
+
+            if (profile) {
+                TrafficProfiler.record(TrafficProfiler.Kind.MESSAGE, TrafficProfiler.Direction.OUT,
+                        instance, channel, buf.writerIndex() - begin, System.nanoTime() - beginTime);
+            }
+        }
+
+        private void encode(ByteBuf buf) {
+            NetworkS11n.beginScope();
+            try {
+                // Channel id + 1, or 0 followed by the channel name if not in the table
+                NetworkS11n.writeVarInt(buf, channelID + 1);
+                if (channelID == -1) {
+                    ByteBufUtils.writeUTF8String(buf, channel);
+                }
+                NetworkS11n.serialize(buf, instance, false);
+                buf.writeByte(params.length);
+                for (Object o : params) {
+                    NetworkS11n.serialize(buf, o, true);
+                }
+            } finally {
+                NetworkS11n.endScope();
             }
         }
 
         @Override
         public void fromBytes(ByteBuf buf) {
-            try {
+            wireBytes = buf.readableBytes();
+            if (AsyncDecoder.isEnabled()) {
+                // Only keep the bytes here, they are decoded by the AsyncDecoder
+                raw = Unpooled.buffer(buf.readableBytes());
+                buf.readBytes(raw);
+            } else {
+                long beginTime = System.nanoTime();
+                decode(buf);
+                codecNanos += System.nanoTime() - beginTime;
+            }
+        }
+
+        /**
+         * Reads the channel id, or the name if sent by name. Ids are resolved to names by {@link #resolveChannel()}
+         *  once the receiving side is known.
+         */
+        private void readChannel(ByteBuf buf) {
+            channelID = NetworkS11n.readVarInt(buf) - 1;
+            if (channelID == -1) {
                 channel = ByteBufUtils.readUTF8String(buf);
+            }
+        }
+
+        /**
+         * Resolves the channel id read by {@link #readChannel(ByteBuf)}. At client, ids are in the server's table,
+         *  and are translated to our table if the two differ.
+         */
+        void resolveChannel() {
+            if (channel != null) {
+                return;
+            }
+
+            ChannelTable local = channelTable, remote = side == Side.CLIENT ? serverChannels : null;
+            if (remote == null || remote.sameAs(local)) {
+                remote = local;
+            }
+            if (channelID < remote.names.length) {
+                channel = remote.names[channelID];
+                if (remote != local) {
+                    channelID = channelID(channel);
+                }
+            } else {
+                LambdaLib.log.error("Unknown network channel id " + channelID);
+                channel = "#" + channelID;
+                channelID = -1;
+                valid = false;
+                releaseParams();
+            }
+        }
+
+        /**
+         * Decodes the raw bytes into their context-free form. Called on a worker thread. If the message contains
+         *  context-dependent objects other than the instance and params themselves, it's left to be decoded
+         *  entirely on the main thread.
+         */
+        void decodeDeferred() {
+            long beginTime = System.nanoTime();
+            ByteBuf buf = raw.duplicate();
+            NetworkS11n.beginScope();
+            NetworkS11n.setDetached(true);
+            try {
+                readChannel(buf);
+                Deferred<?> inst = NetworkS11n.deserializeDeferred(buf);
+                Deferred<?>[] pars = new Deferred[buf.readByte()];
+                for (int i = 0; i < pars.length; ++i) {
+                    pars[i] = NetworkS11n.deserializeDeferred(buf);
+                }
+                deferredInstance = inst;
+                deferredParams = pars;
+            } catch (RuntimeException e) {
+                // Decode on main thread, where the error (if any) is reported as usual
+                deferredInstance = null;
+                deferredParams = null;
+            } finally {
+                NetworkS11n.setDetached(false);
+                NetworkS11n.endScope();
+                codecNanos += System.nanoTime() - beginTime;
+            }
+        }
+
+        /**
+         * Resolves the decoded message in the runtime context. Called on the main thread after
+         *  {@link #decodeDeferred()}.
+         */
+        void resolve() {
+            long beginTime = System.nanoTime();
+            try {
+                if (deferredParams == null) {
+                    decode(raw);
+                } else {
+                    instance = deferredInstance.resolve();
+                    params = new Object[deferredParams.length];
+                    for (int i = 0; i < params.length; ++i) {
+                        params[i] = deferredParams[i].resolve();
+                    }
+                    valid = true;
+                }
+            } catch (ContextException e) {
+                valid = false;
+                releaseParams();
+            } finally {
+                raw.release();
+                raw = null;
+                deferredInstance = null;
+                deferredParams = null;
+                codecNanos += System.nanoTime() - beginTime;
+            }
+        }
+
+        private void decode(ByteBuf buf) {
+            NetworkS11n.beginScope();
+            try {
+                readChannel(buf);
                 instance = NetworkS11n.deserialize(buf);
                 params = new Object[buf.readByte()];
                 for (int i = 0; i < params.length; ++i) {
@@ -339,8 +798,25 @@ public class NetworkMessage {
                 valid = true;
             } catch (ContextException e) {
                 valid = false;
+                releaseParams();
             } catch (Exception e) {
+                releaseParams();
                 throw new RuntimeException("Error deserializing network message " + channel + "@" + instance, e);
+            } finally {
+                NetworkS11n.endScope();
+            }
+        }
+
+        /**
+         * Releases the reference counted params (e.g. ByteBufs) decoded so far, when the message won't be
+         *  dispatched to a listener that would own them.
+         */
+        private void releaseParams() {
+            if (params != null) {
+                for (Object param : params) {
+                    ReferenceCountUtil.release(param);
+                }
+                params = null;
             }
         }
 
@@ -350,54 +826,144 @@ public class NetworkMessage {
 
         @Override
         public IMessage onMessage(Message message, MessageContext ctx) {
+            message.side = ctx.side;
+            if (ctx.side == Side.SERVER) {
+                message.sender = ctx.getServerHandler().playerEntity;
+            }
+            if (message.raw != null) {
+                AsyncDecoder.submit(message, ctx.side);
+            } else {
+                dispatch(message);
+            }
+            return null;
+        }
+
+        static void dispatch(Message message) {
+            message.resolveChannel();
+            if (TrafficProfiler.isEnabled()) {
+                TrafficProfiler.record(TrafficProfiler.Kind.MESSAGE, TrafficProfiler.Direction.IN,
+                        message.instance, message.channel, message.wireBytes, message.codecNanos);
+                if (message.sender != null) {
+                    TrafficProfiler.recordPlayer(TrafficProfiler.Direction.IN, message.sender, message.wireBytes);
+                }
+            }
             if (message.valid) {
                 // LambdaLib.log.info("Received message " + message.channel + " on " + message.instance);
-                processMessage(message.instance, message.channel, message.params);
+                EntityPlayer lastSender = currentSender.get();
+                currentSender.set(message.sender);
+                try {
+                    if (message.sender != null) {
+                        FutureManager.instance.bindReceived(message.params, message.sender);
+                    }
+                    processMessage(message.instance, message.channelID, message.channel, message.params);
+                } finally {
+                    currentSender.set(lastSender);
+                }
             } else {
                 LambdaLib.log.info("Ignored network message " + message.instance + ", " + message.channel);
             }
+        }
+    }
+
+    /**
+     * The server's channel table, sent to each client at login.
+     */
+    public static class ChannelTableMessage implements IMessage {
+
+        String[] names;
+
+        public ChannelTableMessage() {}
+
+        ChannelTableMessage(String[] _names) {
+            names = _names;
+        }
+
+        @Override
+        public void fromBytes(ByteBuf buf) {
+            names = new String[NetworkS11n.readVarInt(buf)];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = ByteBufUtils.readUTF8String(buf);
+            }
+        }
+
+        @Override
+        public void toBytes(ByteBuf buf) {
+            NetworkS11n.writeVarInt(buf, names.length);
+            for (String name : names) {
+                ByteBufUtils.writeUTF8String(buf, name);
+            }
+        }
+    }
+
+    public static class ChannelTableHandler implements IMessageHandler<ChannelTableMessage, IMessage> {
+
+        @Override
+        public IMessage onMessage(ChannelTableMessage message, MessageContext ctx) {
+            ChannelTable server = new ChannelTable(message.names);
+            if (!server.sameAs(channelTable)) {
+                LambdaLib.log.warn("Network channels of the server differ from ours, channels are sent by name.");
+            }
+            serverChannels = server;
             return null;
         }
     }
 
+    @Registrant
+    public enum ChannelTableSync {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onPlayerLoggedIn(PlayerLoggedInEvent evt) {
+            if (evt.player instanceof EntityPlayerMP) {
+                network.sendTo(new ChannelTableMessage(channelTable.names), (EntityPlayerMP) evt.player);
+            }
+        }
+
+        @SubscribeEvent
+        public void onDisconnect(ClientDisconnectionFromServerEvent evt) {
+            serverChannels = null;
+        }
+    }
+
     @Registrant
     @NetworkS11nType
     public static class ClassDelegate implements IMessageDelegate {
 
         final Class type;
-        final LoadingCache<ChannelID, List<INetworkListener>> cache = CacheBuilder.newBuilder()
-                .build(new CacheLoader<ChannelID, List<INetworkListener>>() {
-                    @Override
-                    public List<INetworkListener> load(ChannelID key) throws Exception {
-                        ArrayList<INetworkListener> ret = new ArrayList<>();
-
-                        for (Method m : type.getDeclaredMethods()) {
-                            if (Modifier.isStatic(m.getModifiers()) && matches(key, m)) {
-                                m.setAccessible(true);
-                                ret.add(methodListener(m));
-                            }
-                        }
-
-                        return ret;
-                    }
-                });
+        final ListenerTable listeners;
 
         ClassDelegate(Class<?> _type) {
             type = _type;
+            listeners = new ListenerTable(type, key -> {
+                ArrayList<INetworkListener> ret = new ArrayList<>();
+
+                for (Method m : type.getDeclaredMethods()) {
+                    if (Modifier.isStatic(m.getModifiers()) && matches(key, m)) {
+                        m.setAccessible(true);
+                        ret.add(methodListener(m));
+                    }
+                }
+
+                return ret;
+            });
         }
 
         @Override
         public void onMessage(String channel, Object... params) {
-            Side side = SideHelper.getRuntimeSide();
-            ChannelID id = id(type, channel, side);
+            dispatch(channelID(channel), channel, SideHelper.getRuntimeSide(), params);
+        }
 
-            for (INetworkListener listener : cache.getUnchecked(id)) {
-                invokeListener(listener, id.channel, null, params);
+        void dispatch(int channelID, String channel, Side side, Object... params) {
+            for (INetworkListener listener : listeners.get(channelID, channel, side)) {
+                invokeListener(listener, channel, null, params);
             }
         }
     }
 
     static {
+        registerChannels(LLModContainer.getListenerChannels());
+
         NetworkS11n.addDirect(ClassDelegate.class, new NetS11nAdaptor<ClassDelegate>() {
             @Override
             public void write(ByteBuf buf, ClassDelegate obj) {
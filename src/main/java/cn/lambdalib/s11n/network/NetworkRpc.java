@@ -0,0 +1,265 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.s11n.network;
+
+import cn.lambdalib.core.LambdaLib;
+import cn.lambdalib.s11n.network.NetworkMessage.Listener;
+import cn.lambdalib.s11n.network.NetworkMessage.NullablePar;
+import cn.lambdalib.util.mc.SideHelper;
+import cpw.mods.fml.relauncher.Side;
+import net.minecraft.entity.player.EntityPlayer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A typed request/response endpoint, built on {@link Future}. Endpoints are declared as constants of the class that
+ *  handles them, e.g.
+ * <pre>
+ *  static final NetworkRpc&lt;String, Integer&gt; QUERY_ENERGY = NetworkRpc.declare(MyTile.class, "energy",
+ *      Side.SERVER, (sender, key, response) -&gt; response.sendResult(...));
+ *
+ *  QUERY_ENERGY.request("main").timeout(40).onFailure(f -&gt; ...).sendToServer(energy -&gt; ...);
+ * </pre>
+ * The requester waits for at most the timeout, and has at most {@link #setMaxPendingPerPeer(int) a limited number}
+ *  of requests pending to a peer; requests beyond that fail with {@link Failure#OVERFLOW} without being sent.
+ *  Responses are batched per receiver and tick. <br>
+ *
+ * Endpoints are identified by owner class and name, so they must be declared in the same way at both sides.
+ */
+public final class NetworkRpc<Req, Resp> {
+
+    /**
+     * Why a request got no response.
+     */
+    public enum Failure {
+        /** No response within the timeout. */
+        TIMEOUT,
+        /** Too many requests pending to the peer, the request isn't sent. */
+        OVERFLOW,
+        /** The connection to the peer is lost. */
+        DISCONNECTED,
+        /** The endpoint is unknown or failed at the handling side. */
+        REMOTE_ERROR
+    }
+
+    @FunctionalInterface
+    public interface Handler<Req, Resp> {
+        /**
+         * Handles a request. The response is sent by {@link Future#sendResult(Object)}, which can also be done later.
+         * @param sender The player whose connection delivered the request at server, or thePlayer at client
+         */
+        void handle(EntityPlayer sender, Req request, Future<Resp> response);
+    }
+
+    private static final String MSG_REQUEST = "request";
+
+    private static final Map<String, NetworkRpc<?, ?>> endpoints = new ConcurrentHashMap<>();
+
+    private static int defaultTimeout = 100;
+
+    public static <Req, Resp> NetworkRpc<Req, Resp> declare(Class<?> owner, String name, Side handlerSide,
+                                                            Handler<Req, Resp> handler) {
+        NetworkRpc<Req, Resp> ret = new NetworkRpc<>(owner.getName() + "#" + name, handlerSide, handler);
+        if (endpoints.putIfAbsent(ret.id, ret) != null) {
+            throw new IllegalStateException("Duplicate rpc endpoint " + ret.id);
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the timeout in ticks of requests that don't specify one. Default is 100 ticks.
+     */
+    public static void setDefaultTimeout(int ticks) {
+        defaultTimeout = ticks;
+    }
+
+    /**
+     * Sets how many requests can be pending to one peer. Default is 256.
+     */
+    public static void setMaxPendingPerPeer(int count) {
+        FutureManager.maxPendingPerPeer = count;
+    }
+
+    /**
+     * @return Statistics of pending futures and requests at given side
+     */
+    public static Stats getStats(Side side) {
+        FutureManager.Context ctx = FutureManager.instance.context(side);
+        synchronized (ctx) {
+            return new Stats(ctx);
+        }
+    }
+
+    /**
+     * @return The number of requests and futures pending to given player at server
+     */
+    public static int getPendingCount(EntityPlayer player) {
+        return FutureManager.instance.context(Side.SERVER).pendingOf(player);
+    }
+
+    final String id;
+    final Side handlerSide;
+    final Handler<Req, Resp> handler;
+
+    private NetworkRpc(String _id, Side _handlerSide, Handler<Req, Resp> _handler) {
+        id = _id;
+        handlerSide = _handlerSide;
+        handler = _handler;
+    }
+
+    public Call<Req, Resp> request(Req request) {
+        return new Call<>(this, request);
+    }
+
+    /**
+     * A request to send. Configure it, then send it by {@link #sendToServer(Consumer)} or
+     *  {@link #sendTo(EntityPlayer, Consumer)}.
+     */
+    public static final class Call<Req, Resp> {
+
+        final NetworkRpc<Req, Resp> rpc;
+        final Req request;
+
+        int timeout = defaultTimeout;
+        Consumer<Failure> failureCallback = null;
+
+        Future<Resp> future = null;
+
+        Call(NetworkRpc<Req, Resp> _rpc, Req _request) {
+            rpc = _rpc;
+            request = _request;
+        }
+
+        /**
+         * @param ticks The ticks to wait for response. 0 means to wait until disconnection.
+         */
+        public Call<Req, Resp> timeout(int ticks) {
+            timeout = ticks;
+            return this;
+        }
+
+        public Call<Req, Resp> onFailure(Consumer<Failure> callback) {
+            failureCallback = callback;
+            return this;
+        }
+
+        public Call<Req, Resp> sendToServer(Consumer<Resp> callback) {
+            _checkSide(Side.CLIENT);
+            if (_begin(null, callback)) {
+                NetworkMessage.sendToServer(NetworkMessage.staticCaller(NetworkRpc.class), MSG_REQUEST,
+                        rpc.id, future, request);
+            }
+            return this;
+        }
+
+        public Call<Req, Resp> sendTo(EntityPlayer target, Consumer<Resp> callback) {
+            _checkSide(Side.SERVER);
+            if (_begin(target, callback)) {
+                NetworkMessage.sendTo(target, NetworkMessage.staticCaller(NetworkRpc.class), MSG_REQUEST,
+                        rpc.id, future, request);
+            }
+            return this;
+        }
+
+        /**
+         * Stops waiting for the response. The failure callback is not invoked.
+         * @return Whether the request was still pending
+         */
+        public boolean cancel() {
+            return future != null && future.cancel();
+        }
+
+        /**
+         * @return Whether the request got response, failed or was cancelled
+         */
+        public boolean isDone() {
+            return future != null && future.isDone();
+        }
+
+        private boolean _begin(EntityPlayer peer, Consumer<Resp> callback) {
+            if (future != null) {
+                throw new IllegalStateException("Rpc call already sent");
+            }
+
+            Side side = SideHelper.getRuntimeSide();
+            future = FutureManager.instance.create(callback, peer, timeout, failureCallback);
+            if (!FutureManager.instance.context(side).add(future, true)) {
+                if (failureCallback != null) {
+                    failureCallback.accept(Failure.OVERFLOW);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private void _checkSide(Side requesterSide) {
+            if (rpc.handlerSide == requesterSide || SideHelper.getRuntimeSide() != requesterSide) {
+                throw new IllegalStateException("Rpc " + rpc.id + " can't be requested at " +
+                        SideHelper.getRuntimeSide());
+            }
+        }
+
+    }
+
+    @Listener(channel=MSG_REQUEST, side={Side.CLIENT, Side.SERVER})
+    @SuppressWarnings("unchecked")
+    private static void hRequest(String id, Future future, @NullablePar Object request) {
+        Side side = SideHelper.getRuntimeSide();
+        NetworkRpc rpc = endpoints.get(id);
+        if (rpc == null || rpc.handlerSide != side) {
+            LambdaLib.log.warn("Received request of unknown rpc " + id);
+            FutureManager.instance.sendFailure(future);
+            return;
+        }
+
+        EntityPlayer sender = side == Side.SERVER ? NetworkMessage.getSender() : SideHelper.getThePlayer();
+        if (sender == null) {
+            LambdaLib.log.warn("Received request of rpc " + id + " from unknown sender");
+            return;
+        }
+        try {
+            rpc.handler.handle(sender, request, future);
+        } catch (RuntimeException e) {
+            LambdaLib.log.error("Error handling rpc " + id, e);
+            FutureManager.instance.sendFailure(future);
+        }
+    }
+
+    /**
+     * A snapshot of the pending futures of one side, including those created by {@link Future#create}. Counts other
+     *  than {@link #outstanding} are totals since start.
+     */
+    public static final class Stats {
+        public final int outstanding;
+        public final long completed, failed, timedOut, cancelled, rejected, disconnected;
+        /** Responses sent, and the batched messages carrying them. */
+        public final long resultsSent, batchesSent;
+
+        Stats(FutureManager.Context ctx) {
+            outstanding = ctx.outstanding;
+            completed = ctx.completed;
+            failed = ctx.failed;
+            timedOut = ctx.timedOut;
+            cancelled = ctx.cancelled;
+            rejected = ctx.rejected;
+            disconnected = ctx.disconnected;
+            resultsSent = ctx.resultsSent;
+            batchesSent = ctx.batchesSent;
+        }
+
+        @Override
+        public String toString() {
+            return "outstanding=" + outstanding + ", completed=" + completed + ", failed=" + failed +
+                    ", timedOut=" + timedOut + ", cancelled=" + cancelled + ", rejected=" + rejected +
+                    ", disconnected=" + disconnected + ", resultsSent=" + resultsSent +
+                    ", batchesSent=" + batchesSent;
+        }
+    }
+
+}
@@ -6,6 +6,7 @@
 */
 package cn.lambdalib.s11n.network;
 
+import cn.lambdalib.core.LambdaLib;
 import cn.lambdalib.s11n.SerializeDynamic;
 import cn.lambdalib.s11n.SerializeNullable;
 import cn.lambdalib.util.mc.SideHelper;
@@ -15,8 +16,10 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import cpw.mods.fml.common.network.ByteBufUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import net.minecraft.entity.Entity;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.tileentity.TileEntity;
@@ -32,6 +35,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
@@ -40,6 +44,13 @@ import java.util.function.Supplier;
  */
 public class NetworkS11n {
 
+    /**
+     * Writes and reads objects of a type. <br>
+     *
+     * Reference counting: adaptors never take ownership of the buffer passed in, and must not release it.
+     *  If an adaptor returns a {@link ByteBuf} (or an object holding one) from read(), the caller owns one
+     *  reference of it and is responsible for releasing it. See {@link #setSliceReceivedBuffers(boolean)}.
+     */
     public interface NetS11nAdaptor<T> {
 
         /**
@@ -59,6 +70,157 @@ public class NetworkS11n {
 
     }
 
+    /**
+     * An adaptor of objects that live in the runtime context (world, entities, ...). Reading is split in two: the
+     *  context-free reference is read from the buffer by {@link #readDeferred}, which is safe to call on any thread,
+     *  and it is resolved to the actual object later, on the main thread. <br>
+     *
+     * Adaptors that look up anything in the world should implement this interface, or they can't be used with
+     *  asynchronous message decoding (see {@link AsyncDecoder}).
+     */
+    public interface ContextAdaptor<T> extends NetS11nAdaptor<T> {
+
+        /**
+         * Reads the reference of the object. Must not access the world.
+         */
+        Deferred<T> readDeferred(ByteBuf buf);
+
+        @Override
+        default T read(ByteBuf buf) throws ContextException {
+            _checkAttached();
+            return readDeferred(buf).resolve();
+        }
+
+    }
+
+    /**
+     * A deserialized value that might still need to be resolved in the runtime context.
+     */
+    @FunctionalInterface
+    public interface Deferred<T> {
+
+        /**
+         * @throws ContextException if the object can't be found in current context
+         */
+        T resolve() throws ContextException;
+
+        static <T> Deferred<T> of(T value) {
+            return () -> value;
+        }
+
+    }
+
+    // Primitive specializations. Recursive s11n reads and writes primitive fields through these directly, so no
+    //  boxing happens. The boxed methods are only used when the value is already an object (e.g. message params).
+
+    public interface ByteAdaptor extends NetS11nAdaptor<Byte> {
+
+        void writeByte(ByteBuf buf, byte value);
+
+        byte readByte(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Byte obj) {
+            writeByte(buf, obj);
+        }
+
+        @Override
+        default Byte read(ByteBuf buf) {
+            return readByte(buf);
+        }
+
+    }
+
+    public interface ShortAdaptor extends NetS11nAdaptor<Short> {
+
+        void writeShort(ByteBuf buf, short value);
+
+        short readShort(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Short obj) {
+            writeShort(buf, obj);
+        }
+
+        @Override
+        default Short read(ByteBuf buf) {
+            return readShort(buf);
+        }
+
+    }
+
+    public interface IntAdaptor extends NetS11nAdaptor<Integer> {
+
+        void writeInt(ByteBuf buf, int value);
+
+        int readInt(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Integer obj) {
+            writeInt(buf, obj);
+        }
+
+        @Override
+        default Integer read(ByteBuf buf) {
+            return readInt(buf);
+        }
+
+    }
+
+    public interface FloatAdaptor extends NetS11nAdaptor<Float> {
+
+        void writeFloat(ByteBuf buf, float value);
+
+        float readFloat(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Float obj) {
+            writeFloat(buf, obj);
+        }
+
+        @Override
+        default Float read(ByteBuf buf) {
+            return readFloat(buf);
+        }
+
+    }
+
+    public interface DoubleAdaptor extends NetS11nAdaptor<Double> {
+
+        void writeDouble(ByteBuf buf, double value);
+
+        double readDouble(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Double obj) {
+            writeDouble(buf, obj);
+        }
+
+        @Override
+        default Double read(ByteBuf buf) {
+            return readDouble(buf);
+        }
+
+    }
+
+    public interface BooleanAdaptor extends NetS11nAdaptor<Boolean> {
+
+        void writeBoolean(ByteBuf buf, boolean value);
+
+        boolean readBoolean(ByteBuf buf);
+
+        @Override
+        default void write(ByteBuf buf, Boolean obj) {
+            writeBoolean(buf, obj);
+        }
+
+        @Override
+        default Boolean read(ByteBuf buf) {
+            return readBoolean(buf);
+        }
+
+    }
+
     /**
      * Indicate that a type anticipates in network serialization. Equivalent to
      *  {@link NetworkS11n#register}.
@@ -76,6 +238,16 @@ public class NetworkS11n {
         }
     }
 
+    /**
+     * Thrown when a context-dependent object is read nested inside another object while decoding off the main
+     *  thread. Such messages have to be decoded entirely on the main thread.
+     */
+    static class DetachedException extends RuntimeException {
+        DetachedException() {
+            super("Context-dependent object can't be read off the main thread", null, false, false);
+        }
+    }
+
     // ---
     private static final SerializationHelper serHelper = new SerializationHelper();
 
@@ -83,17 +255,39 @@ public class NetworkS11n {
 
     private static List<Class<?>> serTypes = new ArrayList<>();
     private static Map<Class<?>, NetS11nAdaptor> adaptors = new HashMap<>();
+    // Bulk adaptors for primitive arrays. Kept apart from adaptors so that arrays are not made s11n types.
+    private static Map<Class<?>, NetS11nAdaptor> arrayAdaptors = new HashMap<>();
+
+    private static volatile TypeTable typeTable = null;
+    private static boolean registrationLocked = false;
 
     private static Map<Class, Supplier> suppliers = new HashMap<>();
 
-    private static Map<Class, List<Field>> fieldCache = new HashMap<>();
+    // Concurrent, as messages might be decoded on worker threads
+    private static Map<Class, List<Field>> fieldCache = new ConcurrentHashMap<>();
+
+    private static Map<Class, Optional<RecursiveCodec>> codecCache = new ConcurrentHashMap<>();
+    private static boolean useCodecs = true;
+
+    private static boolean pooled = false;
+    private static volatile boolean sliceReceivedBuffers = false;
+
+    // Volatile, as they are read on netty threads
+    private static volatile boolean compactMode = false;
+    private static volatile boolean quantizeVec3 = false;
+
+    private static final ThreadLocal<WireScope> wireScope = ThreadLocal.withInitial(WireScope::new);
 
     private NetworkS11n() {}
 
     public static <T> void addDirect(Class<T> type, NetS11nAdaptor<? super T> adaptor) {
         register(type);
-        adaptors.put(type, adaptor);
+        NetS11nAdaptor prev = adaptors.put(type, adaptor);
+        if (prev != null && prev != adaptor) {
+            _lateRegistration("adaptor of " + type);
+        }
         serHelper.regS11nType(type);
+        typeTable = null;
     }
 
     public static <T> void addDirectInstance(T instance) {
@@ -108,6 +302,97 @@ public class NetworkS11n {
         });
     }
 
+    /**
+     * Sets whether recursive s11n uses precompiled {@link RecursiveCodec}s (the default). When disabled, all
+     *  recursive types go through the reflective path. The wire format is the same for both.
+     */
+    public static void setCodecEnabled(boolean state) {
+        useCodecs = state;
+    }
+
+    /**
+     * Enables the pooled buffer mode. In this mode, {@link #allocBuffer()} allocates from
+     *  {@link PooledByteBufAllocator}.
+     */
+    public static void setPooled(boolean state) {
+        pooled = state;
+    }
+
+    public static boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Makes ByteBufs read from the network retained slices of the message buffer instead of copies (the default).
+     *  Only enable this if all listeners taking ByteBuf params {@link ByteBuf#release()} them once done, as a
+     *  slice that is not released keeps the whole message buffer alive.
+     */
+    public static void setSliceReceivedBuffers(boolean state) {
+        sliceReceivedBuffers = state;
+    }
+
+    /**
+     * Allocates a buffer for s11n, from the pooled allocator if in pooled mode. The caller owns the buffer and
+     *  must release it once done.
+     */
+    public static ByteBuf allocBuffer() {
+        return pooled ? PooledByteBufAllocator.DEFAULT.heapBuffer() : Unpooled.buffer();
+    }
+
+    /**
+     * Enables the compact wire format: ints, lengths and type indexes are written as varints, and entity ids
+     *  are delta-encoded within a message scope (see {@link #beginScope()}). This trades a little CPU for
+     *  bandwidth. The setting changes the wire format, so it MUST be the same in client and server, and
+     *  must be set before any traffic happens.
+     */
+    public static void setCompactMode(boolean state) {
+        compactMode = state;
+    }
+
+    public static boolean isCompactMode() {
+        return compactMode;
+    }
+
+    /**
+     * Makes {@link Vec3} be written as three floats instead of three doubles. Like {@link #setCompactMode}, it
+     *  MUST be consistent in both sides.
+     */
+    public static void setQuantizeVec3(boolean state) {
+        quantizeVec3 = state;
+    }
+
+    /**
+     * Begins a scope in which stateful encodings (e.g. entity id deltas) are valid. Writer and reader must enter
+     *  and exit the scope at the same points in the stream, which is usually the boundary of a whole message.
+     *  Scopes can nest, and only the outermost one resets the state.
+     */
+    public static void beginScope() {
+        WireScope scope = wireScope.get();
+        if (scope.depth++ == 0) {
+            scope.lastEntityID = 0;
+        }
+    }
+
+    public static void endScope() {
+        WireScope scope = wireScope.get();
+        Preconditions.checkState(scope.depth > 0, "endScope without beginScope");
+        --scope.depth;
+    }
+
+    /**
+     * Marks whether the current thread is decoding off the main thread. In this state, context-dependent objects
+     *  can only be read through {@link #deserializeDeferred}.
+     */
+    static void setDetached(boolean state) {
+        wireScope.get().detached = state;
+    }
+
+    private static void _checkAttached() {
+        if (wireScope.get().detached) {
+            throw new DetachedException();
+        }
+    }
+
     public static <T> void addSupplier(Class<T> type, Supplier<? extends T> supplier) {
         suppliers.put(type, supplier);
     }
@@ -119,9 +404,11 @@ public class NetworkS11n {
      */
     public static void register(Class<?> type) {
         if (!serTypes.contains(type)) {
+            _lateRegistration(type.toString());
+
             serTypes.add(type);
-            serTypes.sort((lhs, rhs) -> lhs.getName().compareTo(rhs.getName()));
             serHelper.regS11nType(type);
+            typeTable = null;
         }
 
         if (serTypes.size() > Short.MAX_VALUE) {
@@ -129,27 +416,121 @@ public class NetworkS11n {
         }
     }
 
+    /**
+     * Closes the registration phase and builds the type lookup table. Registrations after this point still work,
+     *  but are reported, since they can easily make the type indexes in client and server inconsistent.
+     *  Invoked by LambdaLib once all mods have been loaded.
+     */
+    public static void lockRegistration() {
+        registrationLocked = true;
+        _table();
+
+        LambdaLib.log.info("NetworkS11n registration locked with " + serTypes.size() + " types.");
+    }
+
+    public static boolean isRegistrationLocked() {
+        return registrationLocked;
+    }
+
+    private static void _lateRegistration(String what) {
+        if (registrationLocked) {
+            LambdaLib.log.warn("Network s11n registration of " + what + " after registration is locked. " +
+                    "Make sure it happens in the same order on both sides.", new Throwable());
+        }
+    }
+
     private static void writeTypeIndex(ByteBuf buf, Class type) {
         if (type.isArray()) {
-            buf.writeShort(IDX_ARRAY);
+            writeIndex(buf, IDX_ARRAY);
             writeTypeIndex(buf, type.getComponentType());
         } else {
             short idx = (short) typeIndex(type);
             if (idx == -1) {
                 throw new RuntimeException("Type " + type + " not registered for net serialization");
             }
+            writeIndex(buf, idx);
+        }
+    }
+
+    /**
+     * Writes a type index or one of IDX_NULL and IDX_ARRAY. In compact mode, the index is offset to be non-negative
+     *  and written as varint, which takes 1 byte for the first 126 types.
+     */
+    private static void writeIndex(ByteBuf buf, short idx) {
+        if (compactMode) {
+            writeVarInt(buf, idx + 2);
+        } else {
             buf.writeShort(idx);
         }
     }
 
+    private static short readIndex(ByteBuf buf) {
+        if (compactMode) {
+            return (short) (readVarInt(buf) - 2);
+        } else {
+            return buf.readShort();
+        }
+    }
+
+    /**
+     * Writes the length of an array or collection.
+     */
+    static void writeLength(ByteBuf buf, int length) {
+        Preconditions.checkArgument(length < Short.MAX_VALUE, "Array too large");
+        if (compactMode) {
+            writeVarInt(buf, length);
+        } else {
+            buf.writeShort(length);
+        }
+    }
+
+    static int readLength(ByteBuf buf) {
+        return compactMode ? readVarInt(buf) : buf.readShort();
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint. Negative values take 5 bytes, use {@link #writeZigZag} for signed values.
+     */
+    public static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    public static int readVarInt(ByteBuf buf) {
+        int ret = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            ret |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new RuntimeException("Malformed varint");
+    }
+
+    /**
+     * Writes a signed int as zigzag varint, so that small magnitudes take few bytes regardless of sign.
+     */
+    public static void writeZigZag(ByteBuf buf, int value) {
+        writeVarInt(buf, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readZigZag(ByteBuf buf) {
+        int raw = readVarInt(buf);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
     private static Class readTypeIndex(ByteBuf buf) {
-        short idx = buf.readShort();
+        short idx = readIndex(buf);
         if (idx == IDX_NULL) {
             return null;
         } else if (idx == IDX_ARRAY) {
             return getArrayClass(readTypeIndex(buf));
         } else {
-            return serTypes.get(idx);
+            return _table().types[idx];
         }
     }
 
@@ -168,7 +549,7 @@ public class NetworkS11n {
     public static void serialize(ByteBuf buf, Object obj, boolean nullable) {
         if (obj == null) {
             if (nullable) {
-                buf.writeShort(IDX_NULL);
+                writeIndex(buf, IDX_NULL);
             } else {
                 throw new NullPointerException("Trying to serialize a null object where it's not accepted");
             }
@@ -198,10 +579,14 @@ public class NetworkS11n {
         } else if (type.isEnum()) { // Serialize enum
             buf.writeByte(((Enum) obj).ordinal());
         } else if (type.isArray()) { // Serialize array
-            int length = Array.getLength(obj);
-            Preconditions.checkArgument(length < Short.MAX_VALUE, "Array too large");
+            NetS11nAdaptor arrayAdaptor = arrayAdaptors.get(type);
+            if (arrayAdaptor != null) {
+                arrayAdaptor.write(buf, obj);
+                return;
+            }
 
-            buf.writeShort(length);
+            int length = Array.getLength(obj);
+            writeLength(buf, length);
             for (int i = 0; i < length; ++i) {
                 serialize(buf, Array.get(obj, i), true);
             }
@@ -211,22 +596,66 @@ public class NetworkS11n {
     }
 
     public static <T> void serializeRecursively(ByteBuf buf, T obj, Class<? super T> type) {
-        final List<Field> fields = _sortedFields(type);
+        RecursiveCodec codec = _codec(type);
+        if (codec != null) {
+            codec.write(buf, obj);
+        } else {
+            serializeRecursivelyReflective(buf, obj, type);
+        }
+    }
+
+    private static <T> void serializeRecursivelyReflective(ByteBuf buf, T obj, Class<? super T> type) {
+        for (Field f : _sortedFields(type)) {
+            _writeField(buf, obj, f);
+        }
+    }
+
+    private static void _writeField(ByteBuf buf, Object obj, Field f) {
         try {
-            for(Field f : fields) {
-                Object sub = f.get(obj);
-                if (_needsTypeIndex(f)) {
-                    boolean subNullable = f.isAnnotationPresent(SerializeNullable.class);
-                    serialize(buf, sub, subNullable);
-                } else {
-                    serializeWithHint(buf, sub, (Class) f.getType());
-                }
+            Object sub = f.get(obj);
+            if (_needsTypeIndex(f)) {
+                boolean subNullable = f.isAnnotationPresent(SerializeNullable.class);
+                serialize(buf, sub, subNullable);
+            } else {
+                serializeWithHint(buf, sub, (Class) f.getType());
             }
         } catch (IllegalArgumentException|IllegalAccessException e) {
             throw new RuntimeException("Error serializing object " + obj, e);
         }
     }
 
+    /**
+     * @return The number of fields that recursive s11n of given type writes. Fields are indexed in s11n order
+     *  for {@link #serializeField} and {@link #deserializeField}.
+     */
+    public static int fieldCount(Class<?> type) {
+        return _sortedFields(type).size();
+    }
+
+    /**
+     * Serializes only the field with given index of the object, as it would be written by recursive s11n.
+     */
+    public static <T> void serializeField(ByteBuf buf, T obj, Class<? super T> type, int index) {
+        RecursiveCodec codec = _codec(type);
+        if (codec != null) {
+            codec.writeField(buf, obj, index);
+        } else {
+            _writeField(buf, obj, _sortedFields(type).get(index));
+        }
+    }
+
+    /**
+     * Deserializes a field written by {@link #serializeField} into the instance.
+     */
+    public static <T, U extends T> void deserializeField(ByteBuf buf, T instance, Class<U> type, int index) {
+        RecursiveCodec codec = _codec(type);
+        if (codec != null) {
+            codec.readField(buf, instance, index);
+        } else {
+            _readField(buf, instance, _sortedFields(type).get(index));
+        }
+    }
+
     /**
      * Deserializes a object from given buf.
      * @return The deserialized object. Could be null.
@@ -260,7 +689,12 @@ public class NetworkS11n {
             // With type erasure we can't do much about it.
             return (T) adaptor.read(buf);
         } else if (type.isArray()) { // Deserialize array
-            int size = buf.readShort();
+            NetS11nAdaptor arrayAdaptor = arrayAdaptors.get(type);
+            if (arrayAdaptor != null) {
+                return (T) arrayAdaptor.read(buf);
+            }
+
+            int size = readLength(buf);
             Class componentType = type.getComponentType();
 
             Object ret = Array.newInstance(componentType, size);
@@ -276,6 +710,37 @@ public class NetworkS11n {
         }
     }
 
+    /**
+     * Deserializes an object from given buf without resolving it in the runtime context. Safe to be called off the
+     *  main thread, as long as context-dependent objects only appear at the top level.
+     * @return The deferred object, which should be resolved on the main thread
+     * @throws RuntimeException if deserialization failed non-trivially.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Deferred<T> deserializeDeferred(ByteBuf buf) {
+        Class type = readTypeIndex(buf);
+
+        if (type == null) {
+            return Deferred.of(null);
+        } else {
+            return deserializeDeferredWithHint(buf, (Class<T>) type);
+        }
+    }
+
+    /**
+     * Deserializes an object with given type hint, without resolving it in the runtime context.
+     * @see #deserializeDeferred(ByteBuf)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, U extends T> Deferred<T> deserializeDeferredWithHint(ByteBuf buf, Class<U> type) {
+        NetS11nAdaptor<? super U> adaptor = (NetS11nAdaptor) _adaptor(type);
+        if (adaptor instanceof ContextAdaptor) {
+            return (Deferred<T>) ((ContextAdaptor) adaptor).readDeferred(buf);
+        } else {
+            return Deferred.of(deserializeWithHint(buf, type));
+        }
+    }
+
     public static <T, U extends T> T deserializeRecursively(ByteBuf buf, Class<U> type) {
         try {
             T instance = instantiate(type);
@@ -287,35 +752,48 @@ public class NetworkS11n {
     }
 
     public static <T, U extends T> void deserializeRecursivelyInto(ByteBuf buf, T instance, Class<U> type) {
+        RecursiveCodec codec = _codec(type);
+        if (codec != null) {
+            codec.read(buf, instance);
+        } else {
+            deserializeRecursivelyReflective(buf, instance, type);
+        }
+    }
+
+    private static <T, U extends T> void deserializeRecursivelyReflective(ByteBuf buf, T instance, Class<U> type) {
         for (Field f : _sortedFields(type)) {
-            // Both nullable and porlymorphic s11n needs type index.
-            Object sub;
-            if (_needsTypeIndex(f)) {
-                sub = deserialize(buf);
-            } else {
-                sub = deserializeWithHint(buf, f.getType());
-            }
+            _readField(buf, instance, f);
+        }
+    }
 
-            try {
-                f.set(instance, sub);
-            } catch (IllegalArgumentException|IllegalAccessException exc) {
-                throw new RuntimeException("Type mismatch in net s11n: expecting " +
-                        f.getType() + ", found " + (sub != null ? sub.getClass() : "NULL"));
-            }
+    private static void _readField(ByteBuf buf, Object instance, Field f) {
+        // Both nullable and porlymorphic s11n needs type index.
+        Object sub;
+        if (_needsTypeIndex(f)) {
+            sub = deserialize(buf);
+        } else {
+            sub = deserializeWithHint(buf, f.getType());
+        }
+
+        try {
+            f.set(instance, sub);
+        } catch (IllegalArgumentException|IllegalAccessException exc) {
+            throw new RuntimeException("Type mismatch in net s11n: expecting " +
+                    f.getType() + ", found " + (sub != null ? sub.getClass() : "NULL"));
         }
     }
 
     private static int typeIndex(Class<?> type) {
-        Class<?> cur = type;
-        while (cur != null) {
-            int idx = serTypes.indexOf(cur);
-            if (idx != -1) {
-                return idx;
-            }
-            cur = cur.getSuperclass();
-        }
+        return _table().index.get(type);
+    }
 
-        return -1;
+    private static TypeTable _table() {
+        TypeTable ret = typeTable;
+        if (ret == null) {
+            ret = new TypeTable();
+            typeTable = ret;
+        }
+        return ret;
     }
 
     private static List<Field> _sortedFields(Class<?> type) {
@@ -330,30 +808,99 @@ public class NetworkS11n {
         return ret;
     }
 
-    private static boolean _needsTypeIndex(Field f) {
+    /**
+     * @return The codec of given type, or null if codecs are disabled or the codec can't be built.
+     */
+    private static RecursiveCodec _codec(Class<?> type) {
+        if (!useCodecs) {
+            return null;
+        }
+
+        Optional<RecursiveCodec> ret = codecCache.get(type);
+        if (ret == null) {
+            try {
+                ret = Optional.of(new RecursiveCodec(type, _sortedFields(type)));
+            } catch (IllegalAccessException|RuntimeException e) {
+                // Fallback to reflective path for this type
+                ret = Optional.empty();
+            }
+            codecCache.put(type, ret);
+        }
+
+        return ret.orElse(null);
+    }
+
+    /**
+     * @return The adaptor registered exactly for given type, or null.
+     */
+    static NetS11nAdaptor _directAdaptor(Class<?> type) {
+        return adaptors.get(type);
+    }
+
+    static boolean _needsTypeIndex(Field f) {
         return  f.isAnnotationPresent(SerializeDynamic.class) ||
                 f.isAnnotationPresent(SerializeNullable.class);
     }
 
+    @SuppressWarnings("unchecked")
     private static <T> NetS11nAdaptor<? super T> _adaptor(Class<T> topClass) {
-        Class<? super T> cur = topClass;
-        NetS11nAdaptor<? super T> ret = null;
-        while (cur != null) {
-            ret = adaptors.get(cur);
-            if (ret != null) {
-                return ret;
+        return _table().adaptor.get(topClass).orElse(null);
+    }
+
+    /**
+     * A snapshot of the registry, with type index and adaptor lookups resolved once per class (including
+     *  superclass and interface mappings). Rebuilt whenever the registry changes.
+     */
+    private static final class TypeTable {
+
+        final Class<?>[] types;
+        final Map<Class<?>, Integer> direct = new IdentityHashMap<>();
+        final Map<Class<?>, NetS11nAdaptor> adaptors = new IdentityHashMap<>(NetworkS11n.adaptors);
+
+        final ClassValue<Integer> index = new ClassValue<Integer>() {
+            @Override
+            protected Integer computeValue(Class<?> type) {
+                for (Class<?> cur = type; cur != null; cur = cur.getSuperclass()) {
+                    Integer idx = direct.get(cur);
+                    if (idx != null) {
+                        return idx;
+                    }
+                }
+                return -1;
             }
-            cur = cur.getSuperclass();
-        }
+        };
 
-        for (Class<?> itf : topClass.getInterfaces()) {
-            ret = adaptors.get(itf);
-            if (ret != null) {
-                return ret;
+        final ClassValue<Optional<NetS11nAdaptor>> adaptor = new ClassValue<Optional<NetS11nAdaptor>>() {
+            @Override
+            protected Optional<NetS11nAdaptor> computeValue(Class<?> type) {
+                for (Class<?> cur = type; cur != null; cur = cur.getSuperclass()) {
+                    NetS11nAdaptor ret = adaptors.get(cur);
+                    if (ret != null) {
+                        return Optional.of(ret);
+                    }
+                }
+
+                for (Class<?> itf : type.getInterfaces()) {
+                    NetS11nAdaptor ret = adaptors.get(itf);
+                    if (ret != null) {
+                        return Optional.of(ret);
+                    }
+                }
+
+                return Optional.empty();
+            }
+        };
+
+        TypeTable() {
+            List<Class<?>> sorted = new ArrayList<>(serTypes);
+            sorted.sort((lhs, rhs) -> lhs.getName().compareTo(rhs.getName()));
+
+            types = sorted.toArray(new Class<?>[sorted.size()]);
+            for (int i = 0; i < types.length; ++i) {
+                direct.put(types[i], i);
             }
         }
 
-        return ret;
     }
 
     private static <T> T instantiate(Class<T> type) {
@@ -371,14 +918,14 @@ public class NetworkS11n {
 
     // default s11n types
     static {
-        // QUESTION boxing/unboxing might not be performance wise, optimize?
-
         { // Byte
-            NetS11nAdaptor<Byte> adp = new NetS11nAdaptor<Byte>() {
-                public void write(ByteBuf buf, Byte value) {
+            ByteAdaptor adp = new ByteAdaptor() {
+                @Override
+                public void writeByte(ByteBuf buf, byte value) {
                     buf.writeByte(value);
                 }
-                public Byte read(ByteBuf buf) {
+                @Override
+                public byte readByte(ByteBuf buf) {
                     return buf.readByte();
                 }
             };
@@ -386,11 +933,13 @@ public class NetworkS11n {
             addDirect(Byte.class, adp);
         }
         { // Short
-            NetS11nAdaptor<Short> adp = new NetS11nAdaptor<Short>() {
-                public void write(ByteBuf buf, Short value) {
+            ShortAdaptor adp = new ShortAdaptor() {
+                @Override
+                public void writeShort(ByteBuf buf, short value) {
                     buf.writeShort(value);
                 }
-                public Short read(ByteBuf buf) {
+                @Override
+                public short readShort(ByteBuf buf) {
                     return buf.readShort();
                 }
             };
@@ -398,25 +947,31 @@ public class NetworkS11n {
             addDirect(Short.class, adp);
         }
         { // Int
-            NetS11nAdaptor<Integer> adp = new NetS11nAdaptor<Integer>() {
-                public void write(ByteBuf buf, Integer value) {
-                    buf.writeInt(value);
+            IntAdaptor adp = new IntAdaptor() {
+                @Override
+                public void writeInt(ByteBuf buf, int value) {
+                    if (compactMode) {
+                        writeZigZag(buf, value);
+                    } else {
+                        buf.writeInt(value);
+                    }
                 }
-                public Integer read(ByteBuf buf) {
-                    return buf.readInt();
+                @Override
+                public int readInt(ByteBuf buf) {
+                    return compactMode ? readZigZag(buf) : buf.readInt();
                 }
             };
             addDirect(int.class, adp);
             addDirect(Integer.class, adp);
         }
         { // Float
-            NetS11nAdaptor<Float> adp = new NetS11nAdaptor<Float>() {
+            FloatAdaptor adp = new FloatAdaptor() {
                 @Override
-                public void write(ByteBuf buf, Float obj) {
-                    buf.writeFloat(obj);
+                public void writeFloat(ByteBuf buf, float value) {
+                    buf.writeFloat(value);
                 }
                 @Override
-                public Float read(ByteBuf buf) {
+                public float readFloat(ByteBuf buf) {
                     return buf.readFloat();
                 }
             };
@@ -424,13 +979,13 @@ public class NetworkS11n {
             addDirect(Float.class, adp);
         }
         { // Double
-            NetS11nAdaptor<Double> adp = new NetS11nAdaptor<Double>() {
+            DoubleAdaptor adp = new DoubleAdaptor() {
                 @Override
-                public void write(ByteBuf buf, Double obj) {
-                    buf.writeDouble(obj);
+                public void writeDouble(ByteBuf buf, double value) {
+                    buf.writeDouble(value);
                 }
                 @Override
-                public Double read(ByteBuf buf) {
+                public double readDouble(ByteBuf buf) {
                     return buf.readDouble();
                 }
             };
@@ -438,13 +993,13 @@ public class NetworkS11n {
             addDirect(Double.class, adp);
         }
         { // Boolean
-            NetS11nAdaptor<Boolean> adp = new NetS11nAdaptor<Boolean>() {
+            BooleanAdaptor adp = new BooleanAdaptor() {
                 @Override
-                public void write(ByteBuf buf, Boolean obj) {
-                    buf.writeBoolean(obj);
+                public void writeBoolean(ByteBuf buf, boolean value) {
+                    buf.writeBoolean(value);
                 }
                 @Override
-                public Boolean read(ByteBuf buf) throws ContextException {
+                public boolean readBoolean(ByteBuf buf) {
                     return buf.readBoolean();
                 }
             };
@@ -452,6 +1007,81 @@ public class NetworkS11n {
             addDirect(Boolean.class, adp);
         }
 
+        // Primitive arrays, written as a single block instead of per element with type index
+        arrayAdaptors.put(byte[].class, new NetS11nAdaptor<byte[]>() {
+            @Override
+            public void write(ByteBuf buf, byte[] obj) {
+                writeLength(buf, obj.length);
+                buf.writeBytes(obj);
+            }
+            @Override
+            public byte[] read(ByteBuf buf) {
+                byte[] ret = new byte[readLength(buf)];
+                buf.readBytes(ret);
+                return ret;
+            }
+        });
+        arrayAdaptors.put(int[].class, new NetS11nAdaptor<int[]>() {
+            @Override
+            public void write(ByteBuf buf, int[] obj) {
+                writeLength(buf, obj.length);
+                if (compactMode) {
+                    for (int x : obj) {
+                        writeZigZag(buf, x);
+                    }
+                } else {
+                    buf.ensureWritable(obj.length * 4);
+                    for (int x : obj) {
+                        buf.writeInt(x);
+                    }
+                }
+            }
+            @Override
+            public int[] read(ByteBuf buf) {
+                int[] ret = new int[readLength(buf)];
+                for (int i = 0; i < ret.length; ++i) {
+                    ret[i] = compactMode ? readZigZag(buf) : buf.readInt();
+                }
+                return ret;
+            }
+        });
+        arrayAdaptors.put(float[].class, new NetS11nAdaptor<float[]>() {
+            @Override
+            public void write(ByteBuf buf, float[] obj) {
+                writeLength(buf, obj.length);
+                buf.ensureWritable(obj.length * 4);
+                for (float x : obj) {
+                    buf.writeFloat(x);
+                }
+            }
+            @Override
+            public float[] read(ByteBuf buf) {
+                float[] ret = new float[readLength(buf)];
+                for (int i = 0; i < ret.length; ++i) {
+                    ret[i] = buf.readFloat();
+                }
+                return ret;
+            }
+        });
+        arrayAdaptors.put(double[].class, new NetS11nAdaptor<double[]>() {
+            @Override
+            public void write(ByteBuf buf, double[] obj) {
+                writeLength(buf, obj.length);
+                buf.ensureWritable(obj.length * 8);
+                for (double x : obj) {
+                    buf.writeDouble(x);
+                }
+            }
+            @Override
+            public double[] read(ByteBuf buf) {
+                double[] ret = new double[readLength(buf)];
+                for (int i = 0; i < ret.length; ++i) {
+                    ret[i] = buf.readDouble();
+                }
+                return ret;
+            }
+        });
+
         addDirect(String.class, new NetS11nAdaptor<String>() {
             @Override
             public void write(ByteBuf buf, String obj) {
@@ -466,14 +1096,18 @@ public class NetworkS11n {
         addDirect(ByteBuf.class, new NetS11nAdaptor<ByteBuf>() {
             @Override
             public void write(ByteBuf buf, ByteBuf obj) {
-                obj.readBytes(buf, obj.readableBytes());
+                // Doesn't move the reader index, so the same ByteBuf can be written more than once
+                buf.writeBytes(obj, obj.readerIndex(), obj.readableBytes());
             }
             @Override
             public ByteBuf read(ByteBuf buf) throws ContextException {
-                ByteBuf buf_ = buf.duplicate();
-                ByteBuf buf2 = Unpooled.buffer();
-                buf_.readBytes(buf2, buf_.readableBytes());
-                return buf2;
+                if (sliceReceivedBuffers) {
+                    return buf.slice().retain();
+                } else {
+                    ByteBuf ret = Unpooled.buffer(buf.readableBytes());
+                    ret.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+                    return ret;
+                }
             }
         });
 
@@ -481,15 +1115,19 @@ public class NetworkS11n {
         addDirect(Class.class, new NetS11nAdaptor<Class>() {
             @Override
             public void write(ByteBuf buf, Class obj) {
-                int idx = serTypes.indexOf(obj);
-                if (idx == -1) throw new IllegalArgumentException(obj + " is not a network s11n type");
+                Integer idx = _table().direct.get(obj);
+                if (idx == null) throw new IllegalArgumentException(obj + " is not a network s11n type");
 
-                buf.writeInt(idx);
+                if (compactMode) {
+                    writeVarInt(buf, idx);
+                } else {
+                    buf.writeInt(idx);
+                }
             }
 
             @Override
             public Class read(ByteBuf buf) throws ContextException {
-                return serTypes.get(buf.readInt());
+                return _table().types[compactMode ? readVarInt(buf) : buf.readInt()];
             }
         });
 
@@ -541,7 +1179,7 @@ public class NetworkS11n {
             public void write(ByteBuf buf, Set obj) {
                 Preconditions.checkArgument(obj.size() < Short.MAX_VALUE, "Too many objects to serialize");
 
-                buf.writeShort(obj.size());
+                writeLength(buf, obj.size());
 
                 for (Object o : obj) {
                     serialize(buf, o, false);
@@ -549,7 +1187,7 @@ public class NetworkS11n {
             }
             @Override
             public Set read(ByteBuf buf) throws ContextException {
-                int size = buf.readShort();
+                int size = readLength(buf);
                 Set<Object> ret = new HashSet<>();
 
                 while (size-- > 0) {
@@ -565,13 +1203,22 @@ public class NetworkS11n {
                 byte[] bytes = obj.toByteArray();
                 _check(bytes.length <= Byte.MAX_VALUE, "Too many bytes to write");
                 buf.writeByte(bytes.length);
-                buf.writeBytes(obj.toByteArray());
+                buf.writeBytes(bytes);
             }
             @Override
             public BitSet read(ByteBuf buf) {
+                // Set bits directly from the buffer, without an intermediate byte array
                 int readBytes = buf.readByte();
-                byte[] bytes = buf.readBytes(readBytes).array();
-                return BitSet.valueOf(bytes);
+                BitSet ret = new BitSet(readBytes * 8);
+                for (int i = 0; i < readBytes; ++i) {
+                    int b = buf.readByte() & 0xFF;
+                    for (int bit = 0; b != 0; ++bit, b >>>= 1) {
+                        if ((b & 1) != 0) {
+                            ret.set(i * 8 + bit);
+                        }
+                    }
+                }
+                return ret;
             }
         });
         //
@@ -587,43 +1234,55 @@ public class NetworkS11n {
                 return ByteBufUtils.readTag(buf);
             }
         });
-        addDirect(Entity.class, new NetS11nAdaptor<Entity>() {
+        addDirect(Entity.class, new ContextAdaptor<Entity>() {
             @Override
             public void write(ByteBuf buf, Entity obj) {
                 buf.writeByte(obj.dimension);
-                buf.writeInt(obj.getEntityId());
+                if (compactMode) {
+                    writeZigZag(buf, wireScope.get().deltaEntityID(obj.getEntityId()));
+                } else {
+                    buf.writeInt(obj.getEntityId());
+                }
             }
             @Override
-            public Entity read(ByteBuf buf) {
-                World wrld = SideHelper.getWorld(buf.readByte());
-                if (wrld == null) {
-                    throw new ContextException("Invalid world");
-                } else {
-                    Entity ret = wrld.getEntityByID(buf.readInt());
-                    if (ret == null) {
-                        throw new ContextException("No entity with such ID");
+            public Deferred<Entity> readDeferred(ByteBuf buf) {
+                int dimension = buf.readByte();
+                // Always consume the id, so that the entity delta stays consistent with the writer
+                int id = compactMode ? wireScope.get().undeltaEntityID(readZigZag(buf)) : buf.readInt();
+                return () -> {
+                    World wrld = SideHelper.getWorld(dimension);
+                    if (wrld == null) {
+                        throw new ContextException("Invalid world");
                     } else {
-                        return ret;
+                        Entity ret = wrld.getEntityByID(id);
+                        if (ret == null) {
+                            throw new ContextException("No entity with such ID");
+                        } else {
+                            return ret;
+                        }
                     }
-                }
+                };
             }
         });
-        addDirect(World.class, new NetS11nAdaptor<World>() {
+        addDirect(World.class, new ContextAdaptor<World>() {
             @Override
             public void write(ByteBuf buf, World obj) {
                 buf.writeByte(obj.provider.dimensionId);
             }
             @Override
-            public World read(ByteBuf buf) throws ContextException {
-                World wrld = SideHelper.getWorld(buf.readByte());
-                if (wrld == null) {
-                    throw new ContextException("invalid world");
-                } else {
-                    return wrld;
-                }
+            public Deferred<World> readDeferred(ByteBuf buf) {
+                int dimension = buf.readByte();
+                return () -> {
+                    World wrld = SideHelper.getWorld(dimension);
+                    if (wrld == null) {
+                        throw new ContextException("invalid world");
+                    } else {
+                        return wrld;
+                    }
+                };
             }
         });
-        addDirect(TileEntity.class, new NetS11nAdaptor<TileEntity>() {
+        addDirect(TileEntity.class, new ContextAdaptor<TileEntity>() {
             @Override
             public void write(ByteBuf buf, TileEntity obj) {
                 serializeWithHint(buf, obj.getWorldObj(), World.class);
@@ -633,45 +1292,94 @@ public class NetworkS11n {
                 buf.writeInt(obj.zCoord);
             }
             @Override
-            public TileEntity read(ByteBuf buf) throws ContextException {
-                World world = deserializeWithHint(buf, World.class);
+            public Deferred<TileEntity> readDeferred(ByteBuf buf) {
+                Deferred<World> world = deserializeDeferredWithHint(buf, World.class);
+                int x = buf.readInt(), y = buf.readInt(), z = buf.readInt();
 
-                TileEntity tileEntity = world.getTileEntity(buf.readInt(), buf.readInt(), buf.readInt());
+                return () -> {
+                    TileEntity tileEntity = world.resolve().getTileEntity(x, y, z);
 
-                if (tileEntity == null) {
-                    throw new ContextException("No such TileEntity is present");
-                } else {
-                    return tileEntity;
-                }
+                    if (tileEntity == null) {
+                        throw new ContextException("No such TileEntity is present");
+                    } else {
+                        return tileEntity;
+                    }
+                };
             }
         });
         addDirect(Vec3.class, new NetS11nAdaptor<Vec3>() {
             @Override
             public void write(ByteBuf buf, Vec3 obj) {
-                buf.writeDouble(obj.xCoord);
-                buf.writeDouble(obj.yCoord);
-                buf.writeDouble(obj.zCoord);
+                if (quantizeVec3) {
+                    buf.writeFloat((float) obj.xCoord);
+                    buf.writeFloat((float) obj.yCoord);
+                    buf.writeFloat((float) obj.zCoord);
+                } else {
+                    buf.writeDouble(obj.xCoord);
+                    buf.writeDouble(obj.yCoord);
+                    buf.writeDouble(obj.zCoord);
+                }
             }
             @Override
             public Vec3 read(ByteBuf buf) throws ContextException {
-                return Vec3.createVectorHelper(buf.readDouble(), buf.readDouble(), buf.readDouble());
+                if (quantizeVec3) {
+                    return Vec3.createVectorHelper(buf.readFloat(), buf.readFloat(), buf.readFloat());
+                } else {
+                    return Vec3.createVectorHelper(buf.readDouble(), buf.readDouble(), buf.readDouble());
+                }
             }
         });
         addDirect(ItemStack.class, new NetS11nAdaptor<ItemStack>() {
             @Override
             public void write(ByteBuf buf, ItemStack obj) {
-                NBTTagCompound tag = new NBTTagCompound();
-                obj.writeToNBT(tag);
-                serializeWithHint(buf, tag, NBTTagCompound.class);
+                // Written field by field like vanilla packets do, instead of through a temporary compound
+                buf.writeShort(Item.getIdFromItem(obj.getItem()));
+                buf.writeByte(obj.stackSize);
+                buf.writeShort(obj.getItemDamage());
+                ByteBufUtils.writeTag(buf, obj.stackTagCompound);
             }
             @Override
             public ItemStack read(ByteBuf buf) throws ContextException {
-                NBTTagCompound tag = deserializeWithHint(buf, NBTTagCompound.class);
-                return ItemStack.loadItemStackFromNBT(tag);
+                Item item = Item.getItemById(buf.readShort());
+                int count = buf.readByte(), damage = buf.readShort();
+                NBTTagCompound tag = ByteBufUtils.readTag(buf);
+                if (item == null) { // Unknown id, e.g. the item is missing on this side
+                    return null;
+                }
+
+                ItemStack ret = new ItemStack(item, count, damage);
+                ret.stackTagCompound = tag;
+                return ret;
             }
         });
     }
 
+    /**
+     * Per-thread state of stateful encodings. Outside of a scope, all encodings are absolute.
+     */
+    private static final class WireScope {
+        int depth;
+        int lastEntityID;
+        boolean detached;
+
+        int deltaEntityID(int id) {
+            if (depth == 0) {
+                return id;
+            }
+            int ret = id - lastEntityID;
+            lastEntityID = id;
+            return ret;
+        }
+
+        int undeltaEntityID(int delta) {
+            if (depth == 0) {
+                return delta;
+            }
+            lastEntityID += delta;
+            return lastEntityID;
+        }
+    }
+
     private static void _check(boolean pred, String errmsg) {
         if (!pred) {
             throw new RuntimeException(errmsg);
@@ -0,0 +1,340 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.s11n.network;
+
+import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
+import cn.lambdalib.core.LambdaLib;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
+import cpw.mods.fml.common.network.simpleimpl.IMessage;
+import net.minecraft.entity.player.EntityPlayer;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the network traffic of {@link NetworkMessage}s and {@link NetworkEvent}s, while enabled. Traffic is
+ *  counted per message kind, direction, instance type (the event class for NetworkEvent) and channel, along with a
+ *  histogram of serialize or deserialize time. Traffic of DataPart syncs shows up as messages whose instance type
+ *  is the DataPart class. <br>
+ *
+ * Outbound messages are counted once per encode, no matter how they are sent (to several players, broadcast or
+ *  batched), and the receivers they are sent to are counted separately, a broadcast counting as one receiver. Bytes
+ *  actually sent are counted per player for messages sent to or received from single players; broadcasts are
+ *  counted under {@link #BROADCAST}. <br>
+ *
+ * The recorded data can be viewed with the /netprof command, or dumped periodically into a CSV file, see
+ *  {@link #setPeriodicDump(File, int)}.
+ */
+@Registrant
+public final class TrafficProfiler {
+
+    public enum Kind { MESSAGE, EVENT }
+
+    public enum Direction { OUT, IN }
+
+    public static final String BROADCAST = "<broadcast>";
+
+    /**
+     * Histogram buckets of codec time. Bucket i counts times in [2^i, 2^(i+1)) nanoseconds, the last bucket also
+     *  counts longer times.
+     */
+    public static final int BUCKETS = 32;
+
+    private static volatile boolean enabled = false;
+
+    private static final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+    private static final Map<String, PlayerStats> playerStats = new ConcurrentHashMap<>();
+
+    private static File dumpFile = null;
+    private static int dumpInterval = 0;
+    private static int ticks = 0;
+
+    private TrafficProfiler() {}
+
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Clears all recorded data.
+     */
+    public static void reset() {
+        stats.clear();
+        playerStats.clear();
+    }
+
+    /**
+     * Appends a snapshot of the recorded data to given file every intervalTicks server ticks, while enabled.
+     * @param file The file, or null to stop dumping
+     */
+    public static void setPeriodicDump(File file, int intervalTicks) {
+        dumpFile = file;
+        dumpInterval = intervalTicks;
+    }
+
+    /**
+     * @return A snapshot of the recorded traffic, sorted by bytes in descending order
+     */
+    public static List<Map.Entry<Key, Stats>> getStats() {
+        List<Map.Entry<Key, Stats>> ret = new ArrayList<>(stats.entrySet());
+        ret.sort((lhs, rhs) -> Long.compare(rhs.getValue().getBytes(), lhs.getValue().getBytes()));
+        return ret;
+    }
+
+    /**
+     * @return The recorded traffic by player name
+     */
+    public static Map<String, PlayerStats> getPlayerStats() {
+        return Collections.unmodifiableMap(playerStats);
+    }
+
+    static void record(Kind kind, Direction direction, Object instance, String channel, int bytes, long nanos) {
+        Stats s = _stats(new Key(kind, direction, typeName(instance), channel));
+        s.count.increment();
+        s.bytes.add(bytes);
+        s.histogram.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Records the number of receivers an outbound message has been sent to, a broadcast counting as one.
+     */
+    static void recordReceivers(IMessage msg, int receivers) {
+        if (!enabled) {
+            return;
+        }
+        Key key;
+        if (msg instanceof NetworkMessage.Message) {
+            NetworkMessage.Message nmsg = (NetworkMessage.Message) msg;
+            key = new Key(Kind.MESSAGE, Direction.OUT, typeName(nmsg.instance), nmsg.channel);
+        } else if (msg instanceof NetworkEvent.Message) {
+            key = new Key(Kind.EVENT, Direction.OUT, typeName(((NetworkEvent.Message) msg).object), null);
+        } else {
+            return;
+        }
+        _stats(key).receivers.add(receivers);
+    }
+
+    private static Stats _stats(Key key) {
+        Stats s = stats.get(key);
+        if (s == null) {
+            s = stats.computeIfAbsent(key, k -> new Stats());
+        }
+        return s;
+    }
+
+    /**
+     * @param player The player, or null for a broadcast
+     */
+    static void recordPlayer(Direction direction, EntityPlayer player, int bytes) {
+        String name = player == null ? BROADCAST : player.getCommandSenderName();
+        PlayerStats s = playerStats.get(name);
+        if (s == null) {
+            s = playerStats.computeIfAbsent(name, k -> new PlayerStats());
+        }
+        s.count[direction.ordinal()].increment();
+        s.bytes[direction.ordinal()].add(bytes);
+    }
+
+    /**
+     * Records a message that has been sent to given player, or broadcast if player is null.
+     */
+    static void recordSent(IMessage msg, EntityPlayer player) {
+        if (enabled) {
+            recordPlayer(Direction.OUT, player, wireBytes(msg));
+        }
+    }
+
+    private static int wireBytes(IMessage msg) {
+        if (msg instanceof NetworkMessage.Message) {
+            return ((NetworkMessage.Message) msg).wireBytes;
+        } else if (msg instanceof NetworkEvent.Message) {
+            return ((NetworkEvent.Message) msg).wireBytes;
+        } else if (msg instanceof MessageBatcher.Batch) {
+            return ((MessageBatcher.Batch) msg).wireBytes;
+        }
+        return 0;
+    }
+
+    static String typeName(Object instance) {
+        if (instance == null) {
+            return "null";
+        }
+        if (instance instanceof NetworkMessage.ClassDelegate) {
+            return ((NetworkMessage.ClassDelegate) instance).type.getName();
+        }
+        return instance.getClass().getName();
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /**
+     * Writes the recorded data as CSV, one row per key followed by one row per player.
+     * @param timestamp Value of the first column of each row
+     */
+    public static void writeCSV(PrintWriter out, long timestamp) {
+        for (Map.Entry<Key, Stats> entry : getStats()) {
+            Key key = entry.getKey();
+            Stats s = entry.getValue();
+            out.print(timestamp + "," + key.kind + "," + key.direction + "," + key.type + "," + key.channel + "," +
+                    s.getCount() + "," + s.getBytes() + "," + s.getReceivers());
+            for (int i = 0; i < BUCKETS; ++i) {
+                out.print("," + s.getHistogram(i));
+            }
+            out.println();
+        }
+        for (Map.Entry<String, PlayerStats> entry : playerStats.entrySet()) {
+            PlayerStats s = entry.getValue();
+            for (Direction dir : Direction.values()) {
+                out.println(timestamp + ",PLAYER," + dir + "," + entry.getKey() + ",," +
+                        s.getCount(dir) + "," + s.getBytes(dir) + ",");
+            }
+        }
+    }
+
+    /**
+     * Appends the recorded data to given file, writing the CSV header if the file is new.
+     */
+    public static void dump(File file) throws IOException {
+        boolean header = !file.exists();
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file, true)))) {
+            if (header) {
+                out.print("timestamp,kind,direction,type,channel,count,bytes,receivers");
+                for (int i = 0; i < BUCKETS; ++i) {
+                    out.print(",t" + i);
+                }
+                out.println();
+            }
+            writeCSV(out, System.currentTimeMillis());
+        }
+    }
+
+    public static final class Key {
+        public final Kind kind;
+        public final Direction direction;
+        public final String type;
+        public final String channel; // Empty for NetworkEvent
+
+        Key(Kind _kind, Direction _direction, String _type, String _channel) {
+            kind = _kind;
+            direction = _direction;
+            type = _type;
+            channel = _channel == null ? "" : _channel;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((kind.hashCode() * 31 + direction.hashCode()) * 31 + type.hashCode()) * 31 + channel.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Key) {
+                Key key = (Key) other;
+                return key.kind == kind && key.direction == direction &&
+                        key.type.equals(type) && key.channel.equals(channel);
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + direction + " " + type + (channel.isEmpty() ? "" : "#" + channel);
+        }
+    }
+
+    public static final class Stats {
+        final LongAdder count = new LongAdder(), bytes = new LongAdder(), receivers = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * @return Messages encoded (for OUT) or received (for IN)
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return Receivers the encoded messages were sent to, a broadcast counting as one. Always 0 for IN.
+         */
+        public long getReceivers() {
+            return receivers.sum();
+        }
+
+        /**
+         * @return Count of serialize (for OUT) or deserialize (for IN) times that fall into given bucket
+         */
+        public long getHistogram(int bucket) {
+            return histogram.get(bucket);
+        }
+
+        /**
+         * @return Upper bound in nanoseconds of the bucket the given fraction of times falls into
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                total += histogram.get(i);
+            }
+            long target = (long) Math.ceil(total * fraction), acc = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                acc += histogram.get(i);
+                if (acc >= target && acc > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    public static final class PlayerStats {
+        final LongAdder[] count = { new LongAdder(), new LongAdder() }, bytes = { new LongAdder(), new LongAdder() };
+
+        public long getCount(Direction direction) {
+            return count[direction.ordinal()].sum();
+        }
+
+        public long getBytes(Direction direction) {
+            return bytes[direction.ordinal()].sum();
+        }
+    }
+
+    @Registrant
+    public enum EventListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.END && enabled && dumpFile != null && dumpInterval > 0 &&
+                    ++ticks % dumpInterval == 0) {
+                try {
+                    dump(dumpFile);
+                } catch (IOException e) {
+                    LambdaLib.log.error("Failed to dump network traffic to " + dumpFile, e);
+                }
+            }
+        }
+    }
+
+}
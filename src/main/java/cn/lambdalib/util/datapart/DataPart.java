@@ -15,6 +15,14 @@ import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.nbt.NBTTagCompound;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static cn.lambdalib.core.LLCommons.*;
 
 /**
@@ -31,7 +39,20 @@ public abstract class DataPart<T extends EntityLivingBase> {
     boolean needTick = false;
     boolean clientNeedSync = false;
     boolean clearOnDeath = false;
+    boolean deltaSync = false;
     double serverSyncRange = 10.0;
+    int syncInterval = 0;
+
+    // Scheduler state, see SyncScheduler
+    boolean syncScheduled = false;
+    long lastSyncTick = Long.MIN_VALUE / 2;
+    int lastSyncBytes = 0;
+    int syncDeferrals = 0;
+
+    // Delta sync state: encoded value of each field as last sent, and the players that received it, with their
+    //  SyncScheduler.viewEpoch at that time. Concurrent, as itn_query_init is handled on the netty thread.
+    private byte[][] syncSnapshot;
+    private final Map<EntityPlayerMP, Integer> syncRecipients = new ConcurrentHashMap<>();
 
     // Behaviour
 
@@ -40,6 +61,7 @@ public abstract class DataPart<T extends EntityLivingBase> {
      */
     protected final void setTick(boolean state) {
         needTick = state;
+        updateActive();
     }
 
     /**
@@ -54,6 +76,7 @@ public abstract class DataPart<T extends EntityLivingBase> {
      */
     protected final void setClientNeedSync() {
         clientNeedSync = true;
+        updateActive();
     }
 
     /**
@@ -64,6 +87,22 @@ public abstract class DataPart<T extends EntityLivingBase> {
         serverSyncRange = range;
     }
 
+    /**
+     * Make sync() only mark this DataPart dirty, and let the {@link SyncScheduler} sync it at the end of tick, at most
+     *  once per given ticks. Defaults to 0, which syncs immediately on every call.
+     */
+    protected final void setSyncInterval(int ticks) {
+        syncInterval = ticks;
+    }
+
+    /**
+     * Make server sync() only send the fields changed since last sync to clients that already received it. Clients
+     *  that come into range get a full sync. Syncs from client are always full.
+     */
+    protected final void setDeltaSync() {
+        deltaSync = true;
+    }
+
     /**
      * Make this DataPart to be disposed when entity is dead. Useful for EntityPlayer only (others don't revive!)
      */
@@ -76,18 +115,125 @@ public abstract class DataPart<T extends EntityLivingBase> {
     /**
      * Sync this DataPart's data (fields). If in client, data will be synced to server. Otherwise, data will be synced to any
      *  clients within the range specified by {@link #setServerSyncRange(double)}. The field synchronized follows the
-     *  rule of NetworkS11n API.
+     *  rule of NetworkS11n API. If a sync interval is set, the sync is deferred to {@link SyncScheduler}.
      */
     public final void sync() {
+        if (syncInterval > 0) {
+            markDirty();
+        } else {
+            syncNow();
+        }
+    }
+
+    /**
+     * Schedules a sync at the end of this tick (or later, see {@link #setSyncInterval(int)}). Multiple calls within
+     *  the interval result in one sync.
+     */
+    public final void markDirty() {
+        SyncScheduler.get(getSide()).schedule(this);
+    }
+
+    /**
+     * @return The number of bytes sent
+     */
+    int syncNow() {
         if (isClient()) {
-            __syncClient();
+            return __syncClient();
+        } else if (deltaSync) {
+            return __syncDelta();
         } else {
-            sendMessage("itn_sync", __genSyncBuffer());
+            ByteBuf buf = __genSyncBuffer();
+            int size = buf.readableBytes();
+            sendMessage("itn_sync", buf);
+            return size;
         }
     }
 
+    private int __syncDelta() {
+        Class type = getClass();
+        int fieldCount = NetworkS11n.fieldCount(type);
+        if (syncSnapshot == null) {
+            syncSnapshot = new byte[fieldCount][];
+        }
+
+        // Delta layout: bitmask of changed fields, then the changed fields in order
+        byte[] mask = new byte[(fieldCount + 7) / 8];
+        ByteBuf fields = Unpooled.buffer();
+        ByteBuf field = Unpooled.buffer();
+        boolean changed = false;
+        for (int i = 0; i < fieldCount; ++i) {
+            field.clear();
+            NetworkS11n.serializeField(field, this, type, i);
+            if (!__sameBytes(field, syncSnapshot[i])) {
+                byte[] bytes = new byte[field.readableBytes()];
+                field.getBytes(field.readerIndex(), bytes);
+                syncSnapshot[i] = bytes;
+
+                mask[i >> 3] |= 1 << (i & 7);
+                fields.writeBytes(bytes);
+                changed = true;
+            }
+        }
+        field.release();
+
+        // Players that left range, respawned or changed dimension since they last received a sync need it full
+        Set<EntityPlayerMP> recipients = playersInRange();
+        List<EntityPlayerMP> full = new ArrayList<>(), delta = new ArrayList<>();
+        for (EntityPlayerMP player : recipients) {
+            int epoch = SyncScheduler.viewEpoch(player);
+            Integer received = syncRecipients.put(player, epoch);
+            (received != null && received == epoch ? delta : full).add(player);
+        }
+        syncRecipients.keySet().retainAll(recipients);
+
+        int size = 0;
+        if (!full.isEmpty()) {
+            ByteBuf buf = __genSyncBuffer();
+            size += buf.readableBytes();
+            NetworkMessage.sendToPlayers(full.toArray(new EntityPlayerMP[full.size()]), this, "itn_sync", buf);
+        }
+        if (changed && !delta.isEmpty()) {
+            ByteBuf buf = Unpooled.buffer(mask.length + fields.readableBytes());
+            buf.writeBytes(mask);
+            buf.writeBytes(fields);
+            size += buf.readableBytes();
+            NetworkMessage.sendToPlayers(delta.toArray(new EntityPlayerMP[delta.size()]),
+                    this, "itn_sync_delta", buf);
+        }
+        fields.release();
+        return size;
+    }
+
+    private static boolean __sameBytes(ByteBuf buf, byte[] bytes) {
+        if (bytes == null || buf.readableBytes() != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; ++i) {
+            if (buf.getByte(buf.readerIndex() + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The players within {@link #setServerSyncRange(double)} of the entity
+     */
+    @SuppressWarnings("unchecked")
+    Set<EntityPlayerMP> playersInRange() {
+        T ent = getEntity();
+        double rangeSq = serverSyncRange * serverSyncRange;
+        Set<EntityPlayerMP> ret = new HashSet<>();
+        for (EntityPlayer player : (List<EntityPlayer>) ent.worldObj.playerEntities) {
+            if (player instanceof EntityPlayerMP && player.getDistanceSqToEntity(ent) < rangeSq) {
+                ret.add((EntityPlayerMP) player);
+            }
+        }
+        return ret;
+    }
+
     @SideOnly(Side.CLIENT)
-    private void __syncClient() {
+    private int __syncClient() {
         T ent = getEntity();
         if (!(ent instanceof EntityPlayer)) {
             log.warn("Trying to call sync() in client for non-EntityPlayers in" + this +
@@ -97,7 +243,10 @@ public abstract class DataPart<T extends EntityLivingBase> {
                     ". This usually doesn't make sense.");
         }
 
-        NetworkMessage.sendToServer(this, "itn_sync", __genSyncBuffer());
+        ByteBuf buf = __genSyncBuffer();
+        int size = buf.readableBytes();
+        NetworkMessage.sendToServer(this, "itn_sync", buf);
+        return size;
     }
 
     private ByteBuf __genSyncBuffer() {
@@ -213,20 +362,58 @@ public abstract class DataPart<T extends EntityLivingBase> {
         if (isClient() && clientNeedSync && !syncInit) {
             syncInit = true;
             NetworkMessage.sendToServer(this, "itn_query_init", SideHelper.getThePlayer());
+            updateActive();
         }
         if (needTick) {
             tick();
         }
     }
 
+    /**
+     * @return Whether {@link #callTick()} has anything to do
+     */
+    boolean shouldTick() {
+        return needTick || (clientNeedSync && !syncInit && isClient());
+    }
+
+    private void updateActive() {
+        if (entityData != null) { // Might be called in constructor, where EntityData updates us after construction
+            entityData.updateActive();
+        }
+    }
+
     @Listener(channel="itn_query_init", side={Side.SERVER})
     private void onQuerySync(EntityPlayerMP client) {
+        // Not registered as a delta recipient here: the snapshot deltas are made against may be older than this
+        //  state, so the next delta sync sends this client a full sync instead
         NetworkMessage.sendTo(client, this, "itn_sync", __genSyncBuffer());
     }
 
     @Listener(channel="itn_sync", side={Side.CLIENT, Side.SERVER})
     private void onSync(ByteBuf buf) {
-        NetworkS11n.deserializeRecursivelyInto(buf, this, getClass());
+        try {
+            NetworkS11n.deserializeRecursivelyInto(buf, this, getClass());
+        } finally {
+            buf.release();
+        }
+        onSynchronized();
+    }
+
+    @Listener(channel="itn_sync_delta", side={Side.CLIENT})
+    private void onSyncDelta(ByteBuf buf) {
+        try {
+            Class type = getClass();
+            int fieldCount = NetworkS11n.fieldCount(type);
+            byte[] mask = new byte[(fieldCount + 7) / 8];
+            buf.readBytes(mask);
+            for (int i = 0; i < fieldCount; ++i) {
+                if ((mask[i >> 3] & (1 << (i & 7))) != 0) {
+                    NetworkS11n.deserializeField(buf, this, type, i);
+                }
+            }
+        } finally {
+            buf.release();
+        }
         onSynchronized();
     }
 
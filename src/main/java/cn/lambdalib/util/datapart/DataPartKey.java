@@ -0,0 +1,34 @@
+package cn.lambdalib.util.datapart;
+
+/**
+ * A handle of a registered DataPart type. Accessing DataParts via {@link EntityData#getPart(DataPartKey)} is a
+ *  direct array access, without any lookup by class. Keys are usually kept in static fields:
+ *
+ * <pre>{@code
+ *  static final DataPartKey<MyPart> KEY = EntityData.key(MyPart.class);
+ *  ...
+ *  MyPart part = EntityData.get(player).getPart(KEY);
+ * }</pre>
+ *
+ * Note that keys can only be obtained after the DataPart is registered.
+ */
+public final class DataPartKey<T extends DataPart<?>> {
+
+    final Class<T> type;
+    final int slot;
+
+    DataPartKey(Class<T> _type, int _slot) {
+        type = _type;
+        slot = _slot;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return "DataPartKey{" + type.getSimpleName() + "}";
+    }
+
+}
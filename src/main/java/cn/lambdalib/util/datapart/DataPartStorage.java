@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) Lambda Innovation, 2013-2016
+ * This file is part of LambdaLib modding library.
+ * https://github.com/LambdaInnovation/LambdaLib
+ * Licensed under MIT, see project root for more information.
+ */
+package cn.lambdalib.util.datapart;
+
+import com.google.common.base.Throwables;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compact binary storage of DataParts. When enabled, all stored DataParts of an entity are packed into a single byte
+ *  array tag, instead of one compound per part keyed by class name. Entities saved in the old format are migrated
+ *  on their next save. <br>
+ *
+ * Parts are keyed by their id, a hash of the class name (see {@link #idOf(String)}), so the names aren't stored.
+ *  Layout:
+ * <pre>
+ *  byte     version
+ *  short    entry count, followed by the entries:
+ *      int      part id
+ *      int      schema hash of the part, see {@link cn.lambdalib.s11n.nbt.NBTS11n#schemaHash(Class)}
+ *      NBT      the compound written by {@link DataPart#toNBT}, as a binary NBT root tag
+ * </pre>
+ *
+ * The schema hash only covers the fields exposed to {@link cn.lambdalib.s11n.nbt.NBTS11n}, which is what the
+ *  default {@link DataPart#toNBT} writes. It is only a hint for diagnostics: changes of parts that override
+ *  toNBT, or of the nested types written, go unnoticed.
+ */
+public final class DataPartStorage {
+
+    public static final String TAG_ID = "LL_DataParts";
+
+    static final byte VERSION = 2;
+
+    private static boolean enabled = false;
+
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The storage id of the DataPart with given name. Stable across sessions, as long as the name is.
+     */
+    public static int idOf(String name) {
+        return name.hashCode();
+    }
+
+    /**
+     * The stored data of one DataPart.
+     */
+    public static final class Entry {
+        public final int id;
+        public final int schemaHash;
+        public final NBTTagCompound tag;
+
+        public Entry(int _id, int _schemaHash, NBTTagCompound _tag) {
+            id = _id;
+            schemaHash = _schemaHash;
+            tag = _tag;
+        }
+    }
+
+    public static byte[] encode(Collection<Entry> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(VERSION);
+            out.writeShort(entries.size());
+            for (Entry e : entries) {
+                out.writeInt(e.id);
+                out.writeInt(e.schemaHash);
+                CompressedStreamTools.write(e.tag, out);
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    /**
+     * @return The entries by id
+     * @throws IllegalStateException if the data is of an unknown version
+     */
+    public static Map<Integer, Entry> decode(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unknown DataPart storage version " + version);
+            }
+
+            int count = in.readShort();
+            Map<Integer, Entry> ret = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                int id = in.readInt();
+                int schemaHash = in.readInt();
+                NBTTagCompound tag = CompressedStreamTools.read(in);
+
+                ret.put(id, new Entry(id, schemaHash, tag));
+            }
+
+            return ret;
+        } catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private DataPartStorage() {}
+
+}
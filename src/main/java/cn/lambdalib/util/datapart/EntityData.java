@@ -4,14 +4,19 @@ import cn.lambdalib.annoreg.core.Registrant;
 import cn.lambdalib.annoreg.mc.RegEventHandler;
 import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
 import cn.lambdalib.core.LLCommons;
+import cn.lambdalib.s11n.nbt.NBTS11n;
 import cn.lambdalib.s11n.network.NetS11nAdapterRegistry.RegNetS11nAdapter;
 import cn.lambdalib.s11n.network.NetworkS11n;
+import cn.lambdalib.s11n.network.NetworkS11n.ContextAdaptor;
 import cn.lambdalib.s11n.network.NetworkS11n.ContextException;
+import cn.lambdalib.s11n.network.NetworkS11n.Deferred;
 import cn.lambdalib.s11n.network.NetworkS11n.NetS11nAdaptor;
 import cn.lambdalib.util.mc.SideHelper;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
 import cpw.mods.fml.relauncher.Side;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.entity.Entity;
@@ -28,7 +33,6 @@ import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 @Registrant
 public final class EntityData<Ent extends EntityLivingBase> implements IExtendedEntityProperties {
@@ -37,21 +41,36 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
 
     private static final List<RegData> regList = new ArrayList<>();
     private static final List<RegData> bothSideList = new ArrayList<>();
-    private static boolean init = false;
+    private static final Map<Class, RegData> regByType = new HashMap<>();
+    private static volatile boolean init = false;
 
+    // Registered parts applicable to each entity class, indexed by slot (null if not applicable)
+    private static final ClassValue<RegData[]> clientApplicable = new ApplicableTable(Side.CLIENT),
+                                               serverApplicable = new ApplicableTable(Side.SERVER);
+
+    /**
+     * Registers a DataPart type. Must be called before registration is locked when loading completes, as slots and
+     *  network ids are fixed from then on.
+     * @throws IllegalStateException if registration is locked
+     */
     @SuppressWarnings("unchecked")
     public static <T extends EntityLivingBase> void
     register(Class<? extends DataPart<T>> type,
              EnumSet<Side> sides,
              Predicate<Class<? extends T>> pred,
              boolean lazy) {
+        Preconditions.checkState(!init, "DataPart registration is locked, register " + type + " before load complete");
+
         RegData add = new RegData();
         add.type = type;
         add.sides = EnumSet.copyOf(sides);
         add.pred = (Predicate) pred;
         add.lazy = lazy;
+        add.slot = regList.size();
+        add.key = new DataPartKey(type, add.slot);
 
         regList.add(add);
+        regByType.put(type, add);
         if (sides.contains(Side.CLIENT) && sides.contains(Side.SERVER)) {
             bothSideList.add(add);
         }
@@ -60,11 +79,7 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
     @SuppressWarnings("unchecked")
     public static <T extends EntityLivingBase> EntityData<T> get(T entity) {
         Objects.requireNonNull(entity);
-
-        if (!init) {
-            init = true;
-            init();
-        }
+        lockRegistration();
 
         EntityData<T> ret = (EntityData<T>) entity.getExtendedProperties(ID);
         if (ret == null) {
@@ -73,12 +88,27 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
             entity.registerExtendedProperties(ID, ret);
 
             // Construct all non-lazy parts
-            _allApplicable(entity).filter(data -> !data.lazy).forEach(ret::_constructPart);
+            for (RegData data : _applicable(entity)) {
+                if (data != null && !data.lazy) {
+                    ret._constructPart(data);
+                }
+            }
         }
 
         return ret;
     }
 
+    /**
+     * @return The handle of given DataPart type, for lookup-free access via {@link #getPart(DataPartKey)}
+     * @throws IllegalArgumentException if the type isn't registered
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DataPart<?>> DataPartKey<T> key(Class<T> type) {
+        RegData data = regByType.get(type);
+        Preconditions.checkArgument(data != null, type + " isn't registered as DataPart");
+        return data.key;
+    }
+
     /**
      * @return The EntityData of given entity, or {@link null} if not created.
      */
@@ -87,36 +117,93 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
         return (EntityData<T>) entity.getExtendedProperties(ID);
     }
 
+    /**
+     * Fixes the registered DataParts and assigns their network ids. Invoked by LambdaLib once all mods have been
+     *  loaded, or on first use of EntityData.
+     */
+    public static synchronized void lockRegistration() {
+        if (!init) {
+            init = true;
+            init();
+        }
+    }
+
     private static void init() {
         bothSideList.sort((lhs, rhs) -> lhs.type.getName().compareTo(rhs.type.getName()));
         Preconditions.checkState(bothSideList.size() < Byte.MAX_VALUE);
         IntStream.range(0, bothSideList.size()).forEach(i -> bothSideList.get(i).networkID = (byte) i);
 
+        // Compact storage keys parts by name hash, which must not collide
+        Map<Integer, Class> storageIDs = new HashMap<>();
+        for (RegData data : regList) {
+            Class prev = storageIDs.put(DataPartStorage.idOf(data.type.getCanonicalName()), data.type);
+            Preconditions.checkState(prev == null, "Storage id of " + data.type + " collides with " + prev);
+        }
+
         LLCommons.debug("EntityData initialized. Network participants: " +
                 bothSideList.stream().map(x -> x.type).collect(Collectors.toList()));
     }
 
-    private Map<Class, DataPart> constructed = new HashMap<>();
+    // Constructed parts, indexed by slot
+    private DataPart[] parts = new DataPart[regList.size()];
+
+    // Parts that need callTick(). Only marked dirty when a part (de)activates, which might happen on the netty
+    //  thread, and rebuilt on the entity's thread in next tick.
+    private DataPart[] activeArray = new DataPart[0];
+    private volatile boolean activeDirty = false;
+
+    private static int tickedParts, lastTickedParts;
+    private static int tickedEntities, lastTickedEntities;
+
+    /**
+     * @return How many DataParts were ticked in last server tick
+     */
+    public static int getLastTickedParts() {
+        return lastTickedParts;
+    }
+
+    /**
+     * @return How many entities had ticking DataParts in last server tick
+     */
+    public static int getLastTickedEntities() {
+        return lastTickedEntities;
+    }
 
     private Ent entity;
 
+    // DataParts in compact storage by id, read lazily from entity data
+    private Map<Integer, DataPartStorage.Entry> storedParts;
+
     /**
      * @return The datapart of exact type, never null
-     * @throws NullPointerException if no such DataPart was registered before
+     * @throws NoSuchElementException if no such DataPart was registered for this entity
      */
     @SuppressWarnings("unchecked")
     public <T extends DataPart<?>>
     T getPart(Class<T> type) {
-        if (constructed.containsKey(type)) {
-            return (T) constructed.get(type);
-        } else {
-            RegData regData = _allApplicable(getEntity())
-                    .filter(data -> data.type.equals(type))
-                    .findFirst()
-                    .get();
-            _constructPart(regData);
-            return (T) constructed.get(type);
+        RegData data = regByType.get(type);
+        if (data == null) {
+            throw new NoSuchElementException(type + " isn't registered as DataPart");
         }
+        return getPart((DataPartKey<T>) data.key);
+    }
+
+    /**
+     * @return The datapart of the key's type, never null
+     * @throws NoSuchElementException if the DataPart doesn't apply to this entity
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends DataPart<?>>
+    T getPart(DataPartKey<T> key) {
+        DataPart part = parts[key.slot];
+        if (part == null) {
+            RegData data = _applicable(getEntity())[key.slot];
+            if (data == null) {
+                throw new NoSuchElementException(key.type + " doesn't apply to " + getEntity());
+            }
+            part = _constructPart(data);
+        }
+        return (T) part;
     }
 
     /**
@@ -125,11 +212,16 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
     @SuppressWarnings("unchecked")
     public <T extends EntityLivingBase>
     DataPart<T> getPartNonCreate(Class<? extends DataPart<T>> type) {
-        if (constructed.containsKey(type)) {
-            return constructed.get(type);
-        } else {
-            return null;
-        }
+        RegData data = regByType.get(type);
+        return data == null ? null : parts[data.slot];
+    }
+
+    /**
+     * @return The datapart of the key's type, or null if not present
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends DataPart<?>> T getPartNonCreate(DataPartKey<T> key) {
+        return (T) parts[key.slot];
     }
 
     public Ent getEntity() {
@@ -139,13 +231,66 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
     @Override
     public void saveNBTData(NBTTagCompound tag_) {
         NBTTagCompound tag = tag_.getCompoundTag("ForgeData");
-        constructed.values().forEach(part -> {
-            if (part.needNBTStorage) {
-                NBTTagCompound partTag = new NBTTagCompound();
-                part.toNBT(partTag);
-                tag.setTag(_partNBTID(part), partTag);
+        if (DataPartStorage.isEnabled()) {
+            // Keep stored parts that weren't constructed in this session
+            Map<Integer, DataPartStorage.Entry> entries = new LinkedHashMap<>(_storedParts(tag));
+            for (DataPart part : parts) {
+                if (part != null && part.needNBTStorage) {
+                    String name = _partNBTID(part);
+                    int id = DataPartStorage.idOf(name);
+                    NBTTagCompound partTag = new NBTTagCompound();
+                    part.toNBT(partTag);
+                    entries.put(id, new DataPartStorage.Entry(id, _schemaHash(part), partTag));
+                    tag.removeTag(name); // Migrated from per-part compound
+                }
+            }
+            tag.setByteArray(DataPartStorage.TAG_ID, DataPartStorage.encode(entries.values()));
+            storedParts = entries;
+        } else {
+            Set<Integer> written = new HashSet<>();
+            for (DataPart part : parts) {
+                if (part != null && part.needNBTStorage) {
+                    NBTTagCompound partTag = new NBTTagCompound();
+                    part.toNBT(partTag);
+                    tag.setTag(_partNBTID(part), partTag);
+                    written.add(DataPartStorage.idOf(_partNBTID(part)));
+                }
+            }
+
+            // Drop outdated copies in compact storage, as it takes precedence when loading
+            if (tag.hasKey(DataPartStorage.TAG_ID)) {
+                Map<Integer, DataPartStorage.Entry> entries = _storedParts(tag);
+                if (entries.keySet().removeAll(written)) {
+                    if (entries.isEmpty()) {
+                        tag.removeTag(DataPartStorage.TAG_ID);
+                    } else {
+                        tag.setByteArray(DataPartStorage.TAG_ID, DataPartStorage.encode(entries.values()));
+                    }
+                }
+            }
+        }
+    }
+
+    private Map<Integer, DataPartStorage.Entry> _storedParts(NBTTagCompound forgeTag) {
+        if (storedParts == null) {
+            storedParts = new LinkedHashMap<>();
+            if (forgeTag.hasKey(DataPartStorage.TAG_ID)) {
+                try {
+                    storedParts.putAll(DataPartStorage.decode(forgeTag.getByteArray(DataPartStorage.TAG_ID)));
+                } catch (RuntimeException ex) {
+                    LLCommons.log.error("Error loading DataParts of " + getEntity(), ex);
+                }
             }
-        });
+        }
+        return storedParts;
+    }
+
+    private static int _schemaHash(DataPart part) {
+        RegData data = regByType.get(part.getClass());
+        if (data.schemaHash == null) {
+            data.schemaHash = NBTS11n.schemaHash(data.type);
+        }
+        return data.schemaHash;
     }
 
     @Override
@@ -163,52 +308,116 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
         return part.getClass().getCanonicalName();
     }
 
-    private void _constructPart(RegData data) {
+    private DataPart _constructPart(RegData data) {
         final Side runtimeSide = SideHelper.getRuntimeSide();
         Preconditions.checkState(data.sides.contains(runtimeSide));
         try {
             DataPart instance = data.type.newInstance();
             instance.entityData = (EntityData) this;
-            constructed.put(data.type, instance);
+            parts[data.slot] = instance;
+            updateActive();
 
             instance.wake();
 
             if (!SideHelper.isClient() && instance.needNBTStorage) {
                 NBTTagCompound forgeTag = getEntity().getEntityData();
                 String id = _partNBTID(instance);
-                if (forgeTag.hasKey(id)) {
+                DataPartStorage.Entry stored = _storedParts(forgeTag).get(DataPartStorage.idOf(id));
+                if (stored != null) {
+                    if (stored.schemaHash != _schemaHash(instance)) {
+                        LLCommons.log.warn("Field layout of " + id + " has changed since it was saved in " +
+                                getEntity() + ".");
+                    }
+                    instance.fromNBT(stored.tag);
+                } else if (forgeTag.hasKey(id)) { // Per-part compound
                     instance.fromNBT(forgeTag.getCompoundTag(id));
                 }
             }
+
+            return instance;
         } catch (IllegalAccessException |
                 InstantiationException ex) {
-            Throwables.propagate(ex);
+            throw Throwables.propagate(ex);
         }
     }
 
-    private static Stream<RegData> _allApplicable(Entity ent) {
-        Class<? extends Entity> type = ent.getClass();
-        final Side runtimeSide = SideHelper.getRuntimeSide();
-        return regList.stream().filter(data -> data.sides.contains(runtimeSide) && data.pred.test(type));
+    private static RegData[] _applicable(Entity ent) {
+        return (SideHelper.getRuntimeSide().isClient() ? clientApplicable : serverApplicable).get(ent.getClass());
     }
 
     private static byte getNetworkID(Class<? extends DataPart> type) {
-        for (RegData data : bothSideList) {
-            if (data.type == type) {
-                return data.networkID;
-            }
+        RegData data = regByType.get(type);
+        if (data == null || data.networkID == -1) {
+            throw new IllegalStateException(type + " isn't registered as both side");
         }
-        throw new IllegalStateException(type + " isn't registered as both side");
+        return data.networkID;
     }
 
     private static Class<? extends DataPart> getTypeFromID(byte id) {
         return bothSideList.get(id).type;
     }
 
+    void updateActive() {
+        activeDirty = true;
+    }
+
     private void tick() {
-        for (DataPart part : constructed.values()) {
+        if (activeDirty) {
+            activeDirty = false;
+            List<DataPart> active = new ArrayList<>();
+            for (DataPart part : parts) {
+                if (part != null && part.shouldTick()) {
+                    active.add(part);
+                }
+            }
+            activeArray = active.toArray(new DataPart[active.size()]);
+        }
+        if (activeArray.length == 0) {
+            return;
+        }
+
+        for (DataPart part : activeArray) {
             part.callTick();
         }
+        if (!entity.worldObj.isRemote) {
+            tickedParts += activeArray.length;
+            ++tickedEntities;
+        }
+    }
+
+    private static class ApplicableTable extends ClassValue<RegData[]> {
+        final Side side;
+
+        ApplicableTable(Side _side) {
+            side = _side;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected RegData[] computeValue(Class<?> type) {
+            RegData[] ret = new RegData[regList.size()];
+            for (RegData data : regList) {
+                if (data.sides.contains(side) && data.pred.test((Class) type)) {
+                    ret[data.slot] = data;
+                }
+            }
+            return ret;
+        }
+    }
+
+    @Registrant
+    public enum TickCounter {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.START) {
+                lastTickedParts = tickedParts;
+                lastTickedEntities = tickedEntities;
+                tickedParts = tickedEntities = 0;
+            }
+        }
     }
 
     @Registrant
@@ -228,11 +437,12 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
         public void onLivingDeath(LivingDeathEvent evt) {
             if (evt.entityLiving instanceof EntityPlayer) {
                 EntityData<EntityPlayer> playerData = EntityData.get((EntityPlayer) evt.entityLiving);
-                Iterator<DataPart> iter = playerData.constructed.values().iterator();
-                while (iter.hasNext()) {
-                    DataPart dp = iter.next();
-                    if (dp.clearOnDeath) {
-                        iter.remove();
+                DataPart[] parts = playerData.parts;
+                for (int i = 0; i < parts.length; ++i) {
+                    DataPart dp = parts[i];
+                    if (dp != null && dp.clearOnDeath) {
+                        parts[i] = null;
+                        playerData.updateActive();
                     }
                 }
             }
@@ -249,32 +459,37 @@ public final class EntityData<Ent extends EntityLivingBase> implements IExtended
     }
 
     @RegNetS11nAdapter(EntityData.class)
-    public static NetS11nAdaptor<EntityData> adaptor = new NetS11nAdaptor<EntityData>() {
+    public static NetS11nAdaptor<EntityData> adaptor = new ContextAdaptor<EntityData>() {
         @Override
         public void write(ByteBuf buf, EntityData obj) {
             NetworkS11n.serializeWithHint(buf, obj.getEntity(), EntityLivingBase.class);
         }
         @Override
-        public EntityData read(ByteBuf buf) throws ContextException {
-            EntityLivingBase living = NetworkS11n.deserializeWithHint(buf, EntityLivingBase.class);
-            if (living != null) {
-                return EntityData.get(living);
-            } else {
-                throw new ContextException("Entity not found");
-            }
+        public Deferred<EntityData> readDeferred(ByteBuf buf) {
+            Deferred<EntityLivingBase> living = NetworkS11n.deserializeDeferredWithHint(buf, EntityLivingBase.class);
+            return () -> {
+                EntityLivingBase ent = living.resolve();
+                if (ent != null) {
+                    return EntityData.get(ent);
+                } else {
+                    throw new ContextException("Entity not found");
+                }
+            };
         }
     };
 
     @RegNetS11nAdapter(DataPart.class)
-    public static NetS11nAdaptor<DataPart> partAdaptor = new NetS11nAdaptor<DataPart>() {
+    public static NetS11nAdaptor<DataPart> partAdaptor = new ContextAdaptor<DataPart>() {
         @Override
         public void write(ByteBuf buf, DataPart obj) {
             NetworkS11n.serializeWithHint(buf, obj.getData(), EntityData.class);
             buf.writeByte(getNetworkID(obj.getClass()));
         }
         @Override
-        public DataPart read(ByteBuf buf) throws ContextException {
-            return NetworkS11n.deserializeWithHint(buf, EntityData.class).getPart(getTypeFromID(buf.readByte()));
+        public Deferred<DataPart> readDeferred(ByteBuf buf) {
+            Deferred<EntityData> data = NetworkS11n.deserializeDeferredWithHint(buf, EntityData.class);
+            Class<? extends DataPart> type = getTypeFromID(buf.readByte());
+            return () -> data.resolve().getPart(type);
         }
     };
 
@@ -287,6 +502,10 @@ class RegData {
     Predicate<Class<? extends Entity>> pred;
     boolean lazy;
 
-    byte networkID; // Only useful if created in both sides
+    int slot;
+    DataPartKey key;
+    Integer schemaHash; // Computed lazily
+
+    byte networkID = -1; // Only useful if created in both sides
 
 }
\ No newline at end of file
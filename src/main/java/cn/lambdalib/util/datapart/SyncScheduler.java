@@ -0,0 +1,237 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.util.datapart;
+
+import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent.PlayerChangedDimensionEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent.PlayerLoggedOutEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent.PlayerRespawnEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.ServerTickEvent;
+import cpw.mods.fml.relauncher.Side;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.player.EntityPlayerMP;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs dirty {@link DataPart}s at the end of each tick. A DataPart is synced at most once per its sync interval, no
+ *  matter how many times it's marked dirty in between. <br>
+ *
+ * At server, parts are synced in order of the distance to their closest viewer (relative to the part's sync range),
+ *  and each player receives at most {@link #setPlayerByteBudget(int) budget} bytes of sync per tick. Parts that
+ *  exceed the budget stay dirty and are synced in later ticks, with rising priority so that they don't starve.
+ */
+@Registrant
+public final class SyncScheduler {
+
+    private static final SyncScheduler server = new SyncScheduler(), client = new SyncScheduler();
+
+    private static int playerByteBudget = 16384;
+
+    /**
+     * Sets the sync bytes each player can receive per tick. The first part synced to a player in a tick is always
+     *  sent, regardless of its size.
+     */
+    public static void setPlayerByteBudget(int bytes) {
+        playerByteBudget = bytes;
+    }
+
+    /**
+     * @return How many DataParts were synced in last tick at given side
+     */
+    public static int getSyncedCount(Side side) {
+        return get(side).syncedCount;
+    }
+
+    /**
+     * @return How many dirty DataParts were postponed because of the byte budget in last tick at given side
+     */
+    public static int getDeferredCount(Side side) {
+        return get(side).deferredCount;
+    }
+
+    static SyncScheduler get(Side side) {
+        return side == Side.CLIENT ? client : server;
+    }
+
+    // Bumped when a player's client drops its entities (respawn, dimension change, logout), see viewEpoch
+    private static final Map<EntityPlayerMP, Integer> viewEpochs = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger nextViewEpoch = new AtomicInteger();
+
+    /**
+     * @return A number that changes whenever given player's client might have lost the DataParts it received, so
+     *  that delta sync recipients recorded at an older epoch get a full sync again
+     */
+    static int viewEpoch(EntityPlayerMP player) {
+        Integer ret = viewEpochs.get(player);
+        return ret == null ? 0 : ret;
+    }
+
+    private static void _resetView(EntityPlayerMP player) {
+        viewEpochs.put(player, nextViewEpoch.incrementAndGet());
+    }
+
+    private List<DataPart> dirty = new ArrayList<>();
+    private long tick = 0;
+
+    private int syncedCount, deferredCount;
+
+    private SyncScheduler() {}
+
+    synchronized void schedule(DataPart part) {
+        if (!part.syncScheduled) {
+            part.syncScheduled = true;
+            dirty.add(part);
+        }
+    }
+
+    private void flush(boolean budgeted) {
+        ++tick;
+        syncedCount = deferredCount = 0;
+
+        List<DataPart> candidates;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            candidates = dirty;
+            dirty = new ArrayList<>();
+        }
+
+        List<DataPart> remaining = new ArrayList<>();
+        List<Candidate> ready = new ArrayList<>();
+        for (DataPart part : candidates) {
+            EntityLivingBase entity = part.getEntity();
+            if (entity == null || entity.isDead || entity.worldObj == null) {
+                part.syncScheduled = false;
+            } else if (tick - part.lastSyncTick < part.syncInterval) {
+                remaining.add(part);
+            } else if (!budgeted) {
+                _sync(part);
+            } else {
+                Candidate c = new Candidate(part);
+                if (c.viewers.isEmpty()) { // Nobody to sync to
+                    part.syncScheduled = false;
+                } else {
+                    ready.add(c);
+                }
+            }
+        }
+
+        if (budgeted) {
+            ready.sort((lhs, rhs) -> Double.compare(lhs.priority, rhs.priority));
+
+            Map<EntityPlayerMP, int[]> used = new HashMap<>();
+            for (Candidate c : ready) {
+                if (_fitsBudget(c, used)) {
+                    int bytes = _sync(c.part);
+                    for (EntityPlayerMP viewer : c.viewers) {
+                        used.computeIfAbsent(viewer, p -> new int[1])[0] += bytes;
+                    }
+                } else {
+                    ++c.part.syncDeferrals;
+                    ++deferredCount;
+                    remaining.add(c.part);
+                }
+            }
+        }
+
+        if (!remaining.isEmpty()) {
+            synchronized (this) {
+                dirty.addAll(remaining);
+            }
+        }
+    }
+
+    private boolean _fitsBudget(Candidate c, Map<EntityPlayerMP, int[]> used) {
+        for (EntityPlayerMP viewer : c.viewers) {
+            int[] u = used.get(viewer);
+            if (u != null && u[0] + c.part.lastSyncBytes > playerByteBudget) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int _sync(DataPart part) {
+        part.syncScheduled = false;
+        part.syncDeferrals = 0;
+        part.lastSyncTick = tick;
+
+        int bytes = part.syncNow();
+        part.lastSyncBytes = bytes;
+        ++syncedCount;
+        return bytes;
+    }
+
+    private static class Candidate {
+        final DataPart part;
+        final Set<EntityPlayerMP> viewers;
+        final double priority; // Lower is synced first
+
+        Candidate(DataPart _part) {
+            part = _part;
+            viewers = part.playersInRange();
+
+            EntityLivingBase entity = part.getEntity();
+            double minDistSq = Double.MAX_VALUE;
+            for (EntityPlayerMP viewer : viewers) {
+                minDistSq = Math.min(minDistSq, viewer.getDistanceSqToEntity(entity));
+            }
+            double rangeSq = part.serverSyncRange * part.serverSyncRange;
+            priority = (minDistSq / rangeSq) / (1 + part.syncDeferrals);
+        }
+    }
+
+    @Registrant
+    public enum EventListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onServerTick(ServerTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                server.flush(true);
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientTick(ClientTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                client.flush(false);
+            }
+        }
+
+        @SubscribeEvent
+        public void onPlayerRespawn(PlayerRespawnEvent evt) {
+            if (evt.player instanceof EntityPlayerMP) {
+                _resetView((EntityPlayerMP) evt.player);
+            }
+        }
+
+        @SubscribeEvent
+        public void onPlayerChangedDimension(PlayerChangedDimensionEvent evt) {
+            if (evt.player instanceof EntityPlayerMP) {
+                _resetView((EntityPlayerMP) evt.player);
+            }
+        }
+
+        @SubscribeEvent
+        public void onPlayerLoggedOut(PlayerLoggedOutEvent evt) {
+            if (evt.player instanceof EntityPlayerMP) {
+                _resetView((EntityPlayerMP) evt.player);
+            }
+        }
+    }
+
+}
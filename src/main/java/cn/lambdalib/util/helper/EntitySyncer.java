@@ -10,12 +10,15 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import cn.lambdalib.util.generic.RegistryUtils;
 import net.minecraft.entity.DataWatcher;
@@ -23,143 +26,181 @@ import net.minecraft.entity.DataWatcher.WatchableObject;
 import net.minecraft.entity.Entity;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.ChunkCoordinates;
+import net.minecraft.util.Vec3;
 
 /**
- * A helper to help syncing fields within entity, which gets rid of the ANNOYING 
+ * A helper to help syncing fields within entity, which gets rid of the ANNOYING
  * registering proccess. Supports all the type that is supported by DataWatcher. <br>
  * You should delegate the init() method within entityInit(), and update() method within onUpdate().
  * <br> The direction is always server -> client.
  * <br> The registered fields should be symmetric in two sides so that we can track the ID correctly.
- * 
+ * <br> At server, a field is only pushed to the DataWatcher when its value has changed. At client, a field is only
+ *  written when its watched object has been updated by the server.
+ *
  * <br> Currently EntitySyncer supports the following types:
  * <code>
  * <br>  * int, Integer
  * <br>  * float, Float
  * <br>  * short, Short
  * <br>  * byte, Byte
+ * <br>  * double, Double (lossless, watched as String)
+ * <br>  * boolean, Boolean
  * <br>  * String
  * <br>  * Entity
  * <br>  * ChunkCoordinates
  * <br>  * ItemStack
+ * <br>  * Vec3 (watched as String)
+ * <br>  * Any enum (watched as int ordinal)
  * </code>
- * <br> More commonly used types will be added soon.
  * @author WeAthFolD
  */
 public class EntitySyncer {
-    
+
     public enum SyncType {
         /**
          * This field is only synchronized on startup.
          */
         ONCE,
-        
+
         /**
          * This field is synchronized every tick when entity is alive.
          */
         RUNTIME
     }
-    
+
     @Target(ElementType.FIELD)
     @Retention(RetentionPolicy.RUNTIME)
     public @interface Synchronized {
-        
+
         SyncType value() default SyncType.RUNTIME;
-        
+
         boolean allowNull() default false;
-        
+
     }
 
+    // DataWatcher type ids
+    private static final int
+        TYPE_BYTE = 0, TYPE_SHORT = 1, TYPE_INT = 2, TYPE_FLOAT = 3, TYPE_STRING = 4, TYPE_ITEMSTACK = 5,
+        TYPE_COORDS = 6;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
     private boolean firstUpdate;
-    
+
     private final Entity entity;
     private final DataWatcher dataWatcher;
     private final HashMap<Integer, WatchableObject> watchedObjects;
 
-    private final List<SyncInstance> watched;
-
-    private static final Map<Class<?>, Type> typeMap = new HashMap<>();
-    private static final Map<Class<?>, Integer> idMap = new HashMap<>();
-
-    private static final Method mGetWatchedObject = RegistryUtils.getMethod(DataWatcher.class, "getWatchedObject", "func_75691_i", int.class);
-    
-    
-    private static final Fetcher
-        defaultFetcher = (EntitySyncer d, int id) -> (getWatchableObject(d, id).getObject()),
-        entityFetcher = (EntitySyncer d, int id) -> { 
-            Integer i = (Integer) defaultFetcher.supply(d, id);
-            if(i == null) return null;
-            
-            Entity e = d.entity.worldObj.getEntityByID(i);
-            return e;
-        };
-    
-    private static void put(Creator c, Fetcher f, Object d, Class... classes) {
+    private final List<Slot> watched;
+
+    private static final Map<Class<?>, Codec> codecs = new HashMap<>();
+
+    private static void put(Codec c, Class ...classes) {
         for(Class cc : classes)
-            typeMap.put(cc, new Type(c, f, d));
+            codecs.put(cc, c);
     }
 
-    private static void put(Creator c, Object d, Class ...classes) {
-        put(c, defaultFetcher, d, classes);
-    }
-    
-    private static final Creator
-        byteCreator = (Object b) -> (byte) b,
-        shortCreator = (Object b) -> (short) b,
-        intCreator = (Object b) -> (int) b,
-        floatCreator = (Object b) -> (float) b,
-        stringCreator = (Object b) -> b.toString(),
-        itemStackCreator = (Object s) -> ((ItemStack)s).copy(),
-        ccCreator = (Object s) -> ((ChunkCoordinates)s),
-        entityCreator = (Object s) -> ((Entity)s).getEntityId();
-        
-        
     static {
-        put(byteCreator, (byte) 0, Byte.class, byte.class);
-        put(shortCreator, (short)0, Short.class, short.class);
-        put(intCreator, 0, Integer.class, int.class);
-        put(floatCreator, 0.0f, Float.class, float.class);
-        put(stringCreator, (String)null, String.class);
-        put(itemStackCreator, (ItemStack)null, ItemStack.class);
-        put(ccCreator, (ChunkCoordinates)null, ChunkCoordinates.class);
-        put(entityCreator, entityFetcher, -1, Entity.class);
-        
-        idMap.put(Byte.class, 0);
-        idMap.put(byte.class, 0);
-        idMap.put(Short.class, 1);
-        idMap.put(short.class, 1);
-        idMap.put(Integer.class, 2);
-        idMap.put(int.class, 2);
-        idMap.put(Float.class, 3);
-        idMap.put(float.class, 3);
-        idMap.put(String.class, 4);
-        idMap.put(ItemStack.class, 5);
-        idMap.put(ChunkCoordinates.class, 6);
-        
-        idMap.put(Entity.class, 2);
+        put(new Codec(TYPE_BYTE, (byte) 0), Byte.class);
+        put(new Codec(TYPE_SHORT, (short) 0), Short.class);
+        put(new Codec(TYPE_INT, 0), Integer.class);
+        put(new Codec(TYPE_FLOAT, 0.0f), Float.class);
+        put(new Codec(TYPE_STRING, null), String.class);
+        put(new Codec(TYPE_COORDS, null) {
+            @Override
+            Object toWatched(Object value) {
+                return new ChunkCoordinates((ChunkCoordinates) value);
+            }
+            @Override
+            Object snapshot(Object value) {
+                return new ChunkCoordinates((ChunkCoordinates) value);
+            }
+        }, ChunkCoordinates.class);
+        put(new Codec(TYPE_ITEMSTACK, null) {
+            @Override
+            Object toWatched(Object value) {
+                return ((ItemStack) value).copy();
+            }
+            @Override
+            Object snapshot(Object value) {
+                return ((ItemStack) value).copy();
+            }
+            @Override
+            boolean same(Object a, Object b) {
+                return ItemStack.areItemStacksEqual((ItemStack) a, (ItemStack) b);
+            }
+        }, ItemStack.class);
+        put(new Codec(TYPE_INT, -1) {
+            @Override
+            Object toWatched(Object value) {
+                return ((Entity) value).getEntityId();
+            }
+            @Override
+            Object fromWatched(EntitySyncer syncer, Object watched) {
+                return watched == null ? null : syncer.entity.worldObj.getEntityByID((Integer) watched);
+            }
+            @Override
+            boolean same(Object a, Object b) {
+                return a == b;
+            }
+        }, Entity.class);
+        put(new Codec(TYPE_BYTE, (byte) 0) {
+            @Override
+            Object toWatched(Object value) {
+                return (byte) ((Boolean) value ? 1 : 0);
+            }
+            @Override
+            Object fromWatched(EntitySyncer syncer, Object watched) {
+                return watched == null ? null : (Byte) watched != 0;
+            }
+        }, Boolean.class);
+        put(new Codec(TYPE_STRING, "0.0") {
+            @Override
+            Object toWatched(Object value) {
+                return value.toString();
+            }
+            @Override
+            Object fromWatched(EntitySyncer syncer, Object watched) {
+                return watched == null ? null : Double.valueOf((String) watched);
+            }
+        }, Double.class);
+        put(new Codec(TYPE_STRING, null) {
+            @Override
+            Object toWatched(Object value) {
+                Vec3 v = (Vec3) value;
+                return v.xCoord + " " + v.yCoord + " " + v.zCoord;
+            }
+            @Override
+            Object fromWatched(EntitySyncer syncer, Object watched) {
+                if (watched == null) {
+                    return null;
+                }
+                String[] parts = ((String) watched).split(" ");
+                return Vec3.createVectorHelper(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                        Double.parseDouble(parts[2]));
+            }
+            @Override
+            Object snapshot(Object value) {
+                Vec3 v = (Vec3) value;
+                return Vec3.createVectorHelper(v.xCoord, v.yCoord, v.zCoord);
+            }
+            @Override
+            boolean same(Object a, Object b) {
+                Vec3 va = (Vec3) a, vb = (Vec3) b;
+                return va == vb || (va != null && vb != null &&
+                        va.xCoord == vb.xCoord && va.yCoord == vb.yCoord && va.zCoord == vb.zCoord);
+            }
+        }, Vec3.class);
     }
-    
 
-    
     public EntitySyncer(Entity ent) {
         entity = ent;
         dataWatcher = RegistryUtils.getFieldInstance(Entity.class, ent, "dataWatcher", "field_70180_af");
-        watchedObjects = RegistryUtils.getFieldInstance(DataWatcher.class, dataWatcher, 
+        watchedObjects = RegistryUtils.getFieldInstance(DataWatcher.class, dataWatcher,
                 "watchedObjects", "field_75695_b");
         watched = new ArrayList<>();
     }
-    
-    private static WatchableObject getWatchableObject(EntitySyncer w, int id) {
-        try {
-            return (WatchableObject) mGetWatchedObject.invoke(w.dataWatcher, id);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    interface Test {
-        void call(Object o);
-    }
-    
+
     /**
      * Delegated when the entity enters entityInit().
      */
@@ -168,134 +209,412 @@ public class EntitySyncer {
             if(f.isAnnotationPresent(Synchronized.class)) {
                 int id = nextID();
                 Synchronized anno = f.getAnnotation(Synchronized.class);
-                
+
                 f.setAccessible(true);
-                watched.add(new SyncInstance(id, f, anno));
+                try {
+                    watched.add(createSlot(id, f, anno));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Can't access synchronized field " + f, e);
+                }
             }
         }
     }
-    
+
     /**
      * Delegated during entity onUpdate() tick.
      */
     public void update() {
-        if(!firstUpdate) {
-            firstUpdate = true;
-            for(SyncInstance si : watched) {
-                si.init();
-            }
-        } else {
-            for(SyncInstance si : watched) {
-                si.tick();
+        boolean remote = entity.worldObj.isRemote;
+        try {
+            if(!firstUpdate) {
+                firstUpdate = true;
+                for(Slot s : watched) {
+                    if (remote) s.pull(); else s.push();
+                }
+            } else {
+                for(Slot s : watched) {
+                    if (remote) {
+                        s.pull();
+                    } else if (s.runtime) {
+                        s.push();
+                    }
+                }
             }
+        } catch (Throwable e) {
+            throw new RuntimeException("Sync failed", e);
         }
     }
-    
-    private int nextID() { 
+
+    private int nextID() {
         for(int i = 0;; ++i) {
             if(!watchedObjects.containsKey(i))
                 return i;
         }
     }
-    
-    private class SyncInstance {
-        
-        protected final int id;
-        protected final Field field;
-        
-        protected final Creator c;
-        protected final Fetcher f;
-        
-        Synchronized anno;
-        
-        public SyncInstance(int id, Field f, Synchronized _anno) {
-            this.id = id;
-            field = f;
-            anno = _anno;
-            
-            Type t = null;
-            Class clazz = f.getType();
-            while(t == null && clazz != null) {
-                t = typeMap.get(clazz);
-                if(t == null)
-                    clazz = clazz.getSuperclass();
+
+    private Slot createSlot(int id, Field field, Synchronized anno) throws IllegalAccessException {
+        Class<?> type = field.getType();
+        MethodHandle getter = lookup.unreflectGetter(field), setter = lookup.unreflectSetter(field);
+
+        Slot ret;
+        if (type == int.class) {
+            ret = new IntSlot(getter, setter);
+        } else if (type == float.class) {
+            ret = new FloatSlot(getter, setter);
+        } else if (type == double.class) {
+            ret = new DoubleSlot(getter, setter);
+        } else if (type == boolean.class) {
+            ret = new BooleanSlot(getter, setter);
+        } else if (type == byte.class) {
+            ret = new ByteSlot(getter, setter);
+        } else if (type == short.class) {
+            ret = new ShortSlot(getter, setter);
+        } else {
+            Codec codec = null;
+            if (type.isEnum()) {
+                codec = new EnumCodec(type);
+            } else {
+                Class<?> cur = type;
+                while (codec == null && cur != null) {
+                    codec = codecs.get(cur);
+                    cur = cur.getSuperclass();
+                }
+            }
+
+            if (codec == null)
+                throw new UnsupportedOperationException("Unsupported sync type " + type);
+
+            ret = new ObjectSlot(getter, setter, codec, anno.allowNull());
+        }
+
+        ret.init(id, anno.value() == SyncType.RUNTIME);
+        return ret;
+    }
+
+    private abstract class Slot {
+
+        int id;
+        boolean runtime;
+        WatchableObject watchable;
+
+        // The watched object last written to the field at client
+        Object lastSeen;
+
+        void init(int _id, boolean _runtime) {
+            id = _id;
+            runtime = _runtime;
+
+            dataWatcher.addObjectByDataType(id, dataType());
+            Object val = initialValue();
+            if (val == null) {
+                val = defaultValue();
             }
-            
-            if(t == null)
-                throw new UnsupportedOperationException("Unsupported sync type " + f.getType());
-            
-            c = t.creator;
-            this.f = t.fetcher;
-            
-            int tid = idMap.get(clazz);
-            
-            dataWatcher.addObjectByDataType(id, tid);
-            
-            Object val = convert();
-            if(val == null)
-                val = t.defaultValue;
-            
             dataWatcher.updateObject(id, val);
+
+            watchable = watchedObjects.get(id);
         }
-        
-        void init() {
-            updateAll(true);
+
+        abstract int dataType();
+
+        abstract Object defaultValue();
+
+        /**
+         * @return The current field value in watched form, or null
+         */
+        abstract Object initialValue();
+
+        /**
+         * Server: pushes the field value to DataWatcher if it has changed.
+         */
+        abstract void push() throws Throwable;
+
+        /**
+         * Client: writes the field if the watched object has been updated.
+         */
+        void pull() throws Throwable {
+            // DataWatcher replaces the object on each update from server, so identity tells if it's updated
+            Object obj = watchable.getObject();
+            if (obj != lastSeen && write(obj)) {
+                lastSeen = obj;
+            }
+        }
+
+        /**
+         * @return Whether the value was written. If false, it's retried next tick
+         */
+        abstract boolean write(Object watched) throws Throwable;
+
+    }
+
+    private abstract class PrimitiveSlot extends Slot {
+        final MethodHandle getter, setter;
+        final Class<?> type;
+
+        PrimitiveSlot(MethodHandle g, MethodHandle s, Class<?> _type) {
+            type = _type;
+            getter = g.asType(MethodType.methodType(type, Entity.class));
+            setter = s.asType(MethodType.methodType(void.class, Entity.class, type));
         }
-        
-        protected Object convert() {
+
+        @Override
+        Object initialValue() {
+            return null;
+        }
+    }
+
+    private final class IntSlot extends PrimitiveSlot {
+        int last;
+
+        IntSlot(MethodHandle g, MethodHandle s) { super(g, s, int.class); }
+
+        @Override int dataType() { return TYPE_INT; }
+
+        @Override Object defaultValue() { return 0; }
+
+        @Override
+        void push() throws Throwable {
+            int value = (int) getter.invokeExact(entity);
+            if (value != last) {
+                last = value;
+                dataWatcher.updateObject(id, value);
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, (int) (Integer) watched);
+            return true;
+        }
+    }
+
+    private final class FloatSlot extends PrimitiveSlot {
+        float last;
+
+        FloatSlot(MethodHandle g, MethodHandle s) { super(g, s, float.class); }
+
+        @Override int dataType() { return TYPE_FLOAT; }
+
+        @Override Object defaultValue() { return 0.0f; }
+
+        @Override
+        void push() throws Throwable {
+            float value = (float) getter.invokeExact(entity);
+            if (Float.compare(value, last) != 0) {
+                last = value;
+                dataWatcher.updateObject(id, value);
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, (float) (Float) watched);
+            return true;
+        }
+    }
+
+    private final class ByteSlot extends PrimitiveSlot {
+        byte last;
+
+        ByteSlot(MethodHandle g, MethodHandle s) { super(g, s, byte.class); }
+
+        @Override int dataType() { return TYPE_BYTE; }
+
+        @Override Object defaultValue() { return (byte) 0; }
+
+        @Override
+        void push() throws Throwable {
+            byte value = (byte) getter.invokeExact(entity);
+            if (value != last) {
+                last = value;
+                dataWatcher.updateObject(id, value);
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, (byte) (Byte) watched);
+            return true;
+        }
+    }
+
+    private final class ShortSlot extends PrimitiveSlot {
+        short last;
+
+        ShortSlot(MethodHandle g, MethodHandle s) { super(g, s, short.class); }
+
+        @Override int dataType() { return TYPE_SHORT; }
+
+        @Override Object defaultValue() { return (short) 0; }
+
+        @Override
+        void push() throws Throwable {
+            short value = (short) getter.invokeExact(entity);
+            if (value != last) {
+                last = value;
+                dataWatcher.updateObject(id, value);
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, (short) (Short) watched);
+            return true;
+        }
+    }
+
+    private final class BooleanSlot extends PrimitiveSlot {
+        boolean last;
+
+        BooleanSlot(MethodHandle g, MethodHandle s) { super(g, s, boolean.class); }
+
+        @Override int dataType() { return TYPE_BYTE; }
+
+        @Override Object defaultValue() { return (byte) 0; }
+
+        @Override
+        void push() throws Throwable {
+            boolean value = (boolean) getter.invokeExact(entity);
+            if (value != last) {
+                last = value;
+                dataWatcher.updateObject(id, (byte) (value ? 1 : 0));
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, (Byte) watched != 0);
+            return true;
+        }
+    }
+
+    private final class DoubleSlot extends PrimitiveSlot {
+        double last;
+
+        DoubleSlot(MethodHandle g, MethodHandle s) { super(g, s, double.class); }
+
+        @Override int dataType() { return TYPE_STRING; }
+
+        @Override Object defaultValue() { return "0.0"; }
+
+        @Override
+        void push() throws Throwable {
+            double value = (double) getter.invokeExact(entity);
+            if (Double.compare(value, last) != 0) {
+                last = value;
+                dataWatcher.updateObject(id, Double.toString(value));
+            }
+        }
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            setter.invokeExact(entity, Double.parseDouble((String) watched));
+            return true;
+        }
+    }
+
+    private final class ObjectSlot extends Slot {
+        final MethodHandle getter, setter;
+        final Codec codec;
+        final boolean allowNull;
+
+        Object last; // Snapshot of the value last pushed, so that in-place changes are noticed
+
+        ObjectSlot(MethodHandle g, MethodHandle s, Codec _codec, boolean _allowNull) {
+            getter = g.asType(MethodType.methodType(Object.class, Entity.class));
+            setter = s.asType(MethodType.methodType(void.class, Entity.class, Object.class));
+            codec = _codec;
+            allowNull = _allowNull;
+        }
+
+        @Override int dataType() { return codec.dataType; }
+
+        @Override Object defaultValue() { return codec.defaultValue; }
+
+        @Override
+        Object initialValue() {
             try {
-                return c.supply(field.get(entity));
-            } catch (Exception e) {
+                Object value = getter.invokeExact(entity);
+                return value == null ? null : codec.toWatched(value);
+            } catch (Throwable e) {
                 return null;
             }
         }
-        
-        void tick() {
-            updateAll(anno.value() == SyncType.RUNTIME);
+
+        @Override
+        void push() throws Throwable {
+            Object value = getter.invokeExact(entity);
+            if (value != null && !codec.same(value, last)) {
+                last = codec.snapshot(value);
+                dataWatcher.updateObject(id, codec.toWatched(value));
+            }
         }
-        
-        private void updateAll(boolean doServer) {
-            //System.out.println("Synchronizing " + field.getName());
-            try {
-                if(entity.worldObj.isRemote) {
-                    Object obj = f.supply(EntitySyncer.this, id);
-                    
-                    if(obj != null || anno.allowNull()) {
-                        field.set(entity, obj);
-                    }
-                } else {
-                    if(doServer) {
-                        Object o = convert();
-                        if(o != null) {
-                            dataWatcher.updateObject(id, o);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new RuntimeException("Sync failed");
+
+        @Override
+        boolean write(Object watched) throws Throwable {
+            Object value = codec.fromWatched(EntitySyncer.this, watched);
+            if (value != null || allowNull) {
+                setter.invokeExact(entity, value);
+                return true;
             }
+            return false;
         }
-        
     }
 
-    private interface Creator<T, U> {
-        T supply(U value);
-    }
-    
-    private interface Fetcher {
-        Object supply(EntitySyncer d, int id);
+    /**
+     * Converts values of a non-primitive type from and to the DataWatcher form.
+     */
+    private static class Codec {
+        final int dataType;
+        final Object defaultValue;
+
+        Codec(int _dataType, Object _defaultValue) {
+            dataType = _dataType;
+            defaultValue = _defaultValue;
+        }
+
+        Object toWatched(Object value) {
+            return value;
+        }
+
+        Object fromWatched(EntitySyncer syncer, Object watched) {
+            return watched;
+        }
+
+        /**
+         * @return A copy of the value that isn't affected by later in-place changes of it. Immutable values (and
+         *  values compared by identity) are returned as is.
+         */
+        Object snapshot(Object value) {
+            return value;
+        }
+
+        boolean same(Object a, Object b) {
+            return Objects.equals(a, b);
+        }
     }
-    
-    private static class Type {
-        Creator creator;
-        Fetcher fetcher;
-        Object defaultValue;
-        
-        public Type(Creator _c, Fetcher _f, Object _d) {
-            creator = _c;
-            fetcher = _f;
-            defaultValue = _d;
+
+    private static class EnumCodec extends Codec {
+        final Object[] constants;
+
+        EnumCodec(Class<?> type) {
+            super(TYPE_INT, 0);
+            constants = type.getEnumConstants();
+        }
+
+        @Override
+        Object toWatched(Object value) {
+            return ((Enum) value).ordinal();
+        }
+
+        @Override
+        Object fromWatched(EntitySyncer syncer, Object watched) {
+            return watched == null ? null : constants[(Integer) watched];
+        }
+
+        @Override
+        boolean same(Object a, Object b) {
+            return a == b;
         }
     }
+
 }
@@ -6,39 +6,57 @@
 */
 package cn.lambdalib.util.helper;
 
+import cn.lambdalib.annoreg.core.Registrant;
+import cn.lambdalib.annoreg.mc.RegEventHandler;
+import cn.lambdalib.annoreg.mc.RegEventHandler.Bus;
+import cn.lambdalib.util.helper.TimingWheel.Task;
 import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.ClientTickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.gameevent.TickEvent.WorldTickEvent;
 import cpw.mods.fml.relauncher.Side;
+import net.minecraft.entity.Entity;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.World;
+import net.minecraftforge.event.world.WorldEvent;
 import scala.Function0;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.BooleanSupplier;
 import java.util.function.Supplier;
 
 /**
  * Util to aid timed tick scheduling. You can use it at anywhere that requires ticking to handle multiple schedules.
+ *  <br>
+ *
+ * Schedules are stored in a timing wheel, so a tick only costs as much as the schedules that are due in it. Schedules
+ *  with a condition are still checked every tick. <br>
+ *
+ * Instead of ticking a scheduler of your own, you can also get one that is ticked along with a world by
+ *  {@link #shared(World, Object)}. Its schedules are dropped when the owner unloads or dies.
  */
 public class TickScheduler {
 
-    private class Schedule {
+    private final TimingWheel wheel;
+    private final Object owner;
 
-        Optional<Supplier<Boolean>> condition;
-        Optional<String> name;
-        int interval;
-        Runnable runnable;
-
-        int counter;
-        boolean disposed;
+    private final Map<String, Task> names = new HashMap<>();
+    private final Set<Task> tasks = new HashSet<>();
 
+    public TickScheduler() {
+        this(new TimingWheel(), null);
     }
 
-    private List<Schedule> schedules = new LinkedList<>();
+    private TickScheduler(TimingWheel _wheel, Object _owner) {
+        wheel = _wheel;
+        owner = _owner;
+    }
 
     public class ScheduleCreator {
 
-        Optional<Supplier<Boolean>> condition = Optional.empty();
-        Optional<String> name = Optional.empty();
+        BooleanSupplier condition = null;
+        String name = null;
 
         Side runSide = null;
 
@@ -53,20 +71,24 @@ public class TickScheduler {
             return this;
         }
 
-        public ScheduleCreator condition(Supplier<Boolean> _condition) {
+        public ScheduleCreator condition(BooleanSupplier _condition) {
             if (shouldIgnore())
                 return this;
 
-            condition = Optional.of(_condition);
+            condition = _condition;
             return this;
         }
 
+        public ScheduleCreator condition(Supplier<Boolean> _condition) {
+            return condition((BooleanSupplier) _condition::get);
+        }
+
         public ScheduleCreator name(String _name) {
             if (shouldIgnore())
                 return this;
 
-            check(!name.isPresent(), "Name must be previously empty");
-            name = Optional.of(_name);
+            check(name == null, "Name must be previously empty");
+            name = _name;
             return this;
         }
 
@@ -74,15 +96,13 @@ public class TickScheduler {
             if (shouldIgnore())
                 return this;
 
-            check(name.equals(Optional.empty()) ||
-                    !schedules.stream().anyMatch(s -> s.name.equals(name)), "Name collide: " + name);
-            Schedule add = new Schedule();
-            add.name = name;
-            add.condition = condition;
-            add.interval = tickIntv;
-            add.runnable = _task;
-            add.counter = tickIntv;
-            schedules.add(add);
+            check(name == null || !names.containsKey(name), "Name collide: " + name);
+            Task add = new Task(TickScheduler.this, name, condition, _task, tickIntv);
+            if (name != null) {
+                names.put(name, add);
+            }
+            tasks.add(add);
+            wheel.add(add);
             return this;
         }
 
@@ -111,42 +131,152 @@ public class TickScheduler {
     }
 
     public void remove(String name) {
-        Optional<String> cmp = Optional.of(name);
-        schedules.stream()
-                .filter(s -> s.name.equals(cmp))
-                .forEach(s -> s.disposed = true);
+        Task task = names.remove(name);
+        if (task != null) {
+            tasks.remove(task);
+            wheel.cancel(task);
+        }
+    }
+
+    /**
+     * Removes all schedules.
+     */
+    public void clear() {
+        for (Task task : tasks) {
+            wheel.cancel(task);
+        }
+        tasks.clear();
+        names.clear();
     }
 
     public void updateInterval(String name, int newInterval) {
-        find(name).ifPresent(s -> {
-            s.interval = newInterval;
-        });
+        Task task = names.get(name);
+        if (task != null) {
+            task.interval = newInterval;
+        }
     }
 
+    /**
+     * Ticks this scheduler. Does nothing for a scheduler got from {@link #shared(World, Object)}, as it is ticked
+     *  along with its world.
+     */
     public void runTick() {
-        Iterator<Schedule> itr = schedules.iterator();
-        while (itr.hasNext()) {
-            Schedule s = itr.next();
-            if (s.disposed) {
-                itr.remove();
-            } else {
-                if (!s.condition.isPresent() || s.condition.get().get()) {
-                    if (--s.counter <= 0) {
-                        s.runnable.run();
-                        s.counter = s.interval;
+        if (owner == null) {
+            wheel.advance();
+        }
+    }
+
+    /**
+     * @return Whether the owner is still alive. If it isn't, all schedules are removed.
+     */
+    boolean checkOwner() {
+        if (owner == null || isAlive(owner)) {
+            return true;
+        }
+        clear();
+        return false;
+    }
+
+    private void check(boolean pred, String msg) {
+        if (!pred) throw new RuntimeException("TickScheduler: " + msg);
+    }
+
+    // Shared schedulers
+
+    private static final Map<World, SharedWheel> sharedWheels = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final int SWEEP_INTERVAL = 100;
+
+    /**
+     * Gets the scheduler of given owner in the world's shared timing wheel, which is ticked at the end of each world
+     *  tick. All its schedules are removed when the owner is no longer alive (i.e. a dead or unloaded Entity, or an
+     *  invalidated TileEntity), or when the world unloads. Other owners must be cleared manually by {@link #clear()}.
+     *  <br>
+     *
+     * Should be called in the world's thread.
+     */
+    public static TickScheduler shared(World world, Object owner) {
+        Objects.requireNonNull(owner);
+        SharedWheel shared = sharedWheels.computeIfAbsent(world, w -> new SharedWheel());
+        return shared.owners.computeIfAbsent(owner, o -> new TickScheduler(shared.wheel, o));
+    }
+
+    private static boolean isAlive(Object owner) {
+        if (owner instanceof Entity) {
+            Entity e = (Entity) owner;
+            return !e.isDead && e.worldObj.getEntityByID(e.getEntityId()) == e;
+        }
+        if (owner instanceof TileEntity) {
+            return !((TileEntity) owner).isInvalid();
+        }
+        return true;
+    }
+
+    private static class SharedWheel {
+        final TimingWheel wheel = new TimingWheel();
+        final Map<Object, TickScheduler> owners = new IdentityHashMap<>();
+        int ticks;
+
+        void tick() {
+            wheel.advance();
+
+            // Owners that have no schedule due for long would otherwise only be cleared when it's due
+            if (++ticks % SWEEP_INTERVAL == 0) {
+                Iterator<TickScheduler> itr = owners.values().iterator();
+                while (itr.hasNext()) {
+                    TickScheduler scheduler = itr.next();
+                    if (!scheduler.checkOwner() || scheduler.tasks.isEmpty()) {
+                        itr.remove();
                     }
                 }
             }
         }
     }
 
-    private void check(boolean pred, String msg) {
-        if (!pred) throw new RuntimeException("TickScheduler: " + msg);
+    private static List<SharedWheel> sharedOf(boolean remote) {
+        List<SharedWheel> ret = new ArrayList<>();
+        synchronized (sharedWheels) {
+            for (Map.Entry<World, SharedWheel> entry : sharedWheels.entrySet()) {
+                if (entry.getKey().isRemote == remote) {
+                    ret.add(entry.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Registrant
+    public enum TickListener {
+        @RegEventHandler(Bus.FML)
+        instance;
+
+        @SubscribeEvent
+        public void onWorldTick(WorldTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                SharedWheel shared = sharedWheels.get(evt.world);
+                if (shared != null) {
+                    shared.tick();
+                }
+            }
+        }
+
+        @SubscribeEvent
+        public void onClientTick(ClientTickEvent evt) {
+            if (evt.phase == Phase.END) {
+                sharedOf(true).forEach(SharedWheel::tick);
+            }
+        }
     }
 
-    private Optional<Schedule> find(String name) {
-        Optional<String> cmp = Optional.of(name);
-        return schedules.stream().filter(s -> s.name.equals(cmp)).findFirst();
+    @Registrant
+    public enum UnloadListener {
+        @RegEventHandler(Bus.Forge)
+        instance;
+
+        @SubscribeEvent
+        public void onWorldUnload(WorldEvent.Unload evt) {
+            sharedWheels.remove(evt.world);
+        }
     }
 
 }
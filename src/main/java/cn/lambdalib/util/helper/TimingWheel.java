@@ -0,0 +1,213 @@
+/**
+* Copyright (c) Lambda Innovation, 2013-2016
+* This file is part of LambdaLib modding library.
+* https://github.com/LambdaInnovation/LambdaLib
+* Licensed under MIT, see project root for more information.
+*/
+package cn.lambdalib.util.helper;
+
+import com.google.common.base.Throwables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A hierarchical timing wheel, the storage behind {@link TickScheduler}. Adding and cancelling tasks is O(1), and
+ *  advancing one tick only touches the tasks that are due (plus an occasional cascade of a higher level slot). <br>
+ *
+ * Conditional tasks only count the ticks in which their condition holds, so they can't be put at a fixed deadline.
+ *  They are kept in a separate list that is polled every tick. <br>
+ *
+ * Tasks due in the same tick run in the order they were added. A task that throws stays scheduled and doesn't keep
+ *  the others from running; the first exception is rethrown once the tick is done.
+ */
+final class TimingWheel {
+
+    private static final int BITS = 6, SLOTS = 1 << BITS, MASK = SLOTS - 1, LEVELS = 4;
+    private static final long MAX_DELAY = (1L << (BITS * LEVELS)) - 1;
+
+    /**
+     * A scheduled task. Intrusively linked into its wheel slot.
+     */
+    static final class Task {
+        final TickScheduler scheduler;
+        final String name;
+        final BooleanSupplier condition; // null if unconditional
+        final Runnable runnable;
+        int interval;
+
+        long deadline;
+        int counter; // Conditional tasks only
+        boolean disposed;
+
+        int level = -1, slot;
+        Task prev, next;
+
+        Task(TickScheduler _scheduler, String _name, BooleanSupplier _condition, Runnable _runnable, int _interval) {
+            scheduler = _scheduler;
+            name = _name;
+            condition = _condition;
+            runnable = _runnable;
+            interval = _interval;
+        }
+    }
+
+    private final Task[][] slots = new Task[LEVELS][SLOTS];
+    private final Task[][] tails = new Task[LEVELS][SLOTS];
+    private final List<Task> polled = new ArrayList<>();
+    private final List<Task> due = new ArrayList<>();
+
+    private long now = 0;
+
+    void add(Task task) {
+        if (task.condition != null) {
+            task.counter = task.interval;
+            polled.add(task);
+        } else {
+            task.deadline = now + Math.max(1, task.interval);
+            _insert(task);
+        }
+    }
+
+    void cancel(Task task) {
+        if (!task.disposed) {
+            task.disposed = true;
+            _unlink(task);
+            // Polled tasks are removed on next tick
+        }
+    }
+
+    /**
+     * Advances one tick and runs all due tasks.
+     */
+    void advance() {
+        ++now;
+
+        // Cascade higher levels whose slot is reached
+        for (int level = 1; level < LEVELS; ++level) {
+            if ((now & ((1L << (BITS * level)) - 1)) != 0) {
+                break;
+            }
+            int idx = (int) ((now >>> (BITS * level)) & MASK);
+            Task t = slots[level][idx];
+            slots[level][idx] = tails[level][idx] = null;
+            while (t != null) {
+                Task next = t.next;
+                t.prev = t.next = null;
+                t.level = -1;
+                _insert(t);
+                t = next;
+            }
+        }
+
+        // Detach the current slot, so that tasks can freely add or cancel while running
+        int idx = (int) (now & MASK);
+        for (Task t = slots[0][idx]; t != null; ) {
+            Task next = t.next;
+            t.prev = t.next = null;
+            t.level = -1;
+            due.add(t);
+            t = next;
+        }
+        slots[0][idx] = tails[0][idx] = null;
+
+        Throwable error = null;
+        for (Task t : due) {
+            if (!t.disposed && t.scheduler.checkOwner()) {
+                error = _run(t, error);
+                if (!t.disposed) {
+                    t.deadline = now + Math.max(1, t.interval);
+                    _insert(t);
+                }
+            }
+        }
+        due.clear();
+
+        error = _pollConditional(error);
+        if (error != null) {
+            throw Throwables.propagate(error);
+        }
+    }
+
+    private Throwable _pollConditional(Throwable error) {
+        int n = polled.size();
+        int j = 0;
+        for (int i = 0; i < n; ++i) {
+            Task t = polled.get(i);
+            if (!t.disposed && t.scheduler.checkOwner()) {
+                if (t.condition.getAsBoolean() && --t.counter <= 0) {
+                    t.counter = t.interval;
+                    error = _run(t, error);
+                }
+            }
+            if (!t.disposed) {
+                polled.set(j++, t);
+            }
+        }
+        // Keep tasks added while polling
+        for (int i = n; i < polled.size(); ++i) {
+            polled.set(j++, polled.get(i));
+        }
+        polled.subList(j, polled.size()).clear();
+        return error;
+    }
+
+    /**
+     * Runs given task, catching what it throws so that the tick can go on.
+     * @return The first exception of this tick, with later ones added as suppressed
+     */
+    private static Throwable _run(Task t, Throwable error) {
+        try {
+            t.runnable.run();
+        } catch (Throwable ex) {
+            if (error == null) {
+                return ex;
+            }
+            error.addSuppressed(ex);
+        }
+        return error;
+    }
+
+    private void _insert(Task t) {
+        long delay = Math.min(t.deadline - now, MAX_DELAY);
+        long target = now + Math.max(delay, 0);
+
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (BITS * (level + 1)))) {
+            ++level;
+        }
+        int idx = (int) ((target >>> (BITS * level)) & MASK);
+
+        // Appended, so that tasks due in the same tick keep their order
+        t.level = level;
+        t.slot = idx;
+        t.next = null;
+        t.prev = tails[level][idx];
+        if (t.prev != null) {
+            t.prev.next = t;
+        } else {
+            slots[level][idx] = t;
+        }
+        tails[level][idx] = t;
+    }
+
+    private void _unlink(Task t) {
+        if (t.level == -1) {
+            return;
+        }
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            slots[t.level][t.slot] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        } else {
+            tails[t.level][t.slot] = t.prev;
+        }
+        t.prev = t.next = null;
+        t.level = -1;
+    }
+
+}
@@ -0,0 +1,134 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.pipeline.core.CommandBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static cn.lambdalib.test.TestUtils.*;
+
+/**
+ * Headless test of {@link CommandBuffer} sorting and batching, against a backend that records the calls.
+ */
+public class CommandBufferTest {
+
+    static class RecordingBackend implements CommandBuffer.Backend<String, String> {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void bind(String material) {
+            calls.add("bind " + material);
+        }
+
+        @Override
+        public void draw(String material, String mesh, float[] data, int floats, int instances) {
+            calls.add("draw " + material + " " + mesh + " x" + instances + " " +
+                    Arrays.toString(Arrays.copyOf(data, floats)));
+        }
+    }
+
+    public static void main(String[] args) {
+        testSortAndBatch();
+        testDepthOrder();
+        testRandomKeys();
+        System.out.println("All passed.");
+    }
+
+    static void testSortAndBatch() {
+        CommandBuffer<String, String> buffer = new CommandBuffer<>();
+        RecordingBackend backend = new RecordingBackend();
+
+        // Interleaved submission of two materials on the same program
+        buffer.add(CommandBuffer.key(1, 0, 0, 1, 0, 0), "B", "cube", new float[] { 1 }, 0, 1);
+        buffer.add(CommandBuffer.key(1, 0, 0, 0, 0, 0), "A", "cube", new float[] { 2 }, 0, 1);
+        buffer.add(CommandBuffer.key(1, 0, 0, 1, 0, 0), "B", "cube", new float[] { 3 }, 0, 1);
+        buffer.add(CommandBuffer.key(1, 0, 0, 0, 1, 0), "A", "quad", new float[] { 4, 5 }, 0, 2);
+        buffer.add(CommandBuffer.key(1, 0, 0, 0, 0, 0), "A", "cube", new float[] { 6 }, 0, 1);
+        buffer.add(CommandBuffer.key(0, 0, 0, 2, 0, 0), "C", "cube", new float[] { 0, 7, 0 }, 1, 1);
+
+        buffer.execute(backend);
+
+        check(backend.calls, Arrays.asList(
+                "bind C",
+                "draw C cube x1 [7.0]",
+                "bind A",
+                "draw A cube x2 [2.0, 6.0]",
+                "draw A quad x1 [4.0, 5.0]",
+                "bind B",
+                "draw B cube x2 [1.0, 3.0]"));
+        checkEq(buffer.getLastBatchCount(), 4, "batches");
+        checkEq(buffer.getLastBindCount(), 3, "binds");
+        checkEq(buffer.size(), 0, "size after execute");
+
+        // Executing an empty buffer does nothing
+        backend.calls.clear();
+        buffer.execute(backend);
+        checkEq(backend.calls.size(), 0, "calls of empty buffer");
+        checkEq(buffer.getLastBatchCount(), 0, "batches of empty buffer");
+    }
+
+    static void testDepthOrder() {
+        CommandBuffer<String, String> buffer = new CommandBuffer<>();
+        RecordingBackend backend = new RecordingBackend();
+
+        float[] values = new float[1];
+        for (int depth : new int[] { 30, 10, 20, 10 }) {
+            values[0] = depth; // Reusing the array, as values are copied
+            buffer.add(CommandBuffer.key(0, 0, 0, 0, 0, depth), "A", "cube", values, 0, 1);
+        }
+
+        buffer.execute(backend);
+
+        // Stable, so equal depths keep the submission order
+        check(backend.calls, Arrays.asList(
+                "bind A",
+                "draw A cube x4 [10.0, 10.0, 20.0, 30.0]"));
+    }
+
+    static void testRandomKeys() {
+        CommandBuffer<String, String> buffer = new CommandBuffer<>();
+        Random rand = new Random(42);
+        String[] materials = { "A", "B", "C", "D" };
+        String[] meshes = { "cube", "quad", "sphere" };
+
+        for (int round = 0; round < 3; ++round) {
+            int count = 5000 + round * 2000;
+            long[] keys = new long[count];
+            for (int i = 0; i < count; ++i) {
+                int mat = rand.nextInt(materials.length), mesh = rand.nextInt(meshes.length);
+                keys[i] = CommandBuffer.key(rand.nextInt(256), rand.nextInt(4), rand.nextInt(1024), mat, mesh,
+                        rand.nextInt(1 << CommandBuffer.DEPTH_BITS));
+                buffer.add(keys[i], materials[mat], meshes[mesh], new float[] { i }, 0, 1);
+            }
+
+            List<Long> drawn = new ArrayList<>();
+            buffer.execute(new CommandBuffer.Backend<String, String>() {
+                @Override
+                public void bind(String material) {}
+
+                @Override
+                public void draw(String material, String mesh, float[] data, int floats, int instances) {
+                    for (int i = 0; i < floats; ++i) {
+                        drawn.add(keys[(int) data[i]]);
+                    }
+                }
+            });
+
+            // Keys are ordered as unsigned
+            Long[] expected = new Long[count];
+            for (int i = 0; i < count; ++i) {
+                expected[i] = keys[i];
+            }
+            Arrays.sort(expected, Long::compareUnsigned);
+            checkEq(drawn.size(), count, "drawn count");
+            for (int i = 0; i < count; ++i) {
+                if (!drawn.get(i).equals(expected[i])) {
+                    throw new AssertionError("Keys out of order at " + i);
+                }
+            }
+        }
+    }
+
+}
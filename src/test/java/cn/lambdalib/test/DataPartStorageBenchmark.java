@@ -0,0 +1,108 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.util.datapart.DataPartStorage;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static cn.lambdalib.util.generic.RandUtils.*;
+
+/**
+ * A benchmark comparing per-part compounds and compact storage of DataParts, in saved size and time to
+ *  write/read a player's ForgeData.
+ */
+public class DataPartStorageBenchmark {
+
+    static final int PARTS = 20;
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<>();
+        List<DataPartStorage.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < PARTS; ++i) {
+            NBTTagCompound tag = new NBTTagCompound();
+            for (int j = 0; j < 8; ++j) {
+                tag.setInteger("i" + j, nextInt(1000));
+                tag.setFloat("f" + j, nextFloat());
+            }
+            tag.setString("s", String.valueOf(nextDouble()));
+            String name = "cn.lambdalib.test.parts.SomeModDataPart" + i;
+            names.add(name);
+            entries.add(new DataPartStorage.Entry(DataPartStorage.idOf(name), i, tag));
+        }
+
+        // Check round trip
+        Map<Integer, DataPartStorage.Entry> decoded = DataPartStorage.decode(DataPartStorage.encode(entries));
+        for (DataPartStorage.Entry e : entries) {
+            DataPartStorage.Entry d = decoded.get(e.id);
+            if (d == null || d.schemaHash != e.schemaHash || !d.tag.equals(e.tag)) {
+                throw new AssertionError("Round trip failed for " + e.id);
+            }
+        }
+
+        byte[] legacy = write(legacyTag(names, entries)), compact = write(compactTag(entries));
+        System.out.println("Size: per-part " + legacy.length + " bytes, compact " + compact.length + " bytes");
+        if (compact.length >= legacy.length) {
+            throw new AssertionError("Compact storage isn't smaller");
+        }
+
+        for (int round = 0; round < 2; ++round) { // First round to let code JIT compile
+            System.out.println("Per-part: " + benchmark(() -> {
+                NBTTagCompound forgeData = read(write(legacyTag(names, entries)));
+                for (String name : names) {
+                    forgeData.getCompoundTag(name);
+                }
+            }) + " ms");
+
+            System.out.println("Compact: " + benchmark(() -> {
+                NBTTagCompound forgeData = read(write(compactTag(entries)));
+                DataPartStorage.decode(forgeData.getByteArray(DataPartStorage.TAG_ID));
+            }) + " ms");
+        }
+    }
+
+    private static NBTTagCompound legacyTag(List<String> names, List<DataPartStorage.Entry> entries) {
+        NBTTagCompound ret = new NBTTagCompound();
+        for (int i = 0; i < names.size(); ++i) {
+            ret.setTag(names.get(i), entries.get(i).tag);
+        }
+        return ret;
+    }
+
+    private static NBTTagCompound compactTag(List<DataPartStorage.Entry> entries) {
+        NBTTagCompound ret = new NBTTagCompound();
+        ret.setByteArray(DataPartStorage.TAG_ID, DataPartStorage.encode(entries));
+        return ret;
+    }
+
+    private static byte[] write(NBTTagCompound tag) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompressedStreamTools.write(tag, new DataOutputStream(out));
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static NBTTagCompound read(byte[] data) {
+        try {
+            return CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static long benchmark(Runnable action) {
+        int times = 20000;
+        long cur = System.currentTimeMillis();
+        for (int i = 0; i < times; ++i) {
+            action.run();
+        }
+        return System.currentTimeMillis() - cur;
+    }
+
+}
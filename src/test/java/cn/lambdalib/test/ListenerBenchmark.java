@@ -0,0 +1,66 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.s11n.network.NetworkMessage;
+import cn.lambdalib.s11n.network.NetworkMessage.INetworkListener;
+import cn.lambdalib.s11n.network.NetworkMessage.Listener;
+import cn.lambdalib.s11n.network.NetworkMessage.NullablePar;
+import cpw.mods.fml.relauncher.Side;
+
+import java.lang.reflect.Method;
+
+/**
+ * A benchmark comparing reflective and compiled dispatch of network message listeners.
+ */
+public class ListenerBenchmark {
+
+    static class Receiver {
+        int sum;
+
+        @Listener(channel="value", side={Side.CLIENT, Side.SERVER})
+        void onValue(int a, float b, @NullablePar String c) {
+            sum += a + (int) b + (c == null ? 0 : 1);
+        }
+
+        @Listener(channel="static", side={Side.CLIENT, Side.SERVER})
+        static void onStatic(int a) {
+            staticSum += a;
+        }
+    }
+
+    static int staticSum;
+
+    public static void main(String[] args) throws Exception {
+        Method instanceMethod = Receiver.class.getDeclaredMethod("onValue", int.class, float.class, String.class);
+        Method staticMethod = Receiver.class.getDeclaredMethod("onStatic", int.class);
+        instanceMethod.setAccessible(true);
+        staticMethod.setAccessible(true);
+
+        for (boolean compiled : new boolean[] { false, true }) {
+            NetworkMessage.setCompiledListeners(compiled);
+            INetworkListener instanceListener = NetworkMessage.methodListener(instanceMethod);
+            INetworkListener staticListener = NetworkMessage.methodListener(staticMethod);
+
+            String name = compiled ? "compiled" : "reflective";
+            System.out.println("Instance listener (" + name + "): " + benchmark(instanceListener, new Receiver(),
+                    1, 2.0f, null) + " ms");
+            System.out.println("Static listener (" + name + "): " + benchmark(staticListener, null, 1) + " ms");
+        }
+        NetworkMessage.setCompiledListeners(true);
+    }
+
+    private static long benchmark(INetworkListener listener, Object instance, Object... params) throws Exception {
+        for (int i = 0; i < 100000; ++i) { // Let code JIT Compile
+            listener.invoke(instance, params);
+        }
+
+        int times = 10000000;
+        long cur = System.currentTimeMillis();
+
+        for (int i = 0; i < times; ++i) {
+            listener.invoke(instance, params);
+        }
+
+        return System.currentTimeMillis() - cur;
+    }
+
+}
@@ -0,0 +1,118 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.pipeline.api.particle.ParticleAffector;
+import cn.lambdalib.pipeline.api.particle.ParticleStore;
+import cn.lambdalib.pipeline.api.particle.affector.AffectorFade;
+import cn.lambdalib.pipeline.api.particle.affector.AffectorGravity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A headless benchmark of particle updates, comparing a list of particle objects with {@link ParticleStore}, updated
+ *  serially and in parallel. Dead particles are respawned to keep the count steady.
+ */
+public class ParticleBenchmark {
+
+    static final float DT = 1 / 60f;
+    static final int FRAMES = 500;
+
+    /**
+     * Particle as one object per particle, updated the way ParticleSystem used to.
+     */
+    static class ObjectParticle {
+        float x, y, z, vx, vy, vz, a = 1, size, life, lifetime;
+        boolean dead;
+    }
+
+    public static void main(String[] args) {
+        for (int count : new int[] { 10000, 100000 }) {
+            // Warm up
+            runObjects(count, FRAMES);
+            runStore(count, FRAMES, false);
+            runStore(count, FRAMES, true);
+
+            long objects = runObjects(count, FRAMES);
+            long serial = runStore(count, FRAMES, false);
+            long parallel = runStore(count, FRAMES, true);
+
+            System.out.println(count + " particles, ns per frame: objects " + objects / FRAMES +
+                    ", store " + serial / FRAMES + ", store parallel " + parallel / FRAMES);
+        }
+    }
+
+    static long runObjects(int count, int frames) {
+        Random rand = new Random(0);
+        List<ObjectParticle> particles = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            particles.add(spawnObject(rand));
+        }
+
+        long time = System.nanoTime();
+        for (int frame = 0; frame < frames; ++frame) {
+            particles.forEach(p -> {
+                p.life += DT;
+                p.x += p.vx * DT;
+                p.y += p.vy * DT;
+                p.z += p.vz * DT;
+            });
+            particles.forEach(p -> p.vy -= 9.8f * DT);
+            particles.forEach(p -> {
+                float remaining = p.lifetime - p.life;
+                if (remaining < 0.5f) {
+                    p.a = Math.max(0, remaining / 0.5f);
+                }
+                p.dead = remaining <= 0;
+            });
+
+            Iterator<ObjectParticle> iter = particles.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().dead) {
+                    iter.remove();
+                }
+            }
+            while (particles.size() < count) {
+                particles.add(spawnObject(rand));
+            }
+        }
+        return System.nanoTime() - time;
+    }
+
+    static ObjectParticle spawnObject(Random rand) {
+        ObjectParticle ret = new ObjectParticle();
+        ret.vx = rand.nextFloat() - 0.5f;
+        ret.vy = rand.nextFloat() * 5;
+        ret.vz = rand.nextFloat() - 0.5f;
+        ret.size = 0.1f;
+        ret.lifetime = 1 + rand.nextFloat() * 2;
+        return ret;
+    }
+
+    static long runStore(int count, int frames, boolean parallel) {
+        Random rand = new Random(0);
+        ParticleStore store = new ParticleStore(count);
+        store.setParallelThreshold(parallel ? 0 : Integer.MAX_VALUE);
+        List<ParticleAffector> affectors = Arrays.asList(new AffectorGravity(9.8f), new AffectorFade(0.5f));
+        for (int i = 0; i < count; ++i) {
+            spawn(store, rand);
+        }
+
+        long time = System.nanoTime();
+        for (int frame = 0; frame < frames; ++frame) {
+            store.update(DT, affectors);
+            while (store.size() < count) {
+                spawn(store, rand);
+            }
+        }
+        return System.nanoTime() - time;
+    }
+
+    static void spawn(ParticleStore store, Random rand) {
+        int i = store.add(0, 0, 0, rand.nextFloat() - 0.5f, rand.nextFloat() * 5, rand.nextFloat() - 0.5f, 0.1f);
+        store.lifetime[i] = 1 + rand.nextFloat() * 2;
+    }
+
+}
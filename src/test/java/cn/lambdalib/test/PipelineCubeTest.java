@@ -7,6 +7,7 @@ import cn.lambdalib.pipeline.api.GraphicPipeline;
 import cn.lambdalib.pipeline.api.Material;
 import cn.lambdalib.pipeline.api.Material.*;
 import cn.lambdalib.pipeline.api.ShaderProgram;
+import cn.lambdalib.pipeline.api.mc.EntityRenderUtils;
 import cn.lambdalib.pipeline.api.mc.MCPipeline;
 import cn.lambdalib.pipeline.api.mc.event.RenderAllEntityEvent;
 import cn.lambdalib.template.command.LICommandBase;
@@ -77,7 +78,14 @@ public class PipelineCubeTest {
             l_size = mat.getLayout("size"),
             l_color = mat.getLayout("color");
 
+    private final UniformBlock uniforms = mat.newUniformBlock();
+
+    private final int u_playerPos = mat.getUniformSlot("player_pos");
+
     {
+        mat.setUniforms(uniforms);
+        mat.bindUniformBuffer("Matrices", EntityRenderUtils.getMatrixBuffer());
+
         final float s = 0.5f;
         mesh.setVertices(
                 vert(-s, -s,  s),
@@ -168,14 +176,10 @@ public class PipelineCubeTest {
                 cubes.add(new Cube());
             }
 
-            // Update uniform
-            mat.setUniforms(
-                    mat.newUniformBlock()
-                            .setVec3("player_pos", (float) RenderManager.renderPosX,
-                                    (float) RenderManager.renderPosY,
-                                    (float) RenderManager.renderPosZ)
-                            .setMat4("pvp_matrix", evt.pvpMatrix())
-            );
+            // Update uniform, the matrices come from the shared matrix buffer
+            uniforms.setVec3(u_playerPos, (float) RenderManager.renderPosX,
+                    (float) RenderManager.renderPosY,
+                    (float) RenderManager.renderPosZ);
 
             for (Cube c : cubes) {
                 pipeline.draw(mat, mesh, c.toInstance());
@@ -9,6 +9,7 @@ import io.netty.buffer.Unpooled;
 import net.minecraft.nbt.NBTTagCompound;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,7 +54,8 @@ public class S11nBenchmark {
         public float x, y, z;
         public TestInner inner = new TestInner();
         public Map map = new HashMap<>();
-        public int[] array = new int[] { 1, 2, 3 };
+        // Mixed magnitudes and signs, to cover every varint length in compact mode
+        public int[] array = new int[] { 1, 2, 3, -1, 300, -70000, 1 << 21, Integer.MAX_VALUE, Integer.MIN_VALUE };
         public List<Object> objects = new ArrayList<>();
 
         public TestOuter() {
@@ -82,12 +84,50 @@ public class S11nBenchmark {
                     .add("objects", objects)
                     .toString();
         }
+
+        /**
+         * Compares all fields, as toString omits the array.
+         */
+        boolean sameAs(TestOuter other) {
+            return x == other.x && y == other.y && z == other.z &&
+                    inner.toString().equals(other.inner.toString()) &&
+                    map.equals(other.map) &&
+                    Arrays.equals(array, other.array) &&
+                    objects.equals(other.objects);
+        }
     }
 
     public static void main(String[] args) {
+        compareSizes();
         benchmark();
     }
 
+    private static void compareSizes() {
+        int standard = encodedSize(false), compact = encodedSize(true);
+        NetworkS11n.setCompactMode(false);
+
+        System.out.println("Encoded size: " + standard + " bytes (standard), " + compact + " bytes (compact)");
+    }
+
+    private static int encodedSize(boolean compact) {
+        NetworkS11n.setCompactMode(compact);
+
+        ByteBuf buffer = Unpooled.buffer();
+        NetworkS11n.serializeWithHint(buffer, sample, TestOuter.class);
+        NetworkS11n.serializeWithHint(buffer, sample.inner, TestInner.class);
+        int size = buffer.readableBytes();
+
+        TestOuter outer = new TestOuter();
+        TestInner inner = new TestInner();
+        NetworkS11n.deserializeRecursivelyInto(buffer, outer, TestOuter.class);
+        NetworkS11n.deserializeRecursivelyInto(buffer, inner, TestInner.class);
+        if (!outer.sameAs(sample) || !inner.toString().equals(sample.inner.toString())) {
+            throw new IllegalStateException("Round trip mismatch in " + (compact ? "compact" : "standard") + " mode");
+        }
+
+        return size;
+    }
+
     private static void benchmark() {
         for (int i = 0; i < 100000; ++i) { //Let code JIT Compile
             testBytebuf();
@@ -95,15 +135,26 @@ public class S11nBenchmark {
         System.out.println("Warm complete");
 
         int objects = 1000000;
+
+        NetworkS11n.setCodecEnabled(false);
+        long reflective = run(objects);
+        System.out.println("Spent " + reflective + " ms serializing " + objects + " objects (reflective)");
+
+        NetworkS11n.setCodecEnabled(true);
+        long codec = run(objects);
+        System.out.println("Spent " + codec + " ms serializing " + objects + " objects (codec)");
+
+        System.out.println("Speedup: " + ((double) reflective / Math.max(1, codec)) + "x");
+    }
+
+    private static long run(int objects) {
         long cur = System.currentTimeMillis();
 
         for (int i = 0; i < objects; ++i) {
             testBytebuf();
         }
 
-        long dt = System.currentTimeMillis() - cur;
-
-        System.out.println("Spent " + dt + " ms serializing " + objects + " objects");
+        return System.currentTimeMillis() - cur;
     }
 
     // Allocation should be no part of serialization, so src and target are created in advance
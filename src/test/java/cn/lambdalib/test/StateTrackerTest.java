@@ -0,0 +1,159 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.pipeline.api.state.GLCallSink;
+import cn.lambdalib.pipeline.api.state.StateContext;
+import cn.lambdalib.pipeline.api.state.StateContext.BlendFunction;
+import cn.lambdalib.pipeline.api.state.StateContext.CullFaceMode;
+import cn.lambdalib.pipeline.api.state.StateTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static cn.lambdalib.test.TestUtils.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+
+/**
+ * Headless test of {@link StateTracker}, against a sink that records the GL calls.
+ */
+public class StateTrackerTest {
+
+    static class RecordingSink implements GLCallSink {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void enable(int cap) {
+            calls.add("enable " + cap);
+        }
+
+        @Override
+        public void disable(int cap) {
+            calls.add("disable " + cap);
+        }
+
+        @Override
+        public void alphaFunc(int func, float ref) {
+            calls.add("alphaFunc " + func + " " + ref);
+        }
+
+        @Override
+        public void cullFace(int mode) {
+            calls.add("cullFace " + mode);
+        }
+
+        @Override
+        public void blendFunc(int src, int dst) {
+            calls.add("blendFunc " + src + " " + dst);
+        }
+
+        @Override
+        public void activeTexture(int texture) {
+            calls.add("activeTexture " + (texture - GL_TEXTURE0));
+        }
+
+        @Override
+        public void bindTexture(int target, int texture) {
+            calls.add("bindTexture " + texture);
+        }
+    }
+
+    public static void main(String[] args) {
+        testRedundantCalls();
+        testDefaultContext();
+        testInvalidate();
+        System.out.println("All passed.");
+    }
+
+    static void testRedundantCalls() {
+        RecordingSink sink = new RecordingSink();
+        StateTracker tracker = new StateTracker(sink);
+
+        StateContext a = new StateContext();
+        a.setTexBinding2D(0, 10);
+
+        StateContext b = new StateContext();
+        b.setTexBinding2D(0, 11);
+        b.setBlendFunc(BlendFunction.One, BlendFunction.One);
+
+        // First apply sets everything
+        tracker.apply(a);
+        checkEq(sink.calls.size(), 8, "calls of first apply");
+        checkEq(tracker.getCallsSaved(), 1, "saved of first apply");
+
+        // Same state again, nothing to do
+        sink.calls.clear();
+        tracker.apply(a);
+        check(sink.calls, Arrays.asList());
+        checkEq(tracker.getCallsSaved(), 10, "saved after reapply");
+
+        // Only the differences, unit 0 is still active
+        sink.calls.clear();
+        tracker.apply(b);
+        check(sink.calls, Arrays.asList(
+                "blendFunc " + GL_ONE + " " + GL_ONE,
+                "bindTexture 11"));
+
+        // Disabling keeps the function, so enabling again with the same function is a single call
+        StateContext c = new StateContext();
+        c.setCullFaceEnabled(false);
+        c.setBlendFunc(BlendFunction.One, BlendFunction.One);
+        sink.calls.clear();
+        tracker.apply(c);
+        check(sink.calls, Arrays.asList("disable " + GL_CULL_FACE));
+
+        sink.calls.clear();
+        tracker.apply(b);
+        check(sink.calls, Arrays.asList("enable " + GL_CULL_FACE));
+
+        checkEq(tracker.getCallsIssued(), 12, "calls issued");
+        tracker.resetCounters();
+        checkEq(tracker.getCallsIssued(), 0, "calls issued after reset");
+        checkEq(tracker.getCallsSaved(), 0, "calls saved after reset");
+    }
+
+    static void testDefaultContext() {
+        RecordingSink sink = new RecordingSink();
+        StateTracker tracker = new StateTracker(sink);
+
+        StateContext base = new StateContext();
+        base.setTexBinding2D(0, 1);
+        base.setTexBinding2D(2, 2);
+
+        StateContext mat = new StateContext();
+        mat.setTexBinding2D(2, 3);
+        mat.setCullFace(CullFaceMode.Front);
+
+        tracker.apply(base, mat);
+        check(sink.calls.subList(6, sink.calls.size()), Arrays.asList(
+                "activeTexture 0",
+                "bindTexture 1",
+                "activeTexture 2",
+                "bindTexture 3",
+                "activeTexture 0"));
+        check(sink.calls.contains("cullFace " + GL_FRONT), "Cull face of material not applied");
+
+        // Unconditionally applying both contexts takes 11 + 9 calls
+        checkEq(tracker.getCallsSaved(), 20 - sink.calls.size(), "saved of first apply");
+
+        sink.calls.clear();
+        tracker.apply(base, mat);
+        check(sink.calls, Arrays.asList());
+    }
+
+    static void testInvalidate() {
+        RecordingSink sink = new RecordingSink();
+        StateTracker tracker = new StateTracker(sink);
+
+        StateContext a = new StateContext();
+        a.setTexBinding2D(1, 5);
+        tracker.apply(a);
+        int first = sink.calls.size();
+
+        sink.calls.clear();
+        tracker.invalidate();
+        tracker.apply(a);
+        checkEq(sink.calls.size(), first, "calls after invalidate");
+    }
+
+}
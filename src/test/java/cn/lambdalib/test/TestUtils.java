@@ -0,0 +1,31 @@
+package cn.lambdalib.test;
+
+import java.util.Objects;
+
+/**
+ * Assertions shared by the headless tests. Failures are thrown as {@link AssertionError}s, so that a test is a plain
+ *  main() which prints "All passed." if it gets through.
+ */
+public final class TestUtils {
+
+    public static void check(boolean pred, String what) {
+        if (!pred) {
+            throw new AssertionError(what);
+        }
+    }
+
+    public static void check(Object actual, Object expected) {
+        if (!Objects.equals(actual, expected)) {
+            throw new AssertionError("Expected " + expected + ", got " + actual);
+        }
+    }
+
+    public static void checkEq(long actual, long expected, String what) {
+        if (actual != expected) {
+            throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private TestUtils() {}
+
+}
@@ -0,0 +1,145 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.util.helper.TickScheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static cn.lambdalib.test.TestUtils.*;
+
+/**
+ * Headless test of the timing wheel behind {@link TickScheduler}.
+ */
+public class TimingWheelTest {
+
+    static class Clock {
+        final TickScheduler scheduler = new TickScheduler();
+        int now;
+
+        void advance(int ticks) {
+            for (int i = 0; i < ticks; ++i) {
+                ++now;
+                scheduler.runTick();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        testLevelBoundaries();
+        testOrder();
+        testCancelDuringRun();
+        testUpdateInterval();
+        testThrowingTask();
+        System.out.println("All passed.");
+    }
+
+    static void testLevelBoundaries() {
+        int[] delays = { 1, 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145 };
+        for (int offset : new int[] { 0, 37 }) {
+            Clock clock = new Clock();
+            clock.advance(offset);
+
+            List<List<Integer>> runs = new ArrayList<>();
+            for (int delay : delays) {
+                List<Integer> ticks = new ArrayList<>();
+                runs.add(ticks);
+                clock.scheduler.every(delay).run(() -> ticks.add(clock.now));
+            }
+            clock.advance(3 * delays[delays.length - 1]);
+
+            for (int i = 0; i < delays.length; ++i) {
+                int delay = delays[i];
+                check(runs.get(i).subList(0, 3), Arrays.asList(offset + delay, offset + 2 * delay, offset + 3 * delay));
+            }
+        }
+    }
+
+    static void testOrder() {
+        Clock clock = new Clock();
+        clock.advance(5);
+
+        List<String> ran = new ArrayList<>();
+        for (String name : new String[] { "a", "b", "c", "d" }) {
+            clock.scheduler.every(100).run(() -> ran.add(name));
+        }
+        clock.advance(200);
+        check(ran, Arrays.asList("a", "b", "c", "d", "a", "b", "c", "d"));
+    }
+
+    static void testCancelDuringRun() {
+        Clock clock = new Clock();
+        List<String> ran = new ArrayList<>();
+        clock.scheduler.every(10).name("self").run(() -> {
+            ran.add("self");
+            clock.scheduler.remove("self");
+        });
+        clock.scheduler.every(10).name("canceller").run(() -> {
+            ran.add("canceller");
+            clock.scheduler.remove("victim");
+        });
+        clock.scheduler.every(10).name("victim").run(() -> ran.add("victim"));
+        clock.advance(30);
+        check(ran, Arrays.asList("self", "canceller", "canceller", "canceller"));
+
+        // Names of cancelled tasks are free again
+        clock.scheduler.every(1).name("victim").run(() -> ran.add("victim"));
+        clock.advance(1);
+        check(ran.get(ran.size() - 1), "victim");
+    }
+
+    static void testUpdateInterval() {
+        Clock clock = new Clock();
+        List<Integer> outside = new ArrayList<>(), inside = new ArrayList<>();
+        clock.scheduler.every(10).name("outside").run(() -> outside.add(clock.now));
+        clock.scheduler.every(100).name("inside").run(() -> {
+            inside.add(clock.now);
+            clock.scheduler.updateInterval("inside", 70);
+        });
+
+        clock.advance(10);
+        // Already scheduled for tick 20, the new interval counts from there
+        clock.scheduler.updateInterval("outside", 3);
+        clock.advance(170);
+
+        check(outside.subList(0, 4), Arrays.asList(10, 20, 23, 26));
+        // Updated while running, applies to the very next run
+        check(inside, Arrays.asList(100, 170));
+    }
+
+    static void testThrowingTask() {
+        Clock clock = new Clock();
+        List<String> ran = new ArrayList<>();
+        clock.scheduler.every(5).name("first").run(() -> ran.add("first"));
+        clock.scheduler.every(5).name("thrower").run(() -> {
+            ran.add("thrower");
+            throw new IllegalStateException("thrower");
+        });
+        clock.scheduler.every(5).name("last").run(() -> ran.add("last"));
+        clock.scheduler.every(1).condition(() -> true).run(() -> {
+            throw new IllegalStateException("conditional");
+        });
+
+        int failed = 0;
+        for (int i = 0; i < 10; ++i) {
+            try {
+                clock.advance(1);
+            } catch (IllegalStateException ex) {
+                ++failed;
+                if (clock.now % 5 == 0) {
+                    check(ex.getMessage(), "thrower");
+                    checkEq(ex.getSuppressed().length, 1, "suppressed");
+                } else {
+                    check(ex.getMessage(), "conditional");
+                }
+            }
+        }
+        checkEq(failed, 10, "failed ticks");
+        check(ran, Arrays.asList("first", "thrower", "last", "first", "thrower", "last"));
+
+        // The thrower is still scheduled, and can be removed by name
+        clock.scheduler.remove("thrower");
+        clock.scheduler.every(5).name("thrower").run(() -> ran.add("thrower"));
+    }
+
+}
@@ -0,0 +1,38 @@
+package cn.lambdalib.test;
+
+import cn.lambdalib.pipeline.api.UniformBuffer;
+
+import static cn.lambdalib.test.TestUtils.*;
+
+/**
+ * Headless test of the std140 layout of {@link UniformBuffer}.
+ */
+public class UniformBufferTest {
+
+    public static void main(String[] args) {
+        UniformBuffer buffer = UniformBuffer.builder()
+                .addFloat("a")
+                .addVec3("b")
+                .addFloat("c")
+                .addVec2("d")
+                .addMat4("e")
+                .addFloat("f")
+                .build();
+
+        // Offsets in floats: vec3 aligns to 16 bytes, a float can follow in its padding, vec2 aligns to 8 bytes
+        checkEq(buffer.getOffset("a"), 0, "a");
+        checkEq(buffer.getOffset("b"), 4, "b");
+        checkEq(buffer.getOffset("c"), 7, "c");
+        checkEq(buffer.getOffset("d"), 8, "d");
+        checkEq(buffer.getOffset("e"), 12, "e");
+        checkEq(buffer.getOffset("f"), 28, "f");
+        // Rounded up to vec4
+        checkEq(buffer.getSize(), 128, "size");
+
+        // Nothing is uploaded yet
+        check(buffer.isDirty(), "New buffer should be dirty");
+
+        System.out.println("All passed.");
+    }
+
+}
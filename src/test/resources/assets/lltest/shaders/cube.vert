@@ -1,7 +1,12 @@
 #version 330 core
 
 // Uniform
-uniform mat4 pvp_matrix;
+layout (std140) uniform Matrices {
+    mat4 projection;
+    mat4 player_view;
+    mat4 pvp;
+};
+
 uniform vec3 player_pos;
 
 // Per-vertex
@@ -18,6 +23,6 @@ out vec3 v_color;
 void main() {
     vec3 vert_pos = (position * size) + offset - player_pos;
 
-	gl_Position = pvp_matrix * vec4(vert_pos, 1);
+	gl_Position = pvp * vec4(vert_pos, 1);
 	v_color = color;
 }